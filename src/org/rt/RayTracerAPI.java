@@ -24,6 +24,7 @@
 package org.rt;
 
 import java.util.ArrayList;
+import org.rt.core.AbstractAccelerator;
 import org.rt.core.AbstractBackground;
 import org.rt.core.AbstractDisplay;
 import org.rt.core.AbstractLight;
@@ -32,6 +33,8 @@ import org.rt.core.AbstractSceneDescription;
 import org.rt.core.Camera;
 import org.rt.core.ImageSampler;
 import org.rt.core.Scene;
+import org.rt.core.accelerator.BVHStatistics;
+import org.rt.core.cache.BVHLevelCache;
 import org.rt.core.math.BoundingBox;
 
 /**
@@ -110,6 +113,24 @@ public class RayTracerAPI
     }
     
     
+    //takes effect on the next setScene/buildScene
+    public void setAccelerator(AbstractAccelerator accelerator)
+    {
+        scene.setAccelerator(accelerator);
+    }
+    
+    //directory of the persistent bvh cache, an unchanged scene then skips the build on restart
+    public void setCacheDirectory(String directory)
+    {
+        scene.setCache(directory == null ? null : new BVHLevelCache(directory));
+    }
+    
+    public BVHStatistics getAcceleratorStatistics()
+    {
+        if(scene.getAccelerator() == null) return null;
+        else return scene.getAccelerator().getStatistics();
+    }
+    
     public void setScene(AbstractSceneDescription sceneDescription)
     {
         scene.setPrimitives(sceneDescription.getPrimitives());
@@ -122,6 +143,12 @@ public class RayTracerAPI
         scene.build();
     }
     
+    //call after moving objects of the current scene instead of buildScene
+    public void refitScene()
+    {
+        scene.refit();
+    }
+    
     public void createScene(ArrayList<AbstractPrimitive> primitives)
     {
         scene.setPrimitives(primitives);
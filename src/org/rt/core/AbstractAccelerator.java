@@ -23,6 +23,8 @@
  */
 package org.rt.core;
 
+import org.rt.core.accelerator.BVHStatistics;
+import org.rt.core.cache.BVHLevelCache;
 import org.rt.core.math.BoundingBox;
 import org.rt.core.math.Ray;
 import java.util.ArrayList;
@@ -37,5 +39,41 @@ public abstract class AbstractAccelerator
     public abstract boolean intersect(Ray r, Intersection isect);
     public abstract boolean intersectP(Ray r);
     
+    //closest hit for every ray of the packet, hierarchies share node tests between the rays
+    public void intersect(RayPacket packet)
+    {
+        for(int i = 0; i < packet.size; i++)
+            packet.hits[i] = intersect(packet.rays[i], packet.isects[i]);
+    }
+    
+    //any hit query limited to maxDistance, e.g. the distance to a light sample
+    public boolean occluded(Ray r, float maxDistance)
+    {
+        float tMax = r.getMax();
+        if(maxDistance < tMax)
+            r.setMax(maxDistance);
+        boolean hit = intersectP(r);
+        r.setMax(tMax);
+        return hit;
+    }
+    
     public abstract BoundingBox getWorldBounds();
+    
+    //updates bounds after primitives moved, false if the accelerator has to be built again instead
+    public boolean refit()
+    {
+        return false;
+    }
+    
+    //tree quality of the last build, null for accelerators that are not hierarchies
+    public BVHStatistics getStatistics()
+    {
+        return null;
+    }
+    
+    //store built trees in the cache and map them on later builds, ignored by accelerators that cannot be cached
+    public void setCache(BVHLevelCache cache)
+    {
+        
+    }
 }
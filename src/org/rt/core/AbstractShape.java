@@ -69,6 +69,22 @@ public abstract class AbstractShape
             return n;
     }
     
+    /**
+     * Finds a hit closer than the ray extent, but may leave the shading data 
+     * of dg (point, normals, uvs) to shade, which is then called once for the 
+     * closest hit. Shapes that compute everything in intersect keep this.
+     */
+    public boolean intersectHit(Ray r, DifferentialGeometry dg)
+    {
+        return intersect(r, dg);
+    }
+    
+    //completes dg after intersectHit reported the closest hit along r
+    public void shade(Ray r, DifferentialGeometry dg)
+    {
+        
+    }
+    
     public  ArrayList<AbstractShape> refine()
     {
         return null;
@@ -147,6 +147,20 @@ public class Camera
         return new Ray(oo, dd);
     }
     
+    //fills the packet with one jittered ray per pixel of the tile starting at (x0, y0), row by row
+    public void generatePacket(RayPacket packet, int x0, int y0, int tileWidth, int tileHeight, int xResolution, int yResolution)
+    {
+        packet.clear();
+        int x1 = Math.min(x0 + tileWidth, xResolution);
+        int y1 = Math.min(y0 + tileHeight, yResolution);
+        for(int y = y0; y < y1 && !packet.isFull(); y++)
+            for(int x = x0; x < x1 && !packet.isFull(); x++)
+            {
+                Point2f sample = new Point2f((float)x, (float)y).add(Rng.getPoint2f());
+                packet.add(generateRay(sample.x, sample.y, xResolution, yResolution), x, y);
+            }
+    }
+    
     private float focalDistance()
     {
         return lookat.subV(position).length();
@@ -82,8 +82,9 @@ public class LightCache
         
         if(primitive.canIntersect())
         {
-            lightList.add(primitive.getAreaLight());
-            
+            //instanced geometry provides no area light
+            if(primitive.getAreaLight() != null)
+                lightList.add(primitive.getAreaLight());
         }
         else
         {
@@ -0,0 +1,80 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core;
+
+import org.rt.core.math.Ray;
+
+/**
+ *
+ * @author user
+ * 
+ * Group of coherent rays, e.g. the camera rays of an image tile, that are 
+ * intersected together so accelerators can share node tests between them.
+ * Each ray has its own intersection record, hit flag and raster position.
+ */
+public class RayPacket 
+{
+    public final Ray[] rays;
+    public final Intersection[] isects;
+    public final boolean[] hits;
+    
+    //raster position of each ray
+    public final int[] x, y;
+    
+    public int size = 0;
+    
+    public RayPacket(int capacity)
+    {
+        rays = new Ray[capacity];
+        isects = new Intersection[capacity];
+        hits = new boolean[capacity];
+        x = new int[capacity];
+        y = new int[capacity];
+    }
+    
+    public int capacity()
+    {
+        return rays.length;
+    }
+    
+    public boolean isFull()
+    {
+        return size == rays.length;
+    }
+    
+    public void add(Ray ray, int px, int py)
+    {
+        rays[size] = ray;
+        isects[size] = new Intersection();
+        hits[size] = false;
+        x[size] = px;
+        y[size] = py;
+        size++;
+    }
+    
+    public void clear()
+    {
+        size = 0;
+    }
+}
@@ -24,6 +24,7 @@
 package org.rt.core;
 
 import org.rt.core.accelerator.BoundingVolume;
+import org.rt.core.cache.BVHLevelCache;
 import org.rt.core.color.Color;
 import org.rt.core.coordinates.Point3f;
 import org.rt.core.coordinates.Vector3f;
@@ -33,6 +34,9 @@ import org.rt.core.math.FloatValue;
 import static org.rt.core.math.Geometry.mis2;
 import org.rt.core.math.Ray;
 import org.rt.core.math.Rng;
+import org.rt.core.primitive.Geometry;
+import org.rt.core.primitive.Instance;
+import org.rt.thread.BatchThread;
 import java.util.ArrayList;
 
 /**
@@ -45,6 +49,7 @@ public class Scene
     public AbstractAccelerator accelerator = null;
     public ArrayList<AbstractPrimitive> primitives = null;
     public LightCache lights = null;    
+    public BVHLevelCache cache = null;
     
     public Scene()
     {
@@ -54,11 +59,31 @@ public class Scene
     public void build()
     {
         for(AbstractPrimitive p : primitives)
+        {
+            if(p instanceof Geometry)
+                ((Geometry) p).setCache(cache);
+            else if(p instanceof Instance)
+                ((Instance) p).getGeometry().setCache(cache);
             p.build();
+        }
         
+        accelerator.setCache(cache);
         accelerator.build(primitives);
     }
     
+    //rebuild the top level only, e.g. after instances have been moved
+    public void rebuildTopLevel()
+    {
+        accelerator.build(primitives);
+    }
+    
+    //update the top level after primitives moved, cheaper than a rebuild for small edits
+    public void refit()
+    {
+        if(!accelerator.refit())
+            accelerator.build(primitives);
+    }
+    
     public ArrayList<AbstractPrimitive> getPrimitives()
     {
         return primitives;
@@ -90,10 +115,28 @@ public class Scene
         this.primitives = new ArrayList<>();
         this.primitives.clear();
         this.primitives.addAll(primitives);
-        this.accelerator = new BoundingVolume();
+        if(this.accelerator == null)
+            this.accelerator = new BoundingVolume();
         
     }
     
+    //select the accelerator before build(), e.g. new BoundingVolume(SplitMethod.SAH)
+    public void setAccelerator(AbstractAccelerator accelerator)
+    {
+        this.accelerator = accelerator;
+    }
+    
+    public AbstractAccelerator getAccelerator()
+    {
+        return accelerator;
+    }
+    
+    //trees built by build() are stored in and mapped from the cache
+    public void setCache(BVHLevelCache cache)
+    {
+        this.cache = cache;
+    }
+    
     public void setBackground(AbstractBackground background)
     {
         lights.setBackgroundLight(background);
@@ -106,6 +149,11 @@ public class Scene
         return hit;
     }
     
+    public void intersect(RayPacket packet)
+    {
+        accelerator.intersect(packet);
+    }
+    
     public boolean intersectP(Ray ray)
     {
         return accelerator.intersectP(ray);
@@ -116,6 +164,11 @@ public class Scene
         return accelerator.intersectP(ray);
     }
     
+    public boolean occluded(Ray ray, float maxDistance)
+    {
+        return accelerator.occluded(ray, maxDistance);
+    }
+    
     public BoundingBox getWorldBounds()
     {
         return accelerator.getWorldBounds();
@@ -138,6 +191,16 @@ public class Scene
     }    
     
     public Color directLightSampling(Intersection isect, FloatValue misWeight)
+    {
+        Ray rayToLight = new Ray();
+        Color contrib = sampleDirectLight(isect, misWeight, rayToLight);
+        if(contrib.isBlack() || occluded(rayToLight))
+            return new Color();
+        return contrib;
+    }
+    
+    //directLightSampling without the visibility test, rayToLight is the shadow ray of a non black contribution
+    public Color sampleDirectLight(Intersection isect, FloatValue misWeight, Ray rayToLight)
     {
         // We sample lights uniformly
         int   lightCount    = lights.getSize();
@@ -149,7 +212,6 @@ public class Scene
         
         //Sample light
         AbstractLight light = lights.getRandomLight();
-        Ray rayToLight = new Ray();
         Color radiance = light.illuminate(this, isect.dg.p, Rng.getPoint2f(), rayToLight, null);        
         if(radiance.isBlack())
             return new Color();
@@ -172,9 +234,6 @@ public class Scene
             weight = mis2(directPdfW * lightPickProb, bsdfPdfW.value);
         if(misWeight != null)
             misWeight.value = weight;
-                
-        if(occluded(rayToLight))
-            return new Color();
         
         //Calculate final color contribution
         Color contrib = radiance.mul(cosThetaOut.value / (lightPickProb * directPdfW))
@@ -219,17 +278,15 @@ public class Scene
             weight = mis2(bsdfPdfW.value, directPdfW * lightPickProb);   
         if(misWeight != null)
             misWeight.value = weight;
-                
-        if(occluded(rayToLight))
-            return new Color();
         
         //Calculate total power output        
         Color color = radiance.mul(bsdfFactor.mul(cosWo.value / bsdfPdfW.value));           
         return color;        
     }
     
+    //render workers, all cores
     public int getThreads()
     {
-        return 1;
+        return BatchThread.getCoreThreadNumber();
     }
 }
@@ -0,0 +1,145 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import org.rt.core.system.Timer;
+
+/**
+ *
+ * @author user
+ * 
+ * Build statistics of a bounding volume hierarchy. Accelerators feed every 
+ * node of the finished tree through addInterior and addLeaf, the SAH cost is
+ * accumulated relative to the surface area of the root.
+ */
+public class BVHStatistics 
+{
+    //leafs with this many or more primitives share the last histogram slot
+    public static final int HISTOGRAM_SIZE = 32;
+    
+    private final float traversalCost;
+    private final float intersectionCost;
+    private final float invRootArea;
+    
+    private int interiorNodes, leafNodes, primitives, maxDepth;
+    private double sahCost;
+    private long buildTime;
+    private final int[] leafHistogram = new int[HISTOGRAM_SIZE];
+    
+    public BVHStatistics(float rootArea, float traversalCost, float intersectionCost)
+    {
+        this.traversalCost = traversalCost;
+        this.intersectionCost = intersectionCost;
+        this.invRootArea = rootArea > 0 ? 1f / rootArea : 0;
+    }
+    
+    public void addInterior(int depth, float area)
+    {
+        interiorNodes++;
+        maxDepth = Math.max(maxDepth, depth);
+        sahCost += traversalCost * area * invRootArea;
+    }
+    
+    public void addLeaf(int depth, int nPrimitives, float area)
+    {
+        leafNodes++;
+        primitives += nPrimitives;
+        maxDepth = Math.max(maxDepth, depth);
+        sahCost += intersectionCost * nPrimitives * area * invRootArea;
+        leafHistogram[Math.min(nPrimitives, HISTOGRAM_SIZE - 1)]++;
+    }
+    
+    public void setBuildTime(long nanos)
+    {
+        this.buildTime = nanos;
+    }
+    
+    public long getBuildTime()
+    {
+        return buildTime;
+    }
+    
+    public double getSAHCost()
+    {
+        return sahCost;
+    }
+    
+    public int getNodeCount()
+    {
+        return interiorNodes + leafNodes;
+    }
+    
+    public int getInteriorCount()
+    {
+        return interiorNodes;
+    }
+    
+    public int getLeafCount()
+    {
+        return leafNodes;
+    }
+    
+    public int getPrimitiveCount()
+    {
+        return primitives;
+    }
+    
+    public int getMaxDepth()
+    {
+        return maxDepth;
+    }
+    
+    public float getAverageLeafSize()
+    {
+        return leafNodes == 0 ? 0 : (float) primitives / leafNodes;
+    }
+    
+    public int[] getLeafHistogram()
+    {
+        return leafHistogram.clone();
+    }
+    
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        builder.append("bvh statistics").append("\n");
+        builder.append("   sah cost      : ").append(String.format("%.4f", sahCost)).append("\n");
+        builder.append("   nodes         : ").append(getNodeCount()).append("\n");
+        builder.append("   interior      : ").append(interiorNodes).append("\n");
+        builder.append("   leafs         : ").append(leafNodes).append("\n");
+        builder.append("   primitives    : ").append(primitives).append("\n");
+        builder.append("   max depth     : ").append(maxDepth).append("\n");
+        builder.append("   avg leaf size : ").append(String.format("%.2f", getAverageLeafSize())).append("\n");
+        builder.append("   build time    : ").append(Timer.toString(buildTime)).append("\n");
+        builder.append("   leaf occupancy").append("\n");
+        for(int i = 0; i < HISTOGRAM_SIZE; i++)
+        {
+            if(leafHistogram[i] == 0) continue;
+            String label = i == HISTOGRAM_SIZE - 1 ? i + "+" : Integer.toString(i);
+            builder.append(String.format("      %4s : %d", label, leafHistogram[i])).append("\n");
+        }
+        return builder.toString();
+    }
+}
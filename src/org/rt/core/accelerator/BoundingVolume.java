@@ -26,12 +26,21 @@ package org.rt.core.accelerator;
 import org.rt.core.AbstractAccelerator;
 import org.rt.core.AbstractPrimitive;
 import org.rt.core.Intersection;
+import org.rt.core.RayPacket;
 import org.rt.core.coordinates.Point3f;
 import org.rt.core.math.BoundingBox;
 import org.rt.core.math.Ray;
+import org.rt.core.system.Timer;
+import org.rt.util.IntArray;
+import org.rt.util.Sorting;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.PriorityQueue;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  *
@@ -40,39 +49,121 @@ import java.util.Comparator;
 public final class BoundingVolume extends AbstractAccelerator
 {
     int maxPrimsInNode = 10;
+    SplitMethod splitMethod = SplitMethod.SAH;
+    
+    //SAH parameters
+    int nBins = 16;
+    float traversalCost = 0.125f;
+    float intersectionCost = 1f;
+    
+    //subtrees with more primitives are built as separate fork/join tasks
+    int parallelThreshold = 4096;
+    
+    //refit rebuilds once the SAH cost grows beyond this factor of the built tree
+    float rebuildThreshold = 1.5f;
+    double builtSAHCost = 0;
+    
+    //treelet restructuring passes run after every build, 0 disables them
+    int restructurePasses = 0;
+    int treeletSize = 7;
+    
+    //memory order of the flattened nodes, clusterSize nodes per SUBTREE_CLUSTERS treelet, see NodeLayout for its size in bytes
+    NodeLayout nodeLayout = NodeLayout.DEPTH_FIRST;
+    int clusterSize = 8;
+    
     ArrayList<AbstractPrimitive> primitives = null;
     LinearBVHNode [] nodes = null;
     BoundingBox bound = null;
+    BVHStatistics statistics = null;
     
     public BoundingVolume()
     {
         primitives = new ArrayList<>();
     }
     
+    public BoundingVolume(SplitMethod splitMethod)
+    {
+        this();
+        this.splitMethod = splitMethod;
+    }
+    
+    public BoundingVolume(SplitMethod splitMethod, int maxPrimsInNode)
+    {
+        this(splitMethod);
+        this.maxPrimsInNode = maxPrimsInNode;
+    }
+    
     public BoundingVolume(ArrayList<AbstractPrimitive> primitives)
     {        
         build(primitives);
     }
+    
+    public void setSAHParameters(int nBins, float traversalCost, float intersectionCost)
+    {
+        this.nBins = nBins;
+        this.traversalCost = traversalCost;
+        this.intersectionCost = intersectionCost;
+    }
+    
+    //Integer.MAX_VALUE builds on the calling thread only
+    public void setParallelThreshold(int parallelThreshold)
+    {
+        this.parallelThreshold = parallelThreshold;
+    }
+    
+    public void setRebuildThreshold(float rebuildThreshold)
+    {
+        this.rebuildThreshold = rebuildThreshold;
+    }
+
+    public void setRestructurePasses(int restructurePasses)
+    {
+        this.restructurePasses = restructurePasses;
+    }
+    
+    public void setMaxPrimsInNode(int maxPrimsInNode)
+    {
+        this.maxPrimsInNode = maxPrimsInNode;
+    }
+    
+    public void setTreeletSize(int treeletSize)
+    {
+        this.treeletSize = treeletSize;
+    }
+    
+    public void setNodeLayout(NodeLayout nodeLayout)
+    {
+        this.nodeLayout = nodeLayout;
+    }
+    
+    public void setClusterSize(int clusterSize)
+    {
+        if(clusterSize < 1)
+            throw new IllegalArgumentException("cluster size must be positive " +clusterSize);
+        this.clusterSize = clusterSize;
+    }
 
     @Override
     public void build(ArrayList<AbstractPrimitive> primitives) 
     {
+        Timer timer = new Timer();
+        timer.start();
+        
         //Initialize buildData array for primitives        
         this.primitives = primitives;
         
-        ArrayList<BVHPrimitiveInfo> buildData = new ArrayList<>();
-        for(int i = 0; i < primitives.size(); i++)
-        {            
-            BoundingBox bbox = primitives.get(i).getWorldBounds();            
-            buildData.add(new BVHPrimitiveInfo(i, bbox));
-        }
+        BVHPrimitiveInfo[] info = new BVHPrimitiveInfo[primitives.size()];
+        Arrays.parallelSetAll(info, i -> new BVHPrimitiveInfo(i, primitives.get(i).getWorldBounds()));
+        ArrayList<BVHPrimitiveInfo> buildData = new ArrayList<>(Arrays.asList(info));
         
-        //Recursively build BVH tree for primitives
-        int totalNodes[] = new int[1];
-        ArrayList<AbstractPrimitive> orderedPrims = new ArrayList<>();
-        BVHBuildNode root = recursiveBuild(buildData, 0, 
-                                           primitives.size(), totalNodes, 
-                                           orderedPrims);
+        //Recursively build BVH tree for primitives, large subtrees in parallel
+        AtomicInteger totalNodes = new AtomicInteger();
+        BVHBuildNode root = new BuildTask(buildData, 0, primitives.size(), totalNodes).invoke();
+        
+        //Leaves cover ranges of the partitioned buildData, order primitives likewise
+        ArrayList<AbstractPrimitive> orderedPrims = new ArrayList<>(primitives.size());
+        for(BVHPrimitiveInfo primInfo : buildData)
+            orderedPrims.add(primitives.get(primInfo.primitiveNumber));
         swap(primitives, orderedPrims);
         
         bound = root.bounds;
@@ -80,11 +171,229 @@ public final class BoundingVolume extends AbstractAccelerator
         //System.out.println("b Nodes " +totalNodes[0]);
         
         //Compute representation of depth-first traversal of BVH tree
-        nodes = new LinearBVHNode[totalNodes[0]];
-        for(int i = 0; i<totalNodes[0]; ++i)
+        nodes = new LinearBVHNode[totalNodes.get()];
+        for(int i = 0; i<nodes.length; ++i)
             nodes[i] = new LinearBVHNode();
         int offset[] = new int[1];
-        flattenBVHTree(root, offset);        
+        flattenBVHTree(root, offset);  
+        layoutNodes();
+        
+        timer.end();
+        statistics = new BVHStatistics(bound.surfaceArea(), traversalCost, intersectionCost);
+        collectStatistics(0, 0);
+        statistics.setBuildTime(timer.nanos());
+        builtSAHCost = statistics.getSAHCost();
+        
+        if(restructurePasses > 0)
+            restructure(restructurePasses);
+    }
+    
+    /**
+     * Lowers the SAH cost of the built tree by treelet restructuring, which 
+     * is cheaper than a full SAH build and mostly worthwhile after the fast
+     * MIDDLE split build with small leaves, since subtrees are merged into 
+     * leaves of up to maxPrimsInNode primitives where that lowers the cost. 
+     * Primitives are reordered, the time spent is added to the build time of 
+     * the statistics.
+     * 
+     * @param passes number of bottom up passes over the tree
+     */
+    public void restructure(int passes)
+    {
+        if(nodes == null || nodes.length < 3) return;
+        Timer timer = new Timer();
+        timer.start();
+        
+        //Rebuild linked tree from the flattened nodes and optimize it
+        BVHBuildNode root = unflatten(0);
+        TreeletRestructuring restructuring = new TreeletRestructuring(treeletSize, maxPrimsInNode, 
+                traversalCost, intersectionCost, parallelThreshold);
+        for(int i = 0; i < passes; i++)
+            restructuring.optimize(root);
+        
+        //Collapse cheap subtrees to leaves, order primitives like the leaves and flatten again
+        IntArray order = new IntArray();
+        int totalNodes = restructuring.collapse(root, order);
+        ArrayList<AbstractPrimitive> orderedPrims = new ArrayList<>(primitives.size());
+        for(int i = 0; i < order.size(); i++)
+            orderedPrims.add(primitives.get(order.get(i)));
+        swap(primitives, orderedPrims);
+        
+        nodes = new LinearBVHNode[totalNodes];
+        for(int i = 0; i<nodes.length; ++i)
+            nodes[i] = new LinearBVHNode();
+        int offset[] = new int[1];
+        flattenBVHTree(root, offset);
+        
+        //Copy bounds in depth first order, the linked tree left them scattered over the heap
+        for(LinearBVHNode node : nodes)
+            node.bounds = node.bounds.clone();
+        layoutNodes();
+        
+        timer.end();
+        long buildTime = statistics.getBuildTime();
+        statistics = new BVHStatistics(bound.surfaceArea(), traversalCost, intersectionCost);
+        collectStatistics(0, 0);
+        statistics.setBuildTime(buildTime + timer.nanos());
+        builtSAHCost = statistics.getSAHCost();
+    }
+    
+    //Reorders the depth first nodes to the node layout, allocating nodes and boxes in their new order
+    private void layoutNodes()
+    {
+        if(nodeLayout == NodeLayout.DEPTH_FIRST) return;
+        int[] order = nodeLayout == NodeLayout.SUBTREE_CLUSTERS ? clusterOrder() : vanEmdeBoasOrder();
+        int[] newIndex = new int[nodes.length];
+        for(int i = 0; i < order.length; i++)
+            newIndex[order[i]] = i;
+        
+        LinearBVHNode[] laidOut = new LinearBVHNode[nodes.length];
+        for(int i = 0; i < order.length; i++)
+        {
+            LinearBVHNode node = nodes[order[i]], copy = new LinearBVHNode();
+            copy.bounds = node.bounds.clone();
+            copy.nPrimitives = node.nPrimitives;
+            copy.primitivesOffset = node.primitivesOffset;
+            copy.axis = node.axis;
+            if(node.nPrimitives == 0)
+            {
+                copy.firstChildOffset = newIndex[node.firstChildOffset];
+                copy.secondChildOffset = newIndex[node.secondChildOffset];
+            }
+            laidOut[i] = copy;
+        }
+        nodes = laidOut;
+    }
+    
+    //node order of treelets grown by largest surface area, following treelets in depth first order
+    private int[] clusterOrder()
+    {
+        float[] area = new float[nodes.length];
+        for(int i = 0; i < nodes.length; i++)
+            area[i] = nodes[i].bounds.surfaceArea();
+        
+        int[] order = new int[nodes.length];
+        int count = 0;
+        ArrayDeque<Integer> roots = new ArrayDeque<>();
+        PriorityQueue<Integer> treelet = new PriorityQueue<>((a, b) -> Float.compare(area[b], area[a]));
+        roots.push(0);
+        while(!roots.isEmpty())
+        {
+            //Take the nodes with the largest area below the treelet root
+            treelet.add(roots.pop());
+            for(int size = 0; size < clusterSize && !treelet.isEmpty(); size++)
+            {
+                int nodeNum = treelet.poll();
+                order[count++] = nodeNum;
+                LinearBVHNode node = nodes[nodeNum];
+                if(node.nPrimitives == 0)
+                {
+                    treelet.add(node.firstChildOffset);
+                    treelet.add(node.secondChildOffset);
+                }
+            }
+            
+            //Remaining candidates root the next treelets, leftmost on top of the stack
+            int[] next = new int[treelet.size()];
+            for(int i = 0; i < next.length; i++)
+                next[i] = treelet.poll();
+            Arrays.sort(next);
+            for(int i = next.length - 1; i >= 0; i--)
+                roots.push(next[i]);
+        }
+        return order;
+    }
+    
+    private int[] vanEmdeBoasOrder()
+    {
+        //Height of every subtree, children come after their parent
+        int[] height = new int[nodes.length];
+        for(int i = nodes.length - 1; i >= 0; i--)
+        {
+            LinearBVHNode node = nodes[i];
+            height[i] = node.nPrimitives > 0 ? 1 : 
+                    1 + Math.max(height[node.firstChildOffset], height[node.secondChildOffset]);
+        }
+        
+        int[] order = new int[nodes.length];
+        vanEmdeBoas(0, height[0], order, new int[1]);
+        return order;
+    }
+    
+    //appends the subtree of nodeNum cut off below the given number of levels
+    private void vanEmdeBoas(int nodeNum, int levels, int[] order, int[] count)
+    {
+        if(levels == 1 || nodes[nodeNum].nPrimitives > 0)
+        {
+            order[count[0]++] = nodeNum;
+            return;
+        }
+        
+        //Top half of the levels first, then the subtrees hanging below it from left to right
+        int top = levels / 2;
+        vanEmdeBoas(nodeNum, top, order, count);
+        IntArray bottom = new IntArray();
+        collectLevel(nodeNum, top, bottom);
+        for(int i = 0; i < bottom.size(); i++)
+            vanEmdeBoas(bottom.get(i), levels - top, order, count);
+    }
+    
+    private void collectLevel(int nodeNum, int depth, IntArray level)
+    {
+        LinearBVHNode node = nodes[nodeNum];
+        if(depth == 0)
+            level.add(nodeNum);
+        else if(node.nPrimitives == 0)
+        {
+            collectLevel(node.firstChildOffset, depth - 1, level);
+            collectLevel(node.secondChildOffset, depth - 1, level);
+        }
+    }
+    
+    private BVHBuildNode unflatten(int nodeNum)
+    {
+        LinearBVHNode linearNode = nodes[nodeNum];
+        BVHBuildNode node = new BVHBuildNode();
+        if(linearNode.nPrimitives > 0)
+            node.initLeaf(linearNode.primitivesOffset, linearNode.nPrimitives, linearNode.bounds);
+        else
+            node.initInterior(linearNode.axis, unflatten(linearNode.firstChildOffset), unflatten(linearNode.secondChildOffset));
+        return node;
+    }
+    
+    @Override
+    public boolean refit()
+    {
+        if(nodes == null) return false;
+        Timer timer = new Timer();
+        timer.start();
+        
+        //Children follow their parent in every layout, update bounds bottom up
+        for(int i = nodes.length - 1; i >= 0; i--)
+        {
+            LinearBVHNode node = nodes[i];
+            BoundingBox bbox = new BoundingBox();
+            if(node.nPrimitives > 0)
+                for(int j = 0; j < node.nPrimitives; j++)
+                    bbox.include(primitives.get(node.primitivesOffset + j).getWorldBounds());
+            else
+            {
+                bbox.include(nodes[node.firstChildOffset].bounds);
+                bbox.include(nodes[node.secondChildOffset].bounds);
+            }
+            node.bounds = bbox;
+        }
+        bound = nodes[0].bounds;
+        
+        timer.end();
+        statistics = new BVHStatistics(bound.surfaceArea(), traversalCost, intersectionCost);
+        collectStatistics(0, 0);
+        statistics.setBuildTime(timer.nanos());
+        
+        //Tree quality degraded too much, build from scratch
+        if(statistics.getSAHCost() > rebuildThreshold * builtSAHCost)
+            build(primitives);
+        return true;
     }
     
     public int flattenBVHTree(BVHBuildNode node, int[] offset)
@@ -102,70 +411,138 @@ public final class BoundingVolume extends AbstractAccelerator
             //Creater interior flattened BVH node
             linearNode.axis = node.splitAxis;
             linearNode.nPrimitives = 0;
-            flattenBVHTree(node.children[0], offset);
+            linearNode.firstChildOffset = flattenBVHTree(node.children[0], offset);
             linearNode.secondChildOffset = flattenBVHTree(node.children[1], offset);
         }
         return myOffset;
     }
     
-    public BVHBuildNode recursiveBuild(ArrayList<BVHPrimitiveInfo> buildData, int start, int end, int[] totalNodes, ArrayList<AbstractPrimitive> orderedPrims)
+    public BVHBuildNode recursiveBuild(ArrayList<BVHPrimitiveInfo> buildData, int start, int end, AtomicInteger totalNodes, SAHBinning binning)
     {
-        totalNodes[0]++;
+        totalNodes.incrementAndGet();
         BVHBuildNode node = new BVHBuildNode();
         
-        //Compute bounds of all primitives in BVH node
-        BoundingBox bbox = new BoundingBox();
-        for(int i = start; i < end; ++i)
-            bbox = BoundingBox.union(bbox, buildData.get(i).bounds);
-        
         //Calculate number of primitives
         int nPrimitives = end - start;
+        boolean parallel = nPrimitives > parallelThreshold && nPrimitives > ParallelBinning.CHUNK_SIZE;
         
-        //Create leaf BVHBuildNode
-        if(nPrimitives  < 15)
-        {            
-            int firstPrimOffset = orderedPrims.size();
-            for(int i = start; i<end; ++i)
+        //Compute bounds of all primitives and of their centroids in BVH node
+        BoundingBox bbox, centroidBounds;
+        if(parallel)
+        {
+            BoundingBox[] b = ParallelBinning.bounds(i -> buildData.get(i).bounds, start, end);
+            bbox = b[0];
+            centroidBounds = b[1];
+        }
+        else
+        {
+            bbox = new BoundingBox();
+            centroidBounds = new BoundingBox();
+            for(int i = start; i < end; ++i)
             {
-                int primNum = buildData.get(i).primitiveNumber;
-                orderedPrims.add(primitives.get(primNum));
+                bbox.include(buildData.get(i).bounds);
+                centroidBounds.include(buildData.get(i).centroid);
             }
-            node.initLeaf(firstPrimOffset, nPrimitives, bbox);
         }
-        else
+        
+        //Create leaf BVHBuildNode
+        if(nPrimitives <= 1 || (splitMethod != SplitMethod.SAH && nPrimitives <= maxPrimsInNode))
+        {            
+            node.initLeaf(start, nPrimitives, bbox);
+            return node;
+        }
+        
+        //Choose split dimension dim
+        int dim = centroidBounds.maximumExtent();
+
+        if(centroidBounds.maximum.get(dim) == centroidBounds.minimum.get(dim))
         {
-            //Compute bound of primitive centroids, choose split dimension dim
-            BoundingBox centroidBounds = new BoundingBox();
-            for(int i = start; i<end; ++i)
-                centroidBounds = BoundingBox.union(centroidBounds, buildData.get(i).centroid);
-            int dim = centroidBounds.maximumExtent();
-            
-            //Partition primitives into two sets and build children
-            int mid = (start + end)/2;
-            if(centroidBounds.maximum.get(dim) == centroidBounds.minimum.get(dim))
+            //Create leaf BVHBuildNode
+            node.initLeaf(start, nPrimitives, bbox);
+            return node;
+        }
+        
+        //Partition primitives into two sets and build children
+        int mid = -1;
+        switch(splitMethod)
+        {
+            case MIDDLE:
             {
-                //Create leaf BVHBuildNode
-                int firstPrimOffset = orderedPrims.size();
-                for(int i = start; i<end; ++i)
+                //Partition primitives through node's midpoint
+                final int axis = dim;
+                final float pmid = centroidBounds.getCenter(axis);
+                mid = Sorting.partition(buildData, start, end, info -> info.centroid.get(axis) < pmid);
+                break;
+            }
+            case SAH:
+            {
+                //Partition primitives using approximate SAH, binning in parallel at the top levels
+                final SAHBinning split;
+                if(parallel)
+                    split = ParallelBinning.bin(i -> buildData.get(i).bounds, start, end, centroidBounds, 
+                                                nBins, traversalCost, intersectionCost);
+                else
                 {
-                    int primNum = buildData.get(i).primitiveNumber;
-                    orderedPrims.add(primitives.get(primNum));
-                    
+                    split = binning;
+                    split.reset(centroidBounds);
+                    for(int i = start; i<end; ++i)
+                        split.add(buildData.get(i).centroid, buildData.get(i).bounds);
                 }
-                node.initLeaf(firstPrimOffset, nPrimitives, bbox);
-                return node;
+                if(!split.findSplit(bbox.surfaceArea()))
+                    break;
+                
+                //Either create leaf or split primitives at selected SAH bin
+                if(nPrimitives <= maxPrimsInNode && split.getSplitCost() >= split.leafCost(nPrimitives))
+                {
+                    node.initLeaf(start, nPrimitives, bbox);
+                    return node;
+                }
+                
+                final int axis = dim = split.getSplitAxis();
+                mid = Sorting.partition(buildData, start, end, info -> split.isLeft(info.centroid.get(axis)));
+                break;
             }
-            
-            //Partition primitives into equally-sized subsets         
-           
-            sort(buildData, start, end, dim);         
-            node.initInterior(dim, recursiveBuild(buildData, start, mid,
-                                                  totalNodes, orderedPrims),
-                                   recursiveBuild(buildData, mid, end,
-                                                  totalNodes, orderedPrims));
-        }        
+            default:
+                break;
+        }
+        
+        //Partition primitives into equally-sized subsets
+        if(mid <= start || mid >= end)
+        {
+            mid = (start + end)/2;
+            sort(buildData, start, end, dim);
+        }
+        
+        //Build the left subtree as a separate task while this thread continues with the right one
+        BVHBuildNode left, right;
+        if(nPrimitives > parallelThreshold)
+        {
+            BuildTask leftTask = new BuildTask(buildData, start, mid, totalNodes);
+            leftTask.fork();
+            right = recursiveBuild(buildData, mid, end, totalNodes, binning);
+            left = leftTask.join();
+        }
+        else
+        {
+            left = recursiveBuild(buildData, start, mid, totalNodes, binning);
+            right = recursiveBuild(buildData, mid, end, totalNodes, binning);
+        }
+        node.initInterior(dim, left, right);
         return node;
     }
+    
+    private void collectStatistics(int nodeNum, int depth)
+    {
+        LinearBVHNode node = nodes[nodeNum];
+        if(node.nPrimitives > 0)
+            statistics.addLeaf(depth, node.nPrimitives, node.bounds.surfaceArea());
+        else
+        {
+            statistics.addInterior(depth, node.bounds.surfaceArea());
+            collectStatistics(node.firstChildOffset, depth + 1);
+            collectStatistics(node.secondChildOffset, depth + 1);
+        }
+    }
         
     public void swap(ArrayList<AbstractPrimitive> list1, ArrayList<AbstractPrimitive> list2)
     {
@@ -183,61 +560,130 @@ public final class BoundingVolume extends AbstractAccelerator
 
     @Override
     public boolean intersect(Ray r, Intersection isect) {
-        if(nodes == null) return false;
-        boolean hit = false;        
-        int[] dirIsNeg = r.dirIsNeg();
+        if(nodes == null || nodes[0].bounds.entryDistance(r) == Float.POSITIVE_INFINITY) return false;
+        boolean hit = false;
         
-        //Follow ray through BVH nodes to find primitive intersections
-        int todoOffset = 0, nodeNum = 0;
-        int[] todo = new int[64];
+        //Follow ray through BVH nodes nearest first, culling nodes behind the closest hit
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark(), nodeNum = 0;
         while (true)
         {
             LinearBVHNode node = nodes[nodeNum];
-            //Check ray against BVH Node
-            if(node.bounds.intersectP(r, null))
+            if(node.nPrimitives > 0)
+            {
+                //Intersect ray with primitives in leaf BVH node
+                for (int i = 0; i < node.nPrimitives; ++i)
+                    if(primitives.get(node.primitivesOffset+i).intersect(r, isect))
+                        hit = true;
+            }
+            else
+            {
+                //Compute entry distance of both children, put far node on todo stack and advance to near node
+                int near = node.firstChildOffset, far = node.secondChildOffset;
+                float tNear = nodes[near].bounds.entryDistance(r);
+                float tFar  = nodes[far].bounds.entryDistance(r);
+                if(tFar < tNear)
+                {
+                    int swapNode = near; near = far; far = swapNode;
+                    float swapT = tNear; tNear = tFar; tFar = swapT;
+                }
+                if(tFar != Float.POSITIVE_INFINITY)
+                    todo.push(far, tFar);
+                if(tNear != Float.POSITIVE_INFINITY)
+                {
+                    nodeNum = near;
+                    continue;
+                }
+            }
+            
+            //Pop nodes until one is entered before the closest hit found so far
+            nodeNum = -1;
+            while(todo.hasNext(todoBase))
+            {
+                int next = todo.pop();
+                if(todo.distance() <= r.getMax())
+                {
+                    nodeNum = next;
+                    break;
+                }
+            }
+            if(nodeNum < 0) break;
+        }
+        return hit;
+    }
+
+    /**
+     * Packet traversal. The packet descends the tree as a whole, each node is 
+     * entered with the index of the first ray that may still hit it, since rays 
+     * that missed an ancestor miss the node as well. A node is culled once no 
+     * ray from that index on hits its bounds, children are ordered by the 
+     * direction of the first active ray.
+     */
+    @Override
+    public void intersect(RayPacket packet)
+    {
+        int n = packet.size;
+        for(int i = 0; i < n; i++)
+            packet.hits[i] = false;
+        if(nodes == null || n == 0) return;
+        
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark(), nodeNum = 0, first = 0;
+        while(true)
+        {
+            LinearBVHNode node = nodes[nodeNum];
+            
+            //Find first active ray that hits the node
+            while(first < n && node.bounds.entryDistance(packet.rays[first]) == Float.POSITIVE_INFINITY)
+                first++;
+            
+            if(first < n)
             {
                 if(node.nPrimitives > 0)
                 {
-                    //Intersect ray with primitives in leaf BVH node
-                    for (int i = 0; i < node.nPrimitives; ++i)
-                        if(primitives.get(node.primitivesOffset+i).intersect(r, isect))
-                            hit = true;
-                    if(todoOffset == 0) break;
-                    nodeNum = todo[--todoOffset];
+                    //Intersect active rays that hit the leaf with its primitives
+                    for(int r = first; r < n; r++)
+                    {
+                        Ray ray = packet.rays[r];
+                        if(r > first && node.bounds.entryDistance(ray) == Float.POSITIVE_INFINITY)
+                            continue;
+                        for (int i = 0; i < node.nPrimitives; ++i)
+                            if(primitives.get(node.primitivesOffset+i).intersect(ray, packet.isects[r]))
+                                packet.hits[r] = true;
+                    }
                 }
                 else
                 {
-                    //Put far BVH node on todo stack, advance to near node
-                    if (dirIsNeg[node.axis] == 1) 
+                    //Put far BVH node on todo stack with the first active ray, advance to near node
+                    if (packet.rays[first].sign[node.axis] == 1) 
                     {
-                        todo[todoOffset++] = nodeNum + 1;
+                        todo.push(node.firstChildOffset);
                         nodeNum = node.secondChildOffset;
                     }
                     else 
                     {
-                        todo[todoOffset++] = node.secondChildOffset;
-                        nodeNum = nodeNum + 1;
+                        todo.push(node.secondChildOffset);
+                        nodeNum = node.firstChildOffset;
                     }
-                }                
-            }
-            else
-            {
-                if (todoOffset == 0) break;
-                nodeNum = todo[--todoOffset];                
+                    todo.push(first);
+                    continue;
+                }
             }
+            
+            if(!todo.hasNext(todoBase)) break;
+            first = todo.pop();
+            nodeNum = todo.pop();
         }
-        return hit;
     }
 
     @Override
     public boolean intersectP(Ray r) {
         if(nodes == null) return false;
-        boolean hit = false;        
-        int[] dirIsNeg = r.dirIsNeg();
+        int[] dirIsNeg = r.sign;
         
-        //Follow ray through BVH nodes to find primitive intersections
-        int todoOffset = 0, nodeNum = 0;
-        int[] todo = new int[64];
+        //Follow ray through BVH nodes until the first occluder is found
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark(), nodeNum = 0;
         while (true)
         {
             LinearBVHNode node = nodes[nodeNum];
@@ -246,35 +692,38 @@ public final class BoundingVolume extends AbstractAccelerator
             {
                 if(node.nPrimitives > 0)
                 {
-                    //Intersect ray with primitives in leaf BVH node
+                    //Any hit within the ray extent occludes, no need to find the closest one
                     for (int i = 0; i < node.nPrimitives; ++i)
                         if(primitives.get(node.primitivesOffset+i).intersectP(r))
-                            hit = true;
-                    if(todoOffset == 0) break;
-                    nodeNum = todo[--todoOffset];
+                        {
+                            todo.release(todoBase);
+                            return true;
+                        }
+                    if(!todo.hasNext(todoBase)) break;
+                    nodeNum = todo.pop();
                 }
                 else
                 {
                     //Put far BVH node on todo stack, advance to near node
                     if (dirIsNeg[node.axis] == 1) 
                     {
-                        todo[todoOffset++] = nodeNum + 1;
+                        todo.push(node.firstChildOffset);
                         nodeNum = node.secondChildOffset;
                     }
                     else 
                     {
-                        todo[todoOffset++] = node.secondChildOffset;
-                        nodeNum = nodeNum + 1;
+                        todo.push(node.secondChildOffset);
+                        nodeNum = node.firstChildOffset;
                     }
                 }                
             }
             else
             {
-                if (todoOffset == 0) break;
-                nodeNum = todo[--todoOffset];                
+                if(!todo.hasNext(todoBase)) break;
+                nodeNum = todo.pop();
             }
         }
-        return hit;
+        return false;
     }
 
     @Override
@@ -282,16 +731,50 @@ public final class BoundingVolume extends AbstractAccelerator
         return bound;
     }
     
+    @Override
+    public BVHStatistics getStatistics() {
+        return statistics;
+    }
+    
+    //builds the subtree over [start, end) with its own binning buffers
+    @SuppressWarnings("serial")
+    class BuildTask extends RecursiveTask<BVHBuildNode>
+    {
+        final ArrayList<BVHPrimitiveInfo> buildData;
+        final int start, end;
+        final AtomicInteger totalNodes;
+        
+        BuildTask(ArrayList<BVHPrimitiveInfo> buildData, int start, int end, AtomicInteger totalNodes)
+        {
+            this.buildData = buildData;
+            this.start = start;
+            this.end = end;
+            this.totalNodes = totalNodes;
+        }
+        
+        @Override
+        protected BVHBuildNode compute() 
+        {
+            SAHBinning binning = new SAHBinning(nBins, traversalCost, intersectionCost);
+            return recursiveBuild(buildData, start, end, totalNodes, binning);
+        }
+    }
+    
     public class BVHBuildNode
     {
         BoundingBox bounds;
         BVHBuildNode children[] = new BVHBuildNode[2];
         int splitAxis, firstPrimOffset, nPrimitives;
         
+        //primitives in the subtree and its unnormalized SAH cost, used by restructuring
+        int totalPrimitives;
+        float cost;
+        
         public void initLeaf(int first, int n, BoundingBox b)
         {
             firstPrimOffset = first;
             nPrimitives = n;
+            totalPrimitives = n;
             //System.out.println(n);
             bounds = b;
         }
@@ -303,6 +786,7 @@ public final class BoundingVolume extends AbstractAccelerator
             bounds = BoundingBox.union(c0.bounds, c1.bounds);
             splitAxis = axis;
             nPrimitives = 0;
+            totalPrimitives = c0.totalPrimitives + c1.totalPrimitives;
         }
     }
     
@@ -325,6 +809,7 @@ public final class BoundingVolume extends AbstractAccelerator
         BoundingBox bounds;
         
         int primitivesOffset;  //leaf
+        int firstChildOffset;  //interior
         int secondChildOffset; //interior
         
         int nPrimitives;        // 0 -> interior node
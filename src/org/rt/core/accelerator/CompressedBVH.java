@@ -0,0 +1,353 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import org.rt.core.AbstractAccelerator;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.Intersection;
+import org.rt.core.cache.BVHLevelCache;
+import org.rt.core.math.BoundingBox;
+import org.rt.core.math.Ray;
+import org.rt.core.system.Timer;
+
+/**
+ *
+ * @author user
+ * 
+ * Bounding volume hierarchy with compressed nodes. A binary SAH tree is built 
+ * with FlatBVH and every interior node is packed into a 40 byte record of a 
+ * ByteBuffer, holding the boxes of both children as 8 bit offsets on a grid
+ * spanning the node's own box. Grid cells are powers of two per axis, and 
+ * offsets are rounded outwards and checked after decoding, so the decoded 
+ * child boxes always contain the exact ones. Leaves have no record of their 
+ * own, they are referenced from their parent.
+ * 
+ * Node layout (byte offsets into record i at 40 * i, native byte order)
+ * 
+ *      0..11   float   grid origin xyz, minimum of the node box
+ *      12..14  byte    biased exponent of the grid cell size per axis
+ *      15      byte    split axis
+ *      16..21  byte    child 0 quantized minimum xyz, maximum xyz
+ *      22..27  byte    child 1 quantized minimum xyz, maximum xyz
+ *      28..35  int     child 0, child 1: record index, or first primitive of a leaf
+ *      36..37  byte    child 0, child 1: number of primitives, 0 for records
+ * 
+ * A child referencing record 0 with no primitives is empty, this only occurs 
+ * when the whole tree is a single leaf.
+ * 
+ * A record is about a third of a LinearBVHNode with its BoundingBox and two 
+ * Point3f, and there is one record per interior node only. Leaves are pushed 
+ * on the traversal stack as ~(2 * i + child).
+ */
+public class CompressedBVH extends AbstractAccelerator
+{
+    static final int NODE_SIZE = 40;
+    
+    int maxPrimsInNode = 4;
+    
+    //SAH parameters of the binary build
+    int nBins = 16;
+    float traversalCost = 0.125f;
+    float intersectionCost = 1f;
+    
+    AbstractPrimitive[] primitives = null;
+    ByteBuffer nodes = null;
+    int nodeCount = 0;
+    
+    BoundingBox bound = null;
+    long buildTime = 0;
+    BVHLevelCache cache = null;
+    
+    public CompressedBVH()
+    {
+        
+    }
+    
+    //leaf sizes are stored in a byte
+    public CompressedBVH(int maxPrimsInNode)
+    {
+        if(maxPrimsInNode < 1 || maxPrimsInNode > 255)
+            throw new IllegalArgumentException("leaf size must be in [1, 255] " +maxPrimsInNode);
+        this.maxPrimsInNode = maxPrimsInNode;
+    }
+    
+    public void setSAHParameters(int nBins, float traversalCost, float intersectionCost)
+    {
+        this.nBins = nBins;
+        this.traversalCost = traversalCost;
+        this.intersectionCost = intersectionCost;
+    }
+    
+    //caches the binary tree, compressing it is cheap
+    @Override
+    public void setCache(BVHLevelCache cache)
+    {
+        this.cache = cache;
+    }
+    
+    @Override
+    public void build(ArrayList<AbstractPrimitive> prims) 
+    {
+        Timer timer = new Timer();
+        timer.start();
+        
+        //Build binary tree to compress
+        FlatBVH binary = new FlatBVH(maxPrimsInNode);
+        binary.setSAHParameters(nBins, traversalCost, intersectionCost);
+        binary.setCache(cache);
+        binary.build(prims);
+        bound = binary.getWorldBounds();
+        
+        //Store primitives in leaf order
+        primitives = new AbstractPrimitive[binary.primIndex.length];
+        for(int i = 0; i < primitives.length; i++)
+            primitives[i] = binary.primitives[binary.primIndex[i]];
+        
+        //One record per interior node, a tree that is a single leaf gets a record with an empty child
+        int leaves = (binary.nodeCount + 1) / 2;
+        nodeCount = 0;
+        nodes = ByteBuffer.allocate(NODE_SIZE * Math.max(1, leaves - 1)).order(ByteOrder.nativeOrder());
+        if(binary.nodeCount == 1)
+            compressLeafRoot(binary);
+        else if(binary.nodeCount > 1)
+            compress(binary, 0);
+        
+        timer.end();
+        buildTime = timer.nanos();
+    }
+    
+    //writes the record of binary interior node b and its subtree, returns its index
+    private int compress(FlatBVH binary, int b)
+    {
+        int record = nodeCount++;
+        int o = NODE_SIZE * record;
+        float[] nb = binary.nodeBounds;
+        
+        //Grid over the node box
+        for(int axis = 0; axis < 3; axis++)
+        {
+            float origin = nb[6 * b + axis];
+            nodes.putFloat(o + 4 * axis, origin);
+            nodes.put(o + 12 + axis, (byte) exponent(origin, nb[6 * b + 3 + axis]));
+        }
+        nodes.put(o + 15, (byte) (binary.nodeData[2 * b + 1] & 3));
+        
+        int[] child = {b + 1, binary.nodeData[2 * b]};
+        for(int c = 0; c < 2; c++)
+        {
+            int n = child[c];
+            for(int axis = 0; axis < 3; axis++)
+            {
+                float origin = nodes.getFloat(o + 4 * axis);
+                float s = scale(nodes.get(o + 12 + axis) & 0xff);
+                float min = nb[6 * n + axis], max = nb[6 * n + 3 + axis];
+                
+                //Round outwards, then fix float rounding of the decoded planes
+                int qmin = clamp((int) Math.floor((min - origin) / s));
+                int qmax = clamp((int) Math.ceil((max - origin) / s));
+                while(qmin > 0 && origin + qmin * s > min) qmin--;
+                while(qmax < 255 && origin + qmax * s < max) qmax++;
+                nodes.put(o + 16 + 6 * c + axis, (byte) qmin);
+                nodes.put(o + 19 + 6 * c + axis, (byte) qmax);
+            }
+            
+            int count = binary.nodeData[2 * n + 1] >>> 2;
+            nodes.put(o + 36 + c, (byte) count);
+            nodes.putInt(o + 28 + 4 * c, count > 0 ? binary.nodeData[2 * n] : compress(binary, n));
+        }
+        return record;
+    }
+    
+    private void compressLeafRoot(FlatBVH binary)
+    {
+        nodeCount = 1;
+        for(int axis = 0; axis < 3; axis++)
+        {
+            float origin = binary.nodeBounds[axis];
+            nodes.putFloat(4 * axis, origin);
+            nodes.put(12 + axis, (byte) exponent(origin, binary.nodeBounds[3 + axis]));
+            nodes.put(16 + axis, (byte) 0);
+            nodes.put(19 + axis, (byte) 255);
+        }
+        nodes.putInt(28, binary.nodeData[0]);
+        nodes.put(36, (byte) (binary.nodeData[1] >>> 2));
+        
+        //Second child is empty, the root record is never referenced as a child
+        nodes.putInt(32, 0);
+        nodes.put(37, (byte) 0);
+    }
+    
+    //biased exponent of the smallest power of two cell size covering [origin, max] with 255 cells
+    private static int exponent(float origin, float max)
+    {
+        int exponent = Math.max(1, Math.min(254, Math.getExponent((max - origin) / 255f) + 127));
+        while(exponent < 254 && origin + 255 * scale(exponent) < max)
+            exponent++;
+        return exponent;
+    }
+    
+    private static float scale(int biasedExponent)
+    {
+        return Float.intBitsToFloat(biasedExponent << 23);
+    }
+    
+    private static int clamp(int q)
+    {
+        return q < 0 ? 0 : q > 255 ? 255 : q;
+    }
+    
+    /**
+     * Decodes both child boxes of record i, tests the ray against them and 
+     * pushes every child that is hit together with its entry distance.
+     * 
+     * @return number of pushed children
+     */
+    private int pushChildren(int i, Ray r, TraversalStack todo)
+    {
+        ByteBuffer nodes = this.nodes;
+        int o = NODE_SIZE * i;
+        float ox = nodes.getFloat(o), oy = nodes.getFloat(o + 4), oz = nodes.getFloat(o + 8);
+        float sx = scale(nodes.get(o + 12) & 0xff), sy = scale(nodes.get(o + 13) & 0xff), sz = scale(nodes.get(o + 14) & 0xff);
+        
+        //Ray relative to the grid origin, near and far planes picked by direction sign
+        int[] sign = r.sign;
+        float rx = r.o.x - ox, ry = r.o.y - oy, rz = r.o.z - oz;
+        float idx = r.inv_d.x, idy = r.inv_d.y, idz = r.inv_d.z;
+        float tMin = r.getMin(), tMax = r.getMax();
+        int nearX = 3 * sign[0], nearY = 1 + 3 * sign[1], nearZ = 2 + 3 * sign[2];
+        int farX = 3 - nearX, farY = 5 - nearY, farZ = 7 - nearZ;
+        
+        int hits = 0;
+        for(int c = 0; c < 2; c++)
+        {
+            int count = nodes.get(o + 36 + c), child = nodes.getInt(o + 28 + 4 * c);
+            if(count == 0 && child == 0)
+                continue;
+            
+            int q = o + 16 + 6 * c;
+            float t0 = tMin, t1 = tMax;
+            float tNear = ((nodes.get(q + nearX) & 0xff) * sx - rx) * idx, tFar = ((nodes.get(q + farX) & 0xff) * sx - rx) * idx;
+            if(tNear > t0) t0 = tNear;
+            if(tFar < t1) t1 = tFar;
+            tNear = ((nodes.get(q + nearY) & 0xff) * sy - ry) * idy; tFar = ((nodes.get(q + farY) & 0xff) * sy - ry) * idy;
+            if(tNear > t0) t0 = tNear;
+            if(tFar < t1) t1 = tFar;
+            tNear = ((nodes.get(q + nearZ) & 0xff) * sz - rz) * idz; tFar = ((nodes.get(q + farZ) & 0xff) * sz - rz) * idz;
+            if(tNear > t0) t0 = tNear;
+            if(tFar < t1) t1 = tFar;
+            if(t0 <= t1)
+            {
+                todo.push(count != 0 ? ~(2 * i + c) : child, t0);
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public boolean intersect(Ray r, Intersection isect) 
+    {
+        if(nodeCount == 0) return false;
+        boolean hit = false;
+        
+        //Visit children nearest first, culling entries behind the closest hit
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark();
+        todo.push(0, r.getMin());
+        while(todo.hasNext(todoBase))
+        {
+            int node = todo.pop();
+            if(todo.distance() > r.getMax())
+                continue;
+            
+            if(node < 0)
+            {
+                //Intersect ray with primitives in leaf
+                int slot = ~node;
+                int o = NODE_SIZE * (slot >> 1);
+                int first = nodes.getInt(o + 28 + 4 * (slot & 1)), n = nodes.get(o + 36 + (slot & 1)) & 0xff;
+                for(int i = 0; i < n; ++i)
+                    if(primitives[first + i].intersect(r, isect))
+                        hit = true;
+            }
+            else
+                todo.sortTop(pushChildren(node, r, todo));
+        }
+        return hit;
+    }
+
+    @Override
+    public boolean intersectP(Ray r) 
+    {
+        if(nodeCount == 0) return false;
+        
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark();
+        todo.push(0, r.getMin());
+        while(todo.hasNext(todoBase))
+        {
+            int node = todo.pop();
+            if(node < 0)
+            {
+                //Any hit within the ray extent occludes
+                int slot = ~node;
+                int o = NODE_SIZE * (slot >> 1);
+                int first = nodes.getInt(o + 28 + 4 * (slot & 1)), n = nodes.get(o + 36 + (slot & 1)) & 0xff;
+                for(int i = 0; i < n; ++i)
+                    if(primitives[first + i].intersectP(r))
+                    {
+                        todo.release(todoBase);
+                        return true;
+                    }
+            }
+            else
+                pushChildren(node, r, todo);
+        }
+        return false;
+    }
+
+    @Override
+    public BoundingBox getWorldBounds() {
+        return bound;
+    }
+    
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+    
+    public long getBuildTime()
+    {
+        return buildTime;
+    }
+    
+    //bytes held by node records
+    public long getMemoryUsage()
+    {
+        return nodes == null ? 0 : nodes.capacity();
+    }
+}
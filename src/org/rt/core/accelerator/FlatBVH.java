@@ -0,0 +1,632 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import org.rt.core.AbstractAccelerator;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.Intersection;
+import org.rt.core.RayPacket;
+import org.rt.core.cache.BVHLevelCache;
+import org.rt.core.cache.PrimitiveListCache;
+import org.rt.core.math.BoundingBox;
+import org.rt.core.math.Ray;
+import org.rt.core.system.Timer;
+
+/**
+ *
+ * @author user
+ * 
+ * Bounding volume hierarchy stored as structure of arrays. Node bounds, child 
+ * offsets, split axis and primitive counts live in contiguous float[]/int[]
+ * arrays instead of node objects, and leafs reference primitives through an 
+ * int[] permutation so the primitive list passed to build is left untouched.
+ * 
+ * Node layout (depth first, left child directly follows its parent)
+ * 
+ *      nodeBounds[6 * i + 0..2]  minimum xyz
+ *      nodeBounds[6 * i + 3..5]  maximum xyz
+ *      nodeData  [2 * i]         leaf: first index in primIndex, interior: second child
+ *      nodeData  [2 * i + 1]     (nPrimitives << 2) | axis, nPrimitives == 0 for interior nodes
+ * 
+ */
+public class FlatBVH extends AbstractAccelerator
+{
+    int maxPrimsInNode = 4;
+    
+    //SAH parameters
+    int nBins = 16;
+    float traversalCost = 0.125f;
+    float intersectionCost = 1f;
+    
+    AbstractPrimitive[] primitives = null;
+    int[] primIndex = null;
+    
+    float[] nodeBounds = null;
+    int[] nodeData = null;
+    int nodeCount = 0;
+    
+    BoundingBox bound = null;
+    BVHStatistics statistics = null;
+    BVHLevelCache cache = null;
+    
+    //build only data
+    float[] primBounds = null;
+    float[] centroids = null;
+    
+    public FlatBVH()
+    {
+        
+    }
+    
+    public FlatBVH(int maxPrimsInNode)
+    {
+        this.maxPrimsInNode = maxPrimsInNode;
+    }
+    
+    public void setSAHParameters(int nBins, float traversalCost, float intersectionCost)
+    {
+        this.nBins = nBins;
+        this.traversalCost = traversalCost;
+        this.intersectionCost = intersectionCost;
+    }
+
+    //trees are stored in and mapped from the cache when set
+    @Override
+    public void setCache(BVHLevelCache cache)
+    {
+        this.cache = cache;
+    }
+
+    @Override
+    public void build(ArrayList<AbstractPrimitive> prims) 
+    {
+        Timer timer = new Timer();
+        timer.start();
+        
+        primitives = prims.toArray(new AbstractPrimitive[prims.size()]);
+        
+        //Map a cached tree of identical geometry, build and store it otherwise
+        long key = cache != null ? cacheKey(prims) : 0;
+        if(cache == null || !read(cache.load(getCacheKind(), key)))
+        {
+            buildTree();
+            if(cache != null)
+                cache.store(getCacheKind(), key, getCacheSize(), this::write);
+        }
+        
+        if(nodeCount == 0)
+        {
+            bound = new BoundingBox();
+            statistics = null;
+            return;
+        }
+        bound = new BoundingBox(nodeBounds[0], nodeBounds[1], nodeBounds[2], 
+                                nodeBounds[3], nodeBounds[4], nodeBounds[5]);
+        
+        timer.end();
+        statistics = new BVHStatistics(bound.surfaceArea(), traversalCost, intersectionCost);
+        collectStatistics(0, 0);
+        statistics.setBuildTime(timer.nanos());
+    }
+    
+    //fills primIndex and the node arrays from primitives
+    void buildTree()
+    {
+        int n = primitives.length;
+        primIndex = new int[n];
+        
+        //Initialize primitive bounds and centroids
+        primBounds = new float[6 * n];
+        centroids = new float[3 * n];
+        for(int i = 0; i < n; i++)
+        {
+            BoundingBox b = primitives[i].getWorldBounds();
+            primBounds[6 * i    ] = b.minimum.x;
+            primBounds[6 * i + 1] = b.minimum.y;
+            primBounds[6 * i + 2] = b.minimum.z;
+            primBounds[6 * i + 3] = b.maximum.x;
+            primBounds[6 * i + 4] = b.maximum.y;
+            primBounds[6 * i + 5] = b.maximum.z;
+            centroids[3 * i    ] = 0.5f * (b.minimum.x + b.maximum.x);
+            centroids[3 * i + 1] = 0.5f * (b.minimum.y + b.maximum.y);
+            centroids[3 * i + 2] = 0.5f * (b.minimum.z + b.maximum.z);
+            primIndex[i] = i;
+        }
+        
+        if(n == 0)
+        {
+            nodeBounds = new float[0];
+            nodeData = new int[0];
+            nodeCount = 0;
+            primBounds = centroids = null;
+            return;
+        }
+        
+        //Recursively build BVH tree for primitives
+        int[] totalNodes = new int[1];
+        BuildNode root = recursiveBuild(0, n, totalNodes, new SAHBinning(nBins, traversalCost, intersectionCost));
+        
+        //Compute representation of depth-first traversal of BVH tree
+        nodeCount = totalNodes[0];
+        nodeBounds = new float[6 * nodeCount];
+        nodeData = new int[2 * nodeCount];
+        flattenBVHTree(root, new int[1]);
+        
+        primBounds = centroids = null;
+    }
+    
+    String getCacheKind()
+    {
+        return "flatbvh";
+    }
+    
+    long cacheKey(ArrayList<AbstractPrimitive> prims)
+    {
+        return PrimitiveListCache.hash(PrimitiveListCache.hash(prims), 
+                maxPrimsInNode, nBins, traversalCost, intersectionCost);
+    }
+    
+    //primitive order, node count, node bounds and node data
+    long getCacheSize()
+    {
+        return PrimitiveListCache.orderSize(primIndex.length) + 4 + 4L * nodeBounds.length + 4L * nodeData.length;
+    }
+    
+    void write(ByteBuffer buffer)
+    {
+        PrimitiveListCache.putOrder(buffer, primIndex);
+        buffer.putInt(nodeCount);
+        buffer.asFloatBuffer().put(nodeBounds);
+        buffer.position(buffer.position() + 4 * nodeBounds.length);
+        buffer.asIntBuffer().put(nodeData);
+    }
+    
+    //false if the buffer is null or does not hold a valid tree over the current primitives
+    boolean read(ByteBuffer buffer)
+    {
+        if(buffer == null)
+            return false;
+        
+        int[] order = PrimitiveListCache.getOrder(buffer);
+        if(order == null || order.length != primitives.length || buffer.remaining() < 4)
+            return false;
+        int count = buffer.getInt();
+        if(count < 0 || 32L * count != buffer.remaining())
+            return false;
+        
+        float[] bounds = new float[6 * count];
+        int[] data = new int[2 * count];
+        buffer.asFloatBuffer().get(bounds);
+        buffer.position(buffer.position() + 4 * bounds.length);
+        buffer.asIntBuffer().get(data);
+        
+        //Reject indices outside of the primitive list or the node arrays
+        for(int p : order)
+            if(p < 0 || p >= primitives.length)
+                return false;
+        for(int i = 0; i < count; i++)
+        {
+            int nPrimitives = data[2 * i + 1] >>> 2;
+            if(nPrimitives > 0 ? data[2 * i] < 0 || data[2 * i] + nPrimitives > order.length 
+                               : data[2 * i] <= i + 1 || data[2 * i] >= count)
+                return false;
+        }
+        
+        primIndex = order;
+        nodeBounds = bounds;
+        nodeData = data;
+        nodeCount = count;
+        return true;
+    }
+    
+    private BuildNode recursiveBuild(int start, int end, int[] totalNodes, SAHBinning binning)
+    {
+        totalNodes[0]++;
+        BuildNode node = new BuildNode();
+        
+        //Compute bounds of primitives and of their centroids
+        float[] cb = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                      Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for(int i = start; i < end; i++)
+        {
+            int p = primIndex[i];
+            include(node.bounds, primBounds, 6 * p, 6 * p + 3);
+            include(cb, centroids, 3 * p, 3 * p);
+        }
+        
+        int nPrimitives = end - start;
+        if(nPrimitives <= 1)
+            return node.initLeaf(start, nPrimitives);
+        
+        //Evaluate SAH split over all axes
+        binning.reset(cb[0], cb[1], cb[2], cb[3], cb[4], cb[5]);
+        for(int i = start; i < end; i++)
+        {
+            int p = primIndex[i];
+            int o = 6 * p;
+            binning.add(centroids[3 * p], centroids[3 * p + 1], centroids[3 * p + 2],
+                        primBounds[o], primBounds[o + 1], primBounds[o + 2], 
+                        primBounds[o + 3], primBounds[o + 4], primBounds[o + 5]);
+        }
+        
+        //All centroids coincide, no split plane can separate them
+        if(!binning.findSplit(area(node.bounds)))
+            return node.initLeaf(start, nPrimitives);
+        
+        if(nPrimitives <= maxPrimsInNode && binning.getSplitCost() >= binning.leafCost(nPrimitives))
+            return node.initLeaf(start, nPrimitives);
+        
+        //Partition primitive indices on the selected bin boundary
+        int axis = binning.getSplitAxis();
+        int mid = start;
+        for(int i = start; i < end; i++)
+        {
+            int p = primIndex[i];
+            if(binning.isLeft(centroids[3 * p + axis]))
+            {
+                primIndex[i] = primIndex[mid];
+                primIndex[mid++] = p;
+            }
+        }
+        
+        return node.initInterior(axis, 
+                recursiveBuild(start, mid, totalNodes, binning),
+                recursiveBuild(mid, end, totalNodes, binning));
+    }
+    
+    int flattenBVHTree(BuildNode node, int[] offset)
+    {
+        int myOffset = offset[0]++;
+        System.arraycopy(node.bounds, 0, nodeBounds, 6 * myOffset, 6);
+        if(node.nPrimitives > 0)
+        {
+            nodeData[2 * myOffset] = node.firstPrimOffset;
+            nodeData[2 * myOffset + 1] = node.nPrimitives << 2;
+        }
+        else
+        {
+            flattenBVHTree(node.children[0], offset);
+            nodeData[2 * myOffset] = flattenBVHTree(node.children[1], offset);
+            nodeData[2 * myOffset + 1] = node.splitAxis;
+        }
+        return myOffset;
+    }
+    
+    void collectStatistics(int nodeNum, int depth)
+    {
+        float area = SAHBinning.area(
+                nodeBounds[6 * nodeNum    ], nodeBounds[6 * nodeNum + 1], nodeBounds[6 * nodeNum + 2],
+                nodeBounds[6 * nodeNum + 3], nodeBounds[6 * nodeNum + 4], nodeBounds[6 * nodeNum + 5]);
+        int nPrimitives = nodeData[2 * nodeNum + 1] >>> 2;
+        if(nPrimitives > 0)
+            statistics.addLeaf(depth, nPrimitives, area);
+        else
+        {
+            statistics.addInterior(depth, area);
+            collectStatistics(nodeNum + 1, depth + 1);
+            collectStatistics(nodeData[2 * nodeNum], depth + 1);
+        }
+    }
+    
+    //slab test of node bounds, near/far planes picked by the ray direction signs
+    final boolean intersectBox(int nodeNum, Ray r)
+    {
+        int o = 6 * nodeNum;
+        int[] sign = r.sign;
+        float t0 = r.getMin(), t1 = r.getMax();
+        
+        float tNear = (nodeBounds[o +     3 * sign[0]] - r.o.x) * r.inv_d.x;
+        float tFar  = (nodeBounds[o + 3 - 3 * sign[0]] - r.o.x) * r.inv_d.x;
+        if(tNear > t0) t0 = tNear;
+        if(tFar < t1) t1 = tFar;
+        if(t0 > t1) return false;
+        
+        tNear = (nodeBounds[o + 1 +     3 * sign[1]] - r.o.y) * r.inv_d.y;
+        tFar  = (nodeBounds[o + 4 - 3 * sign[1]] - r.o.y) * r.inv_d.y;
+        if(tNear > t0) t0 = tNear;
+        if(tFar < t1) t1 = tFar;
+        if(t0 > t1) return false;
+        
+        tNear = (nodeBounds[o + 2 +     3 * sign[2]] - r.o.z) * r.inv_d.z;
+        tFar  = (nodeBounds[o + 5 - 3 * sign[2]] - r.o.z) * r.inv_d.z;
+        if(tNear > t0) t0 = tNear;
+        if(tFar < t1) t1 = tFar;
+        return t0 <= t1;
+    }
+
+    //entry distance of the ray into the node bounds, infinity if missed within [tMin, tMax]
+    final float entryDistance(int nodeNum, Ray r)
+    {
+        int o = 6 * nodeNum;
+        int[] sign = r.sign;
+        float t0 = r.getMin(), t1 = r.getMax();
+        
+        float tNear = (nodeBounds[o +     3 * sign[0]] - r.o.x) * r.inv_d.x;
+        float tFar  = (nodeBounds[o + 3 - 3 * sign[0]] - r.o.x) * r.inv_d.x;
+        if(tNear > t0) t0 = tNear;
+        if(tFar < t1) t1 = tFar;
+        if(t0 > t1) return Float.POSITIVE_INFINITY;
+        
+        tNear = (nodeBounds[o + 1 +     3 * sign[1]] - r.o.y) * r.inv_d.y;
+        tFar  = (nodeBounds[o + 4 - 3 * sign[1]] - r.o.y) * r.inv_d.y;
+        if(tNear > t0) t0 = tNear;
+        if(tFar < t1) t1 = tFar;
+        if(t0 > t1) return Float.POSITIVE_INFINITY;
+        
+        tNear = (nodeBounds[o + 2 +     3 * sign[2]] - r.o.z) * r.inv_d.z;
+        tFar  = (nodeBounds[o + 5 - 3 * sign[2]] - r.o.z) * r.inv_d.z;
+        if(tNear > t0) t0 = tNear;
+        if(tFar < t1) t1 = tFar;
+        return t0 <= t1 ? t0 : Float.POSITIVE_INFINITY;
+    }
+
+    @Override
+    public boolean intersect(Ray r, Intersection isect) 
+    {
+        return intersect(r, isect, null);
+    }
+    
+    /**
+     * Closest hit traversal that optionally counts the work done for the ray, 
+     * for comparing tree quality of different builds.
+     * 
+     * @param counts null, or counts[0] is incremented by the number of visited
+     *               nodes and counts[1] by the number of primitive intersection tests
+     */
+    public boolean intersect(Ray r, Intersection isect, long[] counts)
+    {
+        if(nodeCount == 0 || entryDistance(0, r) == Float.POSITIVE_INFINITY) return false;
+        boolean hit = false;
+        
+        //Follow ray through BVH nodes nearest first, culling nodes behind the closest hit
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark(), nodeNum = 0;
+        while(true)
+        {
+            if(counts != null) counts[0]++;
+            int info = nodeData[2 * nodeNum + 1];
+            int nPrimitives = info >>> 2;
+            if(nPrimitives > 0)
+            {
+                //Intersect ray with primitives in leaf BVH node
+                int first = nodeData[2 * nodeNum];
+                if(counts != null) counts[1] += nPrimitives;
+                for(int i = 0; i < nPrimitives; ++i)
+                    if(primitives[primIndex[first + i]].intersect(r, isect))
+                        hit = true;
+            }
+            else
+            {
+                //Compute entry distance of both children, put far node on todo stack and advance to near node
+                int near = nodeNum + 1, far = nodeData[2 * nodeNum];
+                float tNear = entryDistance(near, r);
+                float tFar  = entryDistance(far, r);
+                if(tFar < tNear)
+                {
+                    int swapNode = near; near = far; far = swapNode;
+                    float swapT = tNear; tNear = tFar; tFar = swapT;
+                }
+                if(tFar != Float.POSITIVE_INFINITY)
+                    todo.push(far, tFar);
+                if(tNear != Float.POSITIVE_INFINITY)
+                {
+                    nodeNum = near;
+                    continue;
+                }
+            }
+            
+            //Pop nodes until one is entered before the closest hit found so far
+            nodeNum = -1;
+            while(todo.hasNext(todoBase))
+            {
+                int next = todo.pop();
+                if(todo.distance() <= r.getMax())
+                {
+                    nodeNum = next;
+                    break;
+                }
+            }
+            if(nodeNum < 0) break;
+        }
+        return hit;
+    }
+
+    /**
+     * Packet traversal, see BoundingVolume.intersect(RayPacket). Nodes are 
+     * entered with the index of the first ray that may still hit them and 
+     * culled once no ray from that index on hits their bounds.
+     */
+    @Override
+    public void intersect(RayPacket packet)
+    {
+        int n = packet.size;
+        for(int i = 0; i < n; i++)
+            packet.hits[i] = false;
+        if(nodeCount == 0 || n == 0) return;
+        
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark(), nodeNum = 0, first = 0;
+        while(true)
+        {
+            //Find first active ray that hits the node
+            while(first < n && !intersectBox(nodeNum, packet.rays[first]))
+                first++;
+            
+            if(first < n)
+            {
+                int info = nodeData[2 * nodeNum + 1];
+                int nPrimitives = info >>> 2;
+                if(nPrimitives > 0)
+                {
+                    //Intersect active rays that hit the leaf with its primitives
+                    int firstPrim = nodeData[2 * nodeNum];
+                    for(int r = first; r < n; r++)
+                    {
+                        Ray ray = packet.rays[r];
+                        if(r > first && !intersectBox(nodeNum, ray))
+                            continue;
+                        for(int i = 0; i < nPrimitives; ++i)
+                            if(primitives[primIndex[firstPrim + i]].intersect(ray, packet.isects[r]))
+                                packet.hits[r] = true;
+                    }
+                }
+                else
+                {
+                    //Put far BVH node on todo stack with the first active ray, advance to near node
+                    if(packet.rays[first].sign[info & 3] == 1)
+                    {
+                        todo.push(nodeNum + 1);
+                        nodeNum = nodeData[2 * nodeNum];
+                    }
+                    else
+                    {
+                        todo.push(nodeData[2 * nodeNum]);
+                        nodeNum = nodeNum + 1;
+                    }
+                    todo.push(first);
+                    continue;
+                }
+            }
+            
+            if(!todo.hasNext(todoBase)) break;
+            first = todo.pop();
+            nodeNum = todo.pop();
+        }
+    }
+
+    @Override
+    public boolean intersectP(Ray r) 
+    {
+        if(nodeCount == 0) return false;
+        int[] dirIsNeg = r.sign;
+        
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark(), nodeNum = 0;
+        while(true)
+        {
+            if(intersectBox(nodeNum, r))
+            {
+                int info = nodeData[2 * nodeNum + 1];
+                int nPrimitives = info >>> 2;
+                if(nPrimitives > 0)
+                {
+                    int first = nodeData[2 * nodeNum];
+                    for(int i = 0; i < nPrimitives; ++i)
+                        if(primitives[primIndex[first + i]].intersectP(r))
+                        {
+                            todo.release(todoBase);
+                            return true;
+                        }
+                    if(!todo.hasNext(todoBase)) break;
+                    nodeNum = todo.pop();
+                }
+                else
+                {
+                    if(dirIsNeg[info & 3] == 1)
+                    {
+                        todo.push(nodeNum + 1);
+                        nodeNum = nodeData[2 * nodeNum];
+                    }
+                    else
+                    {
+                        todo.push(nodeData[2 * nodeNum]);
+                        nodeNum = nodeNum + 1;
+                    }
+                }
+            }
+            else
+            {
+                if(!todo.hasNext(todoBase)) break;
+                nodeNum = todo.pop();
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public BoundingBox getWorldBounds() {
+        return bound;
+    }
+    
+    @Override
+    public BVHStatistics getStatistics() {
+        return statistics;
+    }
+    
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+    
+    //bytes held by node arrays and primitive indices
+    public long getMemoryUsage()
+    {
+        long bytes = 0;
+        if(nodeBounds != null) bytes += 4L * nodeBounds.length;
+        if(nodeData != null) bytes += 4L * nodeData.length;
+        if(primIndex != null) bytes += 4L * primIndex.length;
+        return bytes;
+    }
+    
+    static void include(float[] b, float[] src, int minOffset, int maxOffset)
+    {
+        if(src[minOffset    ] < b[0]) b[0] = src[minOffset    ];
+        if(src[minOffset + 1] < b[1]) b[1] = src[minOffset + 1];
+        if(src[minOffset + 2] < b[2]) b[2] = src[minOffset + 2];
+        if(src[maxOffset    ] > b[3]) b[3] = src[maxOffset    ];
+        if(src[maxOffset + 1] > b[4]) b[4] = src[maxOffset + 1];
+        if(src[maxOffset + 2] > b[5]) b[5] = src[maxOffset + 2];
+    }
+    
+    static float area(float[] b)
+    {
+        return SAHBinning.area(b[0], b[1], b[2], b[3], b[4], b[5]);
+    }
+    
+    static final class BuildNode
+    {
+        final float[] bounds = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                                Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        final BuildNode[] children = new BuildNode[2];
+        int splitAxis, firstPrimOffset, nPrimitives;
+        
+        BuildNode initLeaf(int first, int n)
+        {
+            firstPrimOffset = first;
+            nPrimitives = n;
+            return this;
+        }
+        
+        BuildNode initInterior(int axis, BuildNode c0, BuildNode c1)
+        {
+            children[0] = c0;
+            children[1] = c1;
+            splitAxis = axis;
+            nPrimitives = 0;
+            return this;
+        }
+    }
+}
@@ -0,0 +1,432 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import org.rt.core.AbstractAccelerator;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.Intersection;
+import org.rt.core.math.BoundingBox;
+import org.rt.core.math.Ray;
+import static org.rt.core.math.Utility.clamp;
+
+/**
+ *
+ * @author user
+ * 
+ * Two level grid. A coarse top level grid is laid over the scene and every 
+ * top level cell holding more than maxCellPrimitives primitives is refined by
+ * a grid of its own, whose resolution follows the number of primitives in 
+ * that cell. Dense clusters get fine cells without the memory of a uniformly 
+ * fine grid, and no resolution cap like UniformGrid's 64 per axis is needed.
+ * 
+ * All cells of all grids share one compact cell list, cell c references 
+ * primitives cellPrims[cellStart[c] .. cellStart[c + 1]). Grid 0 is the top 
+ * level, refined[c] is the grid refining top level cell c or 0.
+ * 
+ * Rays walk the top level with a 3D-DDA and start a nested DDA over the range
+ * of the ray inside a refined cell. A per thread mailbox makes sure primitives 
+ * overlapping several cells are tested once per ray.
+ */
+public class HierarchicalGrid extends AbstractAccelerator
+{
+    //cells along the longest axis are density * cbrt(primitives)
+    float topDensity = 1f;
+    float cellDensity = 2f;
+    int maxTopResolution = 256;
+    int maxCellResolution = 128;
+    int maxCellPrimitives = 8;
+    
+    AbstractPrimitive[] primitives = null;
+    BoundingBox bounds = new BoundingBox();
+    
+    //per grid bounds, cell width, resolution and first cell
+    float[] gridBounds = new float[0];
+    float[] gridWidth = new float[0];
+    float[] gridInvWidth = new float[0];
+    int[] gridRes = new int[0];
+    int[] gridFirstCell = new int[0];
+    int nGrids = 0;
+    
+    int[] cellStart = null;
+    int[] cellPrims = null;
+    int[] refined = null;
+    
+    //primitive tests performed and skipped by the mailboxes of all threads
+    private final LongAdder primitiveTests = new LongAdder(), skippedTests = new LongAdder();
+    private final ThreadLocal<Mailbox> mailboxes = ThreadLocal.withInitial(() -> new Mailbox(primitiveTests, skippedTests));
+    
+    public HierarchicalGrid()
+    {
+        
+    }
+    
+    public HierarchicalGrid(float topDensity, float cellDensity, int maxCellPrimitives)
+    {
+        this.topDensity = topDensity;
+        this.cellDensity = cellDensity;
+        this.maxCellPrimitives = maxCellPrimitives;
+    }
+
+    @Override
+    public void build(ArrayList<AbstractPrimitive> prims) 
+    {
+        int n = prims.size();
+        primitives = prims.toArray(new AbstractPrimitive[n]);
+        bounds = new BoundingBox();
+        nGrids = 0;
+        if(n == 0)
+            return;
+        
+        //Compute bounds of primitives
+        float[] primBounds = new float[6 * n];
+        for(int i = 0; i < n; i++)
+        {
+            BoundingBox b = primitives[i].getWorldBounds();
+            primBounds[6 * i    ] = b.minimum.x; primBounds[6 * i + 1] = b.minimum.y; primBounds[6 * i + 2] = b.minimum.z;
+            primBounds[6 * i + 3] = b.maximum.x; primBounds[6 * i + 4] = b.maximum.y; primBounds[6 * i + 5] = b.maximum.z;
+            bounds.include(b);
+        }
+        
+        //Distribute primitives over top level cells
+        addGrid(bounds.minimum.x, bounds.minimum.y, bounds.minimum.z,
+                bounds.maximum.x, bounds.maximum.y, bounds.maximum.z, n, topDensity, maxTopResolution);
+        int nTop = cellCount(0);
+        int[] topStart = new int[nTop + 1];
+        distribute(0, null, 0, n, primBounds, topStart, null, 0);
+        for(int c = 0; c < nTop; c++)
+            topStart[c + 1] += topStart[c];
+        int[] topPrims = new int[topStart[nTop]];
+        distribute(0, null, 0, n, primBounds, topStart.clone(), topPrims, 0);
+        
+        //Refine crowded top level cells, cells of refining grids follow the top level cells
+        refined = new int[nTop];
+        int totalCells = nTop;
+        int rx = gridRes[0], ry = gridRes[1];
+        for(int c = 0; c < nTop; c++)
+        {
+            int count = topStart[c + 1] - topStart[c];
+            if(count <= maxCellPrimitives)
+                continue;
+            
+            int x = c % rx, y = (c / rx) % ry, z = c / (rx * ry);
+            int g = addGrid(cellMin(0, 0, x), cellMin(0, 1, y), cellMin(0, 2, z), 
+                            cellMin(0, 0, x + 1), cellMin(0, 1, y + 1), cellMin(0, 2, z + 1), 
+                            count, cellDensity, maxCellResolution);
+            
+            //Nothing to refine, e.g. all primitives span the whole cell
+            if(cellCount(g) == 1)
+            {
+                nGrids--;
+                continue;
+            }
+            gridFirstCell[g] = totalCells;
+            refined[c] = g;
+            totalCells += cellCount(g);
+        }
+        
+        //Emit cell lists, top level cells first, then the cells of every refining grid
+        cellStart = new int[totalCells + 1];
+        cellPrims = new int[topPrims.length];
+        int size = 0;
+        for(int c = 0; c < nTop; c++)
+        {
+            cellStart[c] = size;
+            if(refined[c] == 0)
+            {
+                int count = topStart[c + 1] - topStart[c];
+                System.arraycopy(topPrims, topStart[c], cellPrims, size, count);
+                size += count;
+            }
+        }
+        for(int c = 0; c < nTop; c++)
+        {
+            int g = refined[c];
+            if(g == 0)
+                continue;
+            
+            int first = gridFirstCell[g], cells = cellCount(g);
+            int[] start = new int[cells + 1];
+            distribute(g, topPrims, topStart[c], topStart[c + 1], primBounds, start, null, 0);
+            for(int k = 0; k < cells; k++)
+                start[k + 1] += start[k];
+            
+            if(size + start[cells] > cellPrims.length)
+                cellPrims = Arrays.copyOf(cellPrims, Math.max(size + start[cells], cellPrims.length + (cellPrims.length >> 1)));
+            for(int k = 0; k < cells; k++)
+                cellStart[first + k] = size + start[k];
+            distribute(g, topPrims, topStart[c], topStart[c + 1], primBounds, start.clone(), cellPrims, size);
+            size += start[cells];
+        }
+        cellStart[totalCells] = size;
+        cellPrims = Arrays.copyOf(cellPrims, size);
+    }
+    
+    /**
+     * Counts or stores the primitives prims[from..to), or the ids from..to if 
+     * prims is null, in every cell of grid g their bounds overlap. Without out
+     * the count of local cell k is accumulated in cursor[k + 1], with out the 
+     * primitive is stored at out[base + cursor[k]++].
+     */
+    private void distribute(int g, int[] prims, int from, int to, float[] primBounds, int[] cursor, int[] out, int base)
+    {
+        int rx = gridRes[3 * g], ry = gridRes[3 * g + 1];
+        for(int i = from; i < to; i++)
+        {
+            int p = prims == null ? i : prims[i];
+            int o = 6 * p;
+            int x0 = cell(g, 0, primBounds[o    ]), x1 = cell(g, 0, primBounds[o + 3]);
+            int y0 = cell(g, 1, primBounds[o + 1]), y1 = cell(g, 1, primBounds[o + 4]);
+            int z0 = cell(g, 2, primBounds[o + 2]), z1 = cell(g, 2, primBounds[o + 5]);
+            for(int z = z0; z <= z1; z++)
+                for(int y = y0; y <= y1; y++)
+                    for(int x = x0; x <= x1; x++)
+                    {
+                        int k = (z * ry + y) * rx + x;
+                        if(out == null)
+                            cursor[k + 1]++;
+                        else
+                            out[base + cursor[k]++] = p;
+                    }
+        }
+    }
+    
+    private int addGrid(float minx, float miny, float minz, float maxx, float maxy, float maxz,
+                        int count, float density, int maxResolution)
+    {
+        int g = nGrids++;
+        if(nGrids > gridFirstCell.length)
+        {
+            int capacity = Math.max(4, 2 * nGrids);
+            gridBounds = Arrays.copyOf(gridBounds, 6 * capacity);
+            gridWidth = Arrays.copyOf(gridWidth, 3 * capacity);
+            gridInvWidth = Arrays.copyOf(gridInvWidth, 3 * capacity);
+            gridRes = Arrays.copyOf(gridRes, 3 * capacity);
+            gridFirstCell = Arrays.copyOf(gridFirstCell, capacity);
+        }
+        
+        float[] min = {minx, miny, minz}, max = {maxx, maxy, maxz};
+        float maxExtent = Math.max(maxx - minx, Math.max(maxy - miny, maxz - minz));
+        float cellsPerUnit = maxExtent > 0 ? density * (float) Math.cbrt(count) / maxExtent : 0;
+        for(int axis = 0; axis < 3; axis++)
+        {
+            float extent = max[axis] - min[axis];
+            int res = clamp((int) (extent * cellsPerUnit), 1, maxResolution);
+            gridBounds[6 * g + axis] = min[axis];
+            gridBounds[6 * g + 3 + axis] = max[axis];
+            gridRes[3 * g + axis] = res;
+            gridWidth[3 * g + axis] = extent / res;
+            gridInvWidth[3 * g + axis] = extent > 0 ? res / extent : 0;
+        }
+        gridFirstCell[g] = 0;
+        return g;
+    }
+    
+    private int cellCount(int g)
+    {
+        return gridRes[3 * g] * gridRes[3 * g + 1] * gridRes[3 * g + 2];
+    }
+    
+    //lower boundary of cell c on an axis of grid g, the upper grid boundary for c == resolution
+    private float cellMin(int g, int axis, int c)
+    {
+        if(c == gridRes[3 * g + axis])
+            return gridBounds[6 * g + 3 + axis];
+        return gridBounds[6 * g + axis] + c * gridWidth[3 * g + axis];
+    }
+    
+    private int cell(int g, int axis, float position)
+    {
+        int c = (int) ((position - gridBounds[6 * g + axis]) * gridInvWidth[3 * g + axis]);
+        return clamp(c, 0, gridRes[3 * g + axis] - 1);
+    }
+
+    @Override
+    public boolean intersect(Ray ray, Intersection isect) 
+    {
+        if(nGrids == 0) return false;
+        float t0 = bounds.entryDistance(ray);
+        if(t0 == Float.POSITIVE_INFINITY) return false;
+        
+        Mailbox mailbox = mailboxes.get();
+        mailbox.nextRay(primitives.length);
+        boolean hit = walk(0, ray, isect, t0, Float.POSITIVE_INFINITY, mailbox);
+        mailbox.endRay();
+        return hit;
+    }
+
+    @Override
+    public boolean intersectP(Ray ray) 
+    {
+        if(nGrids == 0) return false;
+        float t0 = bounds.entryDistance(ray);
+        if(t0 == Float.POSITIVE_INFINITY) return false;
+        
+        Mailbox mailbox = mailboxes.get();
+        mailbox.nextRay(primitives.length);
+        boolean hit = walk(0, ray, null, t0, Float.POSITIVE_INFINITY, mailbox);
+        mailbox.endRay();
+        return hit;
+    }
+    
+    /**
+     * 3D-DDA through grid g over the ray interval [t0, t1]. Refined top level
+     * cells are walked by a nested DDA over the part of the interval inside 
+     * them. A null isect walks for any hit and returns on the first one.
+     */
+    private boolean walk(int g, Ray ray, Intersection isect, float t0, float t1, Mailbox mailbox)
+    {
+        int rx = gridRes[3 * g], ry = gridRes[3 * g + 1], rz = gridRes[3 * g + 2];
+        float px = ray.o.x + t0 * ray.d.x;
+        float py = ray.o.y + t0 * ray.d.y;
+        float pz = ray.o.z + t0 * ray.d.z;
+        int x = cell(g, 0, px), y = cell(g, 1, py), z = cell(g, 2, pz);
+        
+        //Set up 3D DDA for ray, an axis the ray is parallel to never crosses a cell boundary
+        float nextX = Float.POSITIVE_INFINITY, nextY = Float.POSITIVE_INFINITY, nextZ = Float.POSITIVE_INFINITY;
+        float deltaX = 0, deltaY = 0, deltaZ = 0;
+        int stepX = 0, stepY = 0, stepZ = 0;
+        if(ray.d.x != 0)
+        {
+            stepX = ray.d.x > 0 ? 1 : -1;
+            nextX = t0 + (cellMin(g, 0, ray.d.x > 0 ? x + 1 : x) - px) / ray.d.x;
+            deltaX = gridWidth[3 * g] / Math.abs(ray.d.x);
+        }
+        if(ray.d.y != 0)
+        {
+            stepY = ray.d.y > 0 ? 1 : -1;
+            nextY = t0 + (cellMin(g, 1, ray.d.y > 0 ? y + 1 : y) - py) / ray.d.y;
+            deltaY = gridWidth[3 * g + 1] / Math.abs(ray.d.y);
+        }
+        if(ray.d.z != 0)
+        {
+            stepZ = ray.d.z > 0 ? 1 : -1;
+            nextZ = t0 + (cellMin(g, 2, ray.d.z > 0 ? z + 1 : z) - pz) / ray.d.z;
+            deltaZ = gridWidth[3 * g + 2] / Math.abs(ray.d.z);
+        }
+        
+        boolean hit = false;
+        int first = gridFirstCell[g];
+        float tCell = t0;
+        while(true)
+        {
+            int c = first + (z * ry + y) * rx + x;
+            float tExit = Math.min(nextX, Math.min(nextY, nextZ));
+            if(g == 0 && refined[c] != 0)
+            {
+                //Descend into the grid refining this cell
+                if(walk(refined[c], ray, isect, tCell, Math.min(tExit, t1), mailbox))
+                {
+                    if(isect == null) return true;
+                    hit = true;
+                }
+            }
+            else
+            {
+                for(int i = cellStart[c]; i < cellStart[c + 1]; i++)
+                {
+                    int p = cellPrims[i];
+                    if(!mailbox.visit(p))
+                        continue;
+                    if(isect == null)
+                    {
+                        if(primitives[p].intersectP(ray))
+                            return true;
+                    }
+                    else if(primitives[p].intersect(ray, isect))
+                        hit = true;
+                }
+            }
+            
+            //Advance to next cell unless the closest hit or the interval ends before it
+            if(tExit > t1 || tExit > ray.getMax())
+                break;
+            if(tExit == nextX)
+            {
+                x += stepX;
+                if(x < 0 || x >= rx) break;
+                nextX += deltaX;
+            }
+            else if(tExit == nextY)
+            {
+                y += stepY;
+                if(y < 0 || y >= ry) break;
+                nextY += deltaY;
+            }
+            else
+            {
+                z += stepZ;
+                if(z < 0 || z >= rz) break;
+                nextZ += deltaZ;
+            }
+            tCell = tExit;
+        }
+        return hit;
+    }
+
+    @Override
+    public BoundingBox getWorldBounds() 
+    {
+        return bounds;
+    }
+    
+    public long getPrimitiveTests()
+    {
+        return primitiveTests.sum();
+    }
+    
+    //repeated tests of primitives overlapping several cells the mailboxes avoided
+    public long getSkippedTests()
+    {
+        return skippedTests.sum();
+    }
+    
+    public void resetTestCounters()
+    {
+        primitiveTests.reset();
+        skippedTests.reset();
+    }
+    
+    public int getGridCount()
+    {
+        return nGrids;
+    }
+    
+    public int getCellCount()
+    {
+        return cellStart == null ? 0 : cellStart.length - 1;
+    }
+    
+    //bytes held by grid descriptions and cell lists
+    public long getMemoryUsage()
+    {
+        long bytes = 4L * (gridBounds.length + gridWidth.length + gridInvWidth.length + gridRes.length + gridFirstCell.length);
+        if(cellStart != null) bytes += 4L * cellStart.length;
+        if(cellPrims != null) bytes += 4L * cellPrims.length;
+        if(refined != null) bytes += 4L * refined.length;
+        return bytes;
+    }
+}
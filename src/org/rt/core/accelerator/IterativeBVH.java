@@ -23,13 +23,18 @@
  */
 package org.rt.core.accelerator;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Stack;
+import java.util.concurrent.RecursiveTask;
 import org.rt.core.AbstractAccelerator;
 import org.rt.core.AbstractPrimitive;
 import org.rt.core.Intersection;
+import org.rt.core.cache.BVHLevelCache;
+import org.rt.core.cache.PrimitiveListCache;
 import org.rt.core.math.BoundingBox;
 import org.rt.core.math.Ray;
+import org.rt.core.system.Timer;
 import org.rt.util.Sorting;
 
 /**
@@ -43,54 +48,221 @@ public class IterativeBVH extends AbstractAccelerator
     BoundingBox bound = null;
     
     int nNodes, nLeafs, leafSize = 15;
+    SplitMethod splitMethod = SplitMethod.SAH;
+    
+    //SAH parameters
+    int nBins = 16;
+    float traversalCost = 0.125f;
+    float intersectionCost = 1f;
+    
+    //subtrees with more primitives are built as separate fork/join tasks
+    int parallelThreshold = 4096;
+    
+    //refit rebuilds once the SAH cost grows beyond this factor of the built tree
+    float rebuildThreshold = 1.5f;
+    double builtSAHCost = 0;
+    
+    BVHStatistics statistics = null;
+    
+    static final String CACHE_KIND = "iterativebvh";
+    BVHLevelCache cache = null;
+    
+    public IterativeBVH()
+    {
+        
+    }
+    
+    public IterativeBVH(SplitMethod splitMethod)
+    {
+        this.splitMethod = splitMethod;
+    }
+    
+    public void setSAHParameters(int nBins, float traversalCost, float intersectionCost)
+    {
+        this.nBins = nBins;
+        this.traversalCost = traversalCost;
+        this.intersectionCost = intersectionCost;
+    }
+    
+    //Integer.MAX_VALUE builds on the calling thread only
+    public void setParallelThreshold(int parallelThreshold)
+    {
+        this.parallelThreshold = parallelThreshold;
+    }
+    
+    public void setRebuildThreshold(float rebuildThreshold)
+    {
+        this.rebuildThreshold = rebuildThreshold;
+    }
+    
+    //trees are stored in and mapped from the cache when set
+    @Override
+    public void setCache(BVHLevelCache cache)
+    {
+        this.cache = cache;
+    }
     
     @Override
     public void build(ArrayList<AbstractPrimitive> prims) 
     {
+        Timer timer = new Timer();
+        timer.start();
+        
         this.primitives = prims;        
+        
+        //Map a cached tree of identical geometry, build and store it otherwise
+        long key = cache != null ? cacheKey() : 0;
+        if(cache == null || !read(cache.load(CACHE_KIND, key)))
+        {
+            AbstractPrimitive[] original = cache != null ? prims.toArray(new AbstractPrimitive[prims.size()]) : null;
+            
+            //Subtrees are built into separate lists in depth first order, concatenation keeps the layout
+            ArrayList<BVHFlatNode> buildNodes = new BuildTask(0, primitives.size()).invoke();
+
+            //copy the temp node data to a flat array
+            nNodes = buildNodes.size();
+            nodes = buildNodes.toArray(new BVHFlatNode[nNodes]);
+            
+            if(cache != null)
+            {
+                int[] order = PrimitiveListCache.order(original, primitives);
+                cache.store(CACHE_KIND, key, PrimitiveListCache.orderSize(order.length) + 4 + 40L * nNodes, 
+                        buffer -> write(buffer, order));
+            }
+        }
+        
+        bound = nodes[0].bounds;
+        //System.out.println(Arrays.toString(nodes));
+        
+        timer.end();
+        statistics = new BVHStatistics(bound.surfaceArea(), traversalCost, intersectionCost);
+        collectStatistics(0, 0);
+        statistics.setBuildTime(timer.nanos());
+        nLeafs = statistics.getLeafCount();
+        builtSAHCost = statistics.getSAHCost();
+    }
+    
+    private long cacheKey()
+    {
+        return PrimitiveListCache.hash(PrimitiveListCache.hash(primitives), 
+                leafSize, splitMethod.ordinal(), nBins, traversalCost, intersectionCost);
+    }
+    
+    //primitive order, node count, node bounds and node start, count, right offset and axis
+    private void write(ByteBuffer buffer, int[] order)
+    {
+        PrimitiveListCache.putOrder(buffer, order);
+        buffer.putInt(nNodes);
+        for(BVHFlatNode node : nodes)
+        {
+            BoundingBox b = node.bounds;
+            buffer.putFloat(b.minimum.x).putFloat(b.minimum.y).putFloat(b.minimum.z);
+            buffer.putFloat(b.maximum.x).putFloat(b.maximum.y).putFloat(b.maximum.z);
+            buffer.putInt(node.start).putInt(node.nPrims).putInt(node.rightOffset).putInt(node.axis);
+        }
+    }
+    
+    //false if the buffer is null or does not hold a valid tree, primitives are reordered on success only
+    private boolean read(ByteBuffer buffer)
+    {
+        if(buffer == null)
+            return false;
+        
+        int[] order = PrimitiveListCache.getOrder(buffer);
+        if(order == null || order.length != primitives.size() || buffer.remaining() < 4)
+            return false;
+        int count = buffer.getInt();
+        if(count <= 0 || 40L * count != buffer.remaining())
+            return false;
+        
+        BVHFlatNode[] cached = new BVHFlatNode[count];
+        for(int i = 0; i < count; i++)
+        {
+            BVHFlatNode node = new BVHFlatNode();
+            node.bounds = new BoundingBox();
+            node.bounds.minimum.x = buffer.getFloat(); node.bounds.minimum.y = buffer.getFloat(); node.bounds.minimum.z = buffer.getFloat();
+            node.bounds.maximum.x = buffer.getFloat(); node.bounds.maximum.y = buffer.getFloat(); node.bounds.maximum.z = buffer.getFloat();
+            node.start = buffer.getInt();
+            node.nPrims = buffer.getInt();
+            node.rightOffset = buffer.getInt();
+            node.axis = buffer.getInt();
+            
+            //Reject ranges outside of the primitive list or the node array
+            if(node.start < 0 || node.nPrims < 0 || node.start + node.nPrims > order.length || 
+               node.rightOffset < 0 || i + node.rightOffset >= count)
+                return false;
+            cached[i] = node;
+        }
+        
+        if(!PrimitiveListCache.apply(order, primitives))
+            return false;
+        nNodes = count;
+        nodes = cached;
+        return true;
+    }
+    
+    @Override
+    public boolean refit()
+    {
+        if(nodes == null) return false;
+        Timer timer = new Timer();
+        timer.start();
+        
+        //Children follow their parent in depth first order, update bounds bottom up
+        for(int ni = nodes.length - 1; ni >= 0; ni--)
+        {
+            BVHFlatNode node = nodes[ni];
+            BoundingBox bb = new BoundingBox();
+            if(node.rightOffset == 0)
+                for(int p = node.start; p < node.start + node.nPrims; p++)
+                    bb.include(primitives.get(p).getWorldBounds());
+            else
+            {
+                bb.include(nodes[ni + 1].bounds);
+                bb.include(nodes[ni + node.rightOffset].bounds);
+            }
+            node.bounds = bb;
+        }
+        bound = nodes[0].bounds;
+        
+        timer.end();
+        statistics = new BVHStatistics(bound.surfaceArea(), traversalCost, intersectionCost);
+        collectStatistics(0, 0);
+        statistics.setBuildTime(timer.nanos());
+        
+        //Tree quality degraded too much, build from scratch
+        if(statistics.getSAHCost() > rebuildThreshold * builtSAHCost)
+            build(primitives);
+        return true;
+    }
+    
+    //builds the subtree over [start, end) on this thread, appending its nodes to buildNodes
+    private void buildRange(int start, int end, ArrayList<BVHFlatNode> buildNodes, SAHBinning binning)
+    {
         Stack<BVHBuildEntry> todo = new Stack<>();
         int untouched = 0xffffffff;
         int touchedtwice = 0xfffffffd;
         
         BVHBuildEntry root = new BVHBuildEntry();
-        root.start = 0;
-        root.end = primitives.size();
+        root.start = start;
+        root.end = end;
         root.parent = 0xfffffffc;
         todo.push(root);
         
-        ArrayList<BVHFlatNode> buildNodes = new ArrayList<>();
-        
         while(!todo.isEmpty())
         {
             BVHBuildEntry bnode = todo.pop();
-            int start = bnode.start;
-            int end = bnode.end;            
-            int nPrims = end - start;
             
-            nNodes++;
             BVHFlatNode node = new BVHFlatNode();
-            node.start = start;
-            node.nPrims = nPrims;            
             node.rightOffset = untouched;
-            
-            //Calculate the bounding box for this node
-            BoundingBox bb = new BoundingBox(); bb.include(primitives.get(start).getWorldBounds());
-            BoundingBox bc = new BoundingBox(); bc.include(primitives.get(start).getWorldBounds().getCenter());
-            for(int p = start+1; p<end; p++)
-            {
-                bb.include(primitives.get(p).getWorldBounds());
-                bc.include(primitives.get(p).getWorldBounds().getCenter());
-            }
-            node.bounds = bb;
+            int mid = splitNode(node, bnode.start, bnode.end, binning, false);
             
             //If the number of primitives at this point is less than the leaf
             //size, then this will become a life, (Signified by rightOffset == 0)
-            if(nPrims < leafSize)
-            {
+            if(mid < 0)
                 node.rightOffset = 0;
-                nLeafs++;
-            }
             
+            int index = buildNodes.size();
             buildNodes.add(node);
             
             //Child touches parent...
@@ -102,7 +274,7 @@ public class IterativeBVH extends AbstractAccelerator
                 //When this is the second touch, this is the right child.
                 //The right child sets up the offset for the flat tree.
                 if(buildNodes.get(bnode.parent).rightOffset == touchedtwice)
-                    buildNodes.get(bnode.parent).rightOffset = nNodes - 1 - bnode.parent;
+                    buildNodes.get(bnode.parent).rightOffset = index - bnode.parent;
             }
             
             //If thi is a leaf, no need to subdivide
@@ -111,44 +283,168 @@ public class IterativeBVH extends AbstractAccelerator
                 continue;
             }
             
-            //set the split dimensions
-            int split_dim = bc.maximumExtent();
-            
-            //split on the center of the longest axis
-            float split_coord = bc.getCenter(split_dim);
-            
-            //partition the list of objects on this split            
-            int mid = Sorting.partition(prims, start, end, split_dim, split_coord);
-            
-            //if we get a bad split, just choose the center...
-            if(mid == start || mid == end)
-                mid = start + (end-start)/2;
-            
-            //set parent split dimension
-            node.axis = split_dim;
-            
             //push the right child
             BVHBuildEntry right = new BVHBuildEntry();
             right.start = mid;
-            right.end = end;
-            right.parent = nNodes - 1;            
+            right.end = bnode.end;
+            right.parent = index;            
             todo.push(right);
             
             //push the left child
             BVHBuildEntry left = new BVHBuildEntry();
-            left.start = start;
+            left.start = bnode.start;
             left.end = mid;
-            left.parent = nNodes - 1;            
+            left.parent = index;            
             todo.push(left);
         }
+    }
+    
+    //sets up bounds of node over [start, end) and partitions its primitives, returns the split index or -1 for a leaf
+    private int splitNode(BVHFlatNode node, int start, int end, SAHBinning binning, boolean parallel)
+    {
+        int nPrims = end - start;
+        node.start = start;
+        node.nPrims = nPrims;
         
-        //copy the temp node data to a flat array
-        nodes = new BVHFlatNode[nNodes];
-        for(int n = 0; n<nNodes; n++)
-            nodes[n] = buildNodes.get(n);       
+        //Calculate the bounding box for this node
+        BoundingBox bb, bc;
+        if(parallel)
+        {
+            BoundingBox[] b = ParallelBinning.bounds(p -> primitives.get(p).getWorldBounds(), start, end);
+            bb = b[0];
+            bc = b[1];
+        }
+        else
+        {
+            bb = new BoundingBox();
+            bc = new BoundingBox();
+            for(int p = start; p<end; p++)
+            {
+                BoundingBox pb = primitives.get(p).getWorldBounds();
+                bb.include(pb);
+                bc.include(pb.getCenter());
+            }
+        }
+        node.bounds = bb;
         
-        bound = nodes[0].bounds;
-        //System.out.println(Arrays.toString(nodes));
+        if(nPrims < leafSize)
+            return -1;
+        
+        //set the split dimensions
+        int split_dim = bc.maximumExtent();
+        int mid = start;
+
+        switch(splitMethod)
+        {
+            case SAH:
+            {
+                //split on the cheapest SAH bin boundary, binning in parallel at the top levels
+                final SAHBinning split;
+                if(parallel)
+                    split = ParallelBinning.bin(p -> primitives.get(p).getWorldBounds(), start, end, bc, 
+                                                nBins, traversalCost, intersectionCost);
+                else
+                {
+                    split = binning;
+                    split.reset(bc);
+                    for(int p = start; p<end; p++)
+                    {
+                        BoundingBox pb = primitives.get(p).getWorldBounds();
+                        split.add(pb.getCenter(), pb);
+                    }
+                }
+                if(!split.findSplit(bb.surfaceArea()))
+                    break;
+
+                final int axis = split_dim = split.getSplitAxis();
+                mid = Sorting.partition(primitives, start, end, prim -> split.isLeft(prim.getWorldBounds().getCenter(axis)));
+                break;
+            }
+            case EQUAL_COUNTS:
+            {
+                Sorting.sort(primitives, start, end, split_dim);
+                mid = start + (end-start)/2;
+                break;
+            }
+            default:
+            {
+                //split on the center of the longest axis
+                float split_coord = bc.getCenter(split_dim);
+
+                //partition the list of objects on this split            
+                mid = Sorting.partition(primitives, start, end, split_dim, split_coord);
+                break;
+            }
+        }
+
+        //if we get a bad split, just choose the center...
+        if(mid == start || mid == end)
+            mid = start + (end-start)/2;
+
+        //set parent split dimension
+        node.axis = split_dim;
+        return mid;
+    }
+    
+    private void collectStatistics(int ni, int depth)
+    {
+        BVHFlatNode node = nodes[ni];
+        if(node.rightOffset == 0)
+            statistics.addLeaf(depth, node.nPrims, node.bounds.surfaceArea());
+        else
+        {
+            statistics.addInterior(depth, node.bounds.surfaceArea());
+            collectStatistics(ni + 1, depth + 1);
+            collectStatistics(ni + node.rightOffset, depth + 1);
+        }
+    }
+    
+    //builds the subtree over [start, end), forking both halves while it is large enough
+    @SuppressWarnings("serial")
+    class BuildTask extends RecursiveTask<ArrayList<BVHFlatNode>>
+    {
+        final int start, end;
+        
+        BuildTask(int start, int end)
+        {
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        protected ArrayList<BVHFlatNode> compute() 
+        {
+            if(end - start <= parallelThreshold)
+            {
+                ArrayList<BVHFlatNode> buildNodes = new ArrayList<>();
+                buildRange(start, end, buildNodes, new SAHBinning(nBins, traversalCost, intersectionCost));
+                return buildNodes;
+            }
+            
+            SAHBinning binning = new SAHBinning(nBins, traversalCost, intersectionCost);
+            BVHFlatNode node = new BVHFlatNode();
+            int mid = splitNode(node, start, end, binning, end - start > ParallelBinning.CHUNK_SIZE);
+            if(mid < 0)
+            {
+                node.rightOffset = 0;
+                ArrayList<BVHFlatNode> buildNodes = new ArrayList<>();
+                buildNodes.add(node);
+                return buildNodes;
+            }
+            
+            BuildTask leftTask = new BuildTask(start, mid);
+            leftTask.fork();
+            ArrayList<BVHFlatNode> right = new BuildTask(mid, end).compute();
+            ArrayList<BVHFlatNode> left = leftTask.join();
+            
+            //node, left subtree, right subtree
+            ArrayList<BVHFlatNode> buildNodes = new ArrayList<>(1 + left.size() + right.size());
+            buildNodes.add(node);
+            buildNodes.addAll(left);
+            buildNodes.addAll(right);
+            node.rightOffset = 1 + left.size();
+            return buildNodes;
+        }
     }
     
     public class BVHBuildEntry 
@@ -161,37 +457,41 @@ public class IterativeBVH extends AbstractAccelerator
     
     @Override
     public boolean intersect(Ray r, Intersection isect) {
-        int[] todo = new int[64];
-        int stackptr = 0;
+        if(nodes == null || nodes[0].bounds.entryDistance(r) == Float.POSITIVE_INFINITY) return false;
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark();
         boolean hit = false;
-        int[] dirIsNeg = r.dirIsNeg();
-                        
-        while(stackptr >= 0)
+        
+        todo.push(0, r.getMin());
+        while(todo.hasNext(todoBase))
         {
-            int ni = todo[stackptr];
-            stackptr--;            
+            int ni = todo.pop();
+            //Skip nodes entered behind the closest hit found so far
+            if(todo.distance() > r.getMax())
+                continue;
             BVHFlatNode node = nodes[ni];
             
-            if(node.bounds.intersectP(r, null))
+            if(node.rightOffset == 0)
             {
-                if(node.rightOffset == 0)
+                for(int i = 0; i<node.nPrims; i++)
+                    if(primitives.get(node.start+i).intersect(r, isect))
+                        hit = true;
+            }
+            else
+            {
+                //Push far child first so that the near child is popped next
+                int left = ni + 1, right = ni + node.rightOffset;
+                float tLeft  = nodes[left].bounds.entryDistance(r);
+                float tRight = nodes[right].bounds.entryDistance(r);
+                if(tLeft <= tRight)
                 {
-                    for(int i = 0; i<node.nPrims; i++)
-                        if(primitives.get(node.start+i).intersect(r, isect))
-                            hit = true;
+                    if(tRight != Float.POSITIVE_INFINITY) todo.push(right, tRight);
+                    if(tLeft  != Float.POSITIVE_INFINITY) todo.push(left, tLeft);
                 }
                 else
                 {
-                    if (dirIsNeg[node.axis] == 1) 
-                    {
-                        todo[++stackptr] = ni + node.rightOffset;
-                        todo[++stackptr] = ni + 1;
-                    }
-                    else
-                    {
-                        todo[++stackptr] = ni + 1;
-                        todo[++stackptr] = ni + node.rightOffset;
-                    }
+                    if(tLeft  != Float.POSITIVE_INFINITY) todo.push(left, tLeft);
+                    todo.push(right, tRight);
                 }
             }
         }
@@ -201,42 +501,46 @@ public class IterativeBVH extends AbstractAccelerator
 
     @Override
     public boolean intersectP(Ray r) {
-        int[] todo = new int[64];
-        int stackptr = 0;
-        boolean hit = false;
-        int[] dirIsNeg = r.dirIsNeg();
-                        
-        while(stackptr >= 0)
+        if(nodes == null) return false;
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark();
+        int[] dirIsNeg = r.sign;
+        
+        todo.push(0);
+        while(todo.hasNext(todoBase))
         {
-            int ni = todo[stackptr];
-            stackptr--;            
+            int ni = todo.pop();
             BVHFlatNode node = nodes[ni];
             
             if(node.bounds.intersectP(r, null))
             {
                 if(node.rightOffset == 0)
                 {
+                    //Any hit within the ray extent occludes, no need to find the closest one
                     for(int i = 0; i<node.nPrims; i++)
                         if(primitives.get(node.start+i).intersectP(r))
-                            hit = true;
+                        {
+                            todo.release(todoBase);
+                            return true;
+                        }
                 }
                 else
                 {
                     if (dirIsNeg[node.axis] == 1) 
                     {
-                        todo[++stackptr] = ni + node.rightOffset;
-                        todo[++stackptr] = ni + 1;
+                        todo.push(ni + node.rightOffset);
+                        todo.push(ni + 1);
                     }
                     else
                     {
-                        todo[++stackptr] = ni + 1;
-                        todo[++stackptr] = ni + node.rightOffset;
+                        todo.push(ni + 1);
+                        todo.push(ni + node.rightOffset);
                     }
                 }
             }
         }
         
-        return hit;
+        return false;
     }
 
     @Override
@@ -244,6 +548,11 @@ public class IterativeBVH extends AbstractAccelerator
         return bound;
     }
     
+    @Override
+    public BVHStatistics getStatistics() {
+        return statistics;
+    }
+    
     public class BVHFlatNode
     {
         BoundingBox bounds;
@@ -0,0 +1,277 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+import java.util.stream.IntStream;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.cache.PrimitiveListCache;
+import org.rt.core.coordinates.Point3f;
+import org.rt.core.math.BoundingBox;
+import org.rt.core.primitive.GeometryPrimitive;
+import org.rt.util.Morton;
+import org.rt.util.Sorting;
+
+/**
+ *
+ * @author user
+ * 
+ * Linear bounding volume hierarchy (LBVH). Primitive centroids are quantized 
+ * to a 2^10 or 2^21 grid per axis and interleaved into 30 or 63 bit Morton 
+ * codes, which are radix sorted. The hierarchy is the binary radix tree over
+ * the sorted codes, every node splits its range where the highest differing 
+ * bit changes, so the build is linear in the number of primitives and the 
+ * subtrees are emitted in parallel.
+ * 
+ * Trees are of lower quality than the SAH builds, meant for interactive 
+ * previews and fast rebuilds. Leaves hold a single primitive, which lets a 
+ * range of size s occupy exactly 2s - 1 nodes and every subtree be written to 
+ * its final depth first position without coordination.
+ */
+public class LinearBVH extends FlatBVH
+{
+    int mortonBits = 30;
+    
+    //ranges with more primitives are emitted as separate fork/join tasks
+    int parallelThreshold = 4096;
+    
+    //build only data, codes in sorted order
+    int[] codes32 = null;
+    long[] codes64 = null;
+    
+    public LinearBVH()
+    {
+        
+    }
+    
+    //30 bit codes sort faster, 63 bit codes separate dense clusters in large scenes
+    public LinearBVH(int mortonBits)
+    {
+        if(mortonBits != 30 && mortonBits != 63)
+            throw new IllegalArgumentException("morton codes have 30 or 63 bits " +mortonBits);
+        this.mortonBits = mortonBits;
+    }
+    
+    //Integer.MAX_VALUE builds on the calling thread only
+    public void setParallelThreshold(int parallelThreshold)
+    {
+        this.parallelThreshold = parallelThreshold;
+    }
+    
+    @Override
+    void buildTree()
+    {
+        int n = primitives.length;
+        primIndex = new int[n];
+        if(n == 0)
+        {
+            nodeBounds = new float[0];
+            nodeData = new int[0];
+            nodeCount = 0;
+            return;
+        }
+        
+        //Compute primitive bounds in parallel
+        primBounds = new float[6 * n];
+        IntStream.range(0, n).parallel().forEach(this::initBounds);
+        
+        //Quantize centroids to the grid over the centroid bounds
+        float[] cb = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                      Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for(int i = 0; i < n; i++)
+            for(int axis = 0; axis < 3; axis++)
+            {
+                float c = 0.5f * (primBounds[6 * i + axis] + primBounds[6 * i + 3 + axis]);
+                if(c < cb[axis]) cb[axis] = c;
+                if(c > cb[3 + axis]) cb[3 + axis] = c;
+            }
+        int axisBits = mortonBits / 3;
+        float cells = (1 << axisBits) * (1 - 1e-5f);
+        float[] scale = new float[3];
+        for(int axis = 0; axis < 3; axis++)
+        {
+            float extent = cb[3 + axis] - cb[axis];
+            scale[axis] = extent > 0 ? cells / extent : 0;
+        }
+        
+        //Compute Morton codes in parallel and sort primitive indices by them
+        if(mortonBits == 30)
+        {
+            codes32 = new int[n];
+            IntStream.range(0, n).parallel().forEach(i -> {
+                codes32[i] = Morton.encode30(quantize(i, 0, cb, scale), 
+                                             quantize(i, 1, cb, scale), 
+                                             quantize(i, 2, cb, scale));
+                primIndex[i] = i;
+            });
+            Sorting.radixSort(codes32, primIndex, n, mortonBits);
+        }
+        else
+        {
+            codes64 = new long[n];
+            IntStream.range(0, n).parallel().forEach(i -> {
+                codes64[i] = Morton.encode63(quantize(i, 0, cb, scale), 
+                                             quantize(i, 1, cb, scale), 
+                                             quantize(i, 2, cb, scale));
+                primIndex[i] = i;
+            });
+            Sorting.radixSort(codes64, primIndex, n, mortonBits);
+        }
+        
+        //Emit radix tree in depth first order, a range of s primitives takes 2s - 1 nodes
+        nodeCount = 2 * n - 1;
+        nodeBounds = new float[6 * nodeCount];
+        nodeData = new int[2 * nodeCount];
+        new EmitTask(0, n - 1, 0).invoke();
+        
+        primBounds = null;
+        codes32 = null;
+        codes64 = null;
+    }
+    
+    @Override
+    String getCacheKind()
+    {
+        return "linearbvh";
+    }
+    
+    @Override
+    long cacheKey(ArrayList<AbstractPrimitive> prims)
+    {
+        return PrimitiveListCache.hash(PrimitiveListCache.hash(prims), mortonBits);
+    }
+    
+    //triangle bounds are taken from the vertices, which skips the box transform
+    private void initBounds(int prim)
+    {
+        Point3f[] p = GeometryPrimitive.getTriangleVertices(primitives[prim]);
+        
+        int o = 6 * prim;
+        if(p == null)
+        {
+            BoundingBox b = primitives[prim].getWorldBounds();
+            primBounds[o    ] = b.minimum.x; primBounds[o + 1] = b.minimum.y; primBounds[o + 2] = b.minimum.z;
+            primBounds[o + 3] = b.maximum.x; primBounds[o + 4] = b.maximum.y; primBounds[o + 5] = b.maximum.z;
+            return;
+        }
+        Point3f p1 = p[0], p2 = p[1], p3 = p[2];
+        primBounds[o    ] = Math.min(p1.x, Math.min(p2.x, p3.x));
+        primBounds[o + 1] = Math.min(p1.y, Math.min(p2.y, p3.y));
+        primBounds[o + 2] = Math.min(p1.z, Math.min(p2.z, p3.z));
+        primBounds[o + 3] = Math.max(p1.x, Math.max(p2.x, p3.x));
+        primBounds[o + 4] = Math.max(p1.y, Math.max(p2.y, p3.y));
+        primBounds[o + 5] = Math.max(p1.z, Math.max(p2.z, p3.z));
+    }
+    
+    private int quantize(int prim, int axis, float[] cb, float[] scale)
+    {
+        float c = 0.5f * (primBounds[6 * prim + axis] + primBounds[6 * prim + 3 + axis]);
+        return (int) ((c - cb[axis]) * scale[axis]);
+    }
+    
+    private long code(int i)
+    {
+        return codes64 != null ? codes64[i] : codes32[i] & 0xffffffffL;
+    }
+    
+    //last index of the left half of [first, last], where the highest bit differing over the range flips
+    private int findSplit(int first, int last)
+    {
+        long firstCode = code(first), lastCode = code(last);
+        if(firstCode == lastCode)
+            return (first + last) >>> 1;
+        
+        //Binary search for the last code sharing more leading bits with the first than the last does
+        int prefix = Long.numberOfLeadingZeros(firstCode ^ lastCode);
+        int split = first, step = last - first;
+        do
+        {
+            step = (step + 1) >>> 1;
+            int next = split + step;
+            if(next < last && Long.numberOfLeadingZeros(firstCode ^ code(next)) > prefix)
+                split = next;
+        }
+        while(step > 1);
+        return split;
+    }
+    
+    //writes the subtree over sorted primitives [first, last] at offset
+    private void emit(int first, int last, int offset)
+    {
+        int o = 6 * offset;
+        if(first == last)
+        {
+            System.arraycopy(primBounds, 6 * primIndex[first], nodeBounds, o, 6);
+            nodeData[2 * offset] = first;
+            nodeData[2 * offset + 1] = 1 << 2;
+            return;
+        }
+        
+        int split = findSplit(first, last);
+        int left = offset + 1, right = offset + 2 * (split - first + 1);
+        if(last - first + 1 > parallelThreshold)
+        {
+            EmitTask leftTask = new EmitTask(first, split, left);
+            leftTask.fork();
+            emit(split + 1, last, right);
+            leftTask.join();
+        }
+        else
+        {
+            emit(first, split, left);
+            emit(split + 1, last, right);
+        }
+        
+        //Bounds of both children, split axis from the position of the highest differing bit
+        int l = 6 * left, r = 6 * right;
+        for(int i = 0; i < 3; i++)
+        {
+            nodeBounds[o + i] = Math.min(nodeBounds[l + i], nodeBounds[r + i]);
+            nodeBounds[o + 3 + i] = Math.max(nodeBounds[l + 3 + i], nodeBounds[r + 3 + i]);
+        }
+        long diff = code(first) ^ code(last);
+        nodeData[2 * offset] = right;
+        nodeData[2 * offset + 1] = diff == 0 ? 0 : 2 - (63 - Long.numberOfLeadingZeros(diff)) % 3;
+    }
+    
+    @SuppressWarnings("serial")
+    class EmitTask extends RecursiveAction
+    {
+        final int first, last, offset;
+        
+        EmitTask(int first, int last, int offset)
+        {
+            this.first = first;
+            this.last = last;
+            this.offset = offset;
+        }
+        
+        @Override
+        protected void compute() 
+        {
+            emit(first, last, offset);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ *
+ * @author user
+ * 
+ * Ray mailbox of one thread for one accelerator. Grids reference a primitive
+ * from every cell it overlaps, the mailbox remembers the id of the last ray 
+ * that tested each primitive so a ray walking through several of those cells
+ * tests it only once. Every traversal starts with nextRay() and asks visit()
+ * before each primitive test.
+ * 
+ * A skipped test can not lose a hit, a closest hit traversal already shortened 
+ * the ray to a hit found the first time and a miss stays a miss.
+ * 
+ * Performed and skipped tests are counted per ray and added to counters 
+ * shared by the mailboxes of all threads in endRay().
+ */
+final class Mailbox 
+{
+    private int[] lastRay = new int[0];
+    private int rayId = 0;
+    
+    private final LongAdder tests, skipped;
+    private int rayTests = 0, raySkipped = 0;
+    
+    Mailbox(LongAdder tests, LongAdder skipped)
+    {
+        this.tests = tests;
+        this.skipped = skipped;
+    }
+    
+    //starts a new ray over nPrimitives primitive ids
+    void nextRay(int nPrimitives)
+    {
+        if(lastRay.length < nPrimitives)
+            lastRay = new int[nPrimitives];
+        
+        //Ids wrapped around, stamps of old rays could collide with new ones
+        if(++rayId == Integer.MAX_VALUE)
+        {
+            Arrays.fill(lastRay, 0);
+            rayId = 1;
+        }
+    }
+    
+    //true if the primitive has not been tested by the current ray yet
+    boolean visit(int primitive)
+    {
+        if(lastRay[primitive] == rayId)
+        {
+            raySkipped++;
+            return false;
+        }
+        lastRay[primitive] = rayId;
+        rayTests++;
+        return true;
+    }
+    
+    void endRay()
+    {
+        if(rayTests > 0) tests.add(rayTests);
+        if(raySkipped > 0) skipped.add(raySkipped);
+        rayTests = raySkipped = 0;
+    }
+}
@@ -0,0 +1,48 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+/**
+ *
+ * @author user
+ * 
+ * Order of the flattened nodes of a bounding volume hierarchy in memory. Every
+ * layout places parents before their children.
+ * 
+ * DEPTH_FIRST      - left child directly follows its parent
+ * SUBTREE_CLUSTERS - treelets of a fixed number of nodes, grown from their root
+ *                    by the largest surface area, are stored contiguously
+ * VAN_EMDE_BOAS    - the top half of the tree height is stored first, followed 
+ *                    by the subtrees below it, recursively
+ * 
+ * Nodes are objects, a node with its BoundingBox and two Point3f takes about 
+ * 112 bytes with compressed references, close to two 64 byte cache lines, so
+ * nodes cannot be packed into lines. A layout only decides which nodes are 
+ * allocated next to each other on the heap. SUBTREE_CLUSTERS is therefore 
+ * sized in nodes, not lines, the default of 8 nodes spans about 14 lines.
+ */
+public enum NodeLayout 
+{
+    DEPTH_FIRST, SUBTREE_CLUSTERS, VAN_EMDE_BOAS
+}
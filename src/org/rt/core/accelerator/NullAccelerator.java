@@ -37,10 +37,12 @@ import java.util.ArrayList;
 public class NullAccelerator extends AbstractAccelerator
 {
     private final ArrayList<AbstractPrimitive> primitives = new ArrayList<>();
-    private final BoundingBox bound = new BoundingBox();
+    private BoundingBox bound = new BoundingBox();
     
     @Override
     public void build(ArrayList<AbstractPrimitive> prims) {
+        primitives.clear();
+        bound = new BoundingBox();
         for(AbstractPrimitive prim : prims)
         {            
             primitives.add(prim);
@@ -0,0 +1,148 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.util.concurrent.RecursiveTask;
+import java.util.function.IntFunction;
+import org.rt.core.math.BoundingBox;
+
+/**
+ *
+ * @author user
+ * 
+ * Fork/join helpers for the top levels of a BVH build, where a single node 
+ * covers too many primitives for one thread. The primitive range is split 
+ * into fixed chunks whose bounds and SAH bins are merged afterwards. Merging 
+ * only takes minima, maxima and integer counts, hence the result does not 
+ * depend on the order in which chunks are processed.
+ */
+final class ParallelBinning 
+{
+    //primitives processed by a single task
+    static final int CHUNK_SIZE = 8192;
+    
+    private ParallelBinning()
+    {
+        
+    }
+    
+    //returns {bounds of primitives, bounds of primitive centroids} in [start, end)
+    static BoundingBox[] bounds(IntFunction<BoundingBox> boundsOf, int start, int end)
+    {
+        return new BoundsTask(boundsOf, start, end).invoke();
+    }
+    
+    //returns bins of [start, end) reset to centroidBounds, ready for findSplit
+    static SAHBinning bin(IntFunction<BoundingBox> boundsOf, int start, int end, BoundingBox centroidBounds, 
+                          int nBins, float traversalCost, float intersectionCost)
+    {
+        return new BinningTask(boundsOf, start, end, centroidBounds, nBins, traversalCost, intersectionCost).invoke();
+    }
+    
+    @SuppressWarnings("serial")
+    private static final class BoundsTask extends RecursiveTask<BoundingBox[]>
+    {
+        final IntFunction<BoundingBox> boundsOf;
+        final int start, end;
+        
+        BoundsTask(IntFunction<BoundingBox> boundsOf, int start, int end)
+        {
+            this.boundsOf = boundsOf;
+            this.start = start;
+            this.end = end;
+        }
+        
+        @Override
+        protected BoundingBox[] compute() 
+        {
+            if(end - start <= CHUNK_SIZE)
+            {
+                BoundingBox bounds = new BoundingBox();
+                BoundingBox centroidBounds = new BoundingBox();
+                for(int i = start; i < end; i++)
+                {
+                    BoundingBox b = boundsOf.apply(i);
+                    bounds.include(b);
+                    centroidBounds.include(b.getCenter());
+                }
+                return new BoundingBox[]{bounds, centroidBounds};
+            }
+            
+            int mid = (start + end) >>> 1;
+            BoundsTask left = new BoundsTask(boundsOf, start, mid);
+            left.fork();
+            BoundingBox[] r = new BoundsTask(boundsOf, mid, end).compute();
+            BoundingBox[] l = left.join();
+            l[0].include(r[0]);
+            l[1].include(r[1]);
+            return l;
+        }
+    }
+    
+    @SuppressWarnings("serial")
+    private static final class BinningTask extends RecursiveTask<SAHBinning>
+    {
+        final IntFunction<BoundingBox> boundsOf;
+        final int start, end;
+        final BoundingBox centroidBounds;
+        final int nBins;
+        final float traversalCost, intersectionCost;
+        
+        BinningTask(IntFunction<BoundingBox> boundsOf, int start, int end, BoundingBox centroidBounds, 
+                    int nBins, float traversalCost, float intersectionCost)
+        {
+            this.boundsOf = boundsOf;
+            this.start = start;
+            this.end = end;
+            this.centroidBounds = centroidBounds;
+            this.nBins = nBins;
+            this.traversalCost = traversalCost;
+            this.intersectionCost = intersectionCost;
+        }
+        
+        @Override
+        protected SAHBinning compute() 
+        {
+            if(end - start <= CHUNK_SIZE)
+            {
+                SAHBinning binning = new SAHBinning(nBins, traversalCost, intersectionCost);
+                binning.reset(centroidBounds);
+                for(int i = start; i < end; i++)
+                {
+                    BoundingBox b = boundsOf.apply(i);
+                    binning.add(b.getCenter(), b);
+                }
+                return binning;
+            }
+            
+            int mid = (start + end) >>> 1;
+            BinningTask left = new BinningTask(boundsOf, start, mid, centroidBounds, nBins, traversalCost, intersectionCost);
+            left.fork();
+            SAHBinning r = new BinningTask(boundsOf, mid, end, centroidBounds, nBins, traversalCost, intersectionCost).compute();
+            SAHBinning l = left.join();
+            l.merge(r);
+            return l;
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.rt.core.AbstractAccelerator;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.Intersection;
+import org.rt.core.cache.BVHLevelCache;
+import org.rt.core.math.BoundingBox;
+import org.rt.core.math.Ray;
+import org.rt.core.system.Timer;
+
+/**
+ *
+ * @author user
+ * 
+ * Four wide bounding volume hierarchy. A binary SAH tree is built with 
+ * FlatBVH and collapsed by repeatedly opening the child with the largest 
+ * surface area until a node has four children. The boxes of the four children 
+ * of a node are stored as structure of arrays, so a single loop over the 
+ * lanes tests all of them against the ray.
+ * 
+ * Node layout
+ * 
+ *      bounds  [24 * i +  0..3]   minimum x of the four children
+ *      bounds  [24 * i +  4..7]   minimum y
+ *      bounds  [24 * i +  8..11]  minimum z
+ *      bounds  [24 * i + 12..15]  maximum x
+ *      bounds  [24 * i + 16..19]  maximum y
+ *      bounds  [24 * i + 20..23]  maximum z
+ *      children[4 * i + lane]     child node, or first primitive of a leaf
+ *      counts  [4 * i + lane]     number of primitives, 0 for child nodes
+ * 
+ * Unused lanes have inverted infinite bounds and are never hit. Leaves are 
+ * pushed on the traversal stack as ~(4 * i + lane).
+ */
+public class QBVH extends AbstractAccelerator
+{
+    static final int WIDTH = 4;
+    
+    int maxPrimsInNode = 4;
+    
+    //SAH parameters of the binary build
+    int nBins = 16;
+    float traversalCost = 0.125f;
+    float intersectionCost = 1f;
+    
+    AbstractPrimitive[] primitives = null;
+    float[] bounds = null;
+    int[] children = null;
+    int[] counts = null;
+    int nodeCount = 0;
+    
+    BoundingBox bound = null;
+    long buildTime = 0;
+    BVHLevelCache cache = null;
+    
+    public QBVH()
+    {
+        
+    }
+    
+    public QBVH(int maxPrimsInNode)
+    {
+        this.maxPrimsInNode = maxPrimsInNode;
+    }
+    
+    public void setSAHParameters(int nBins, float traversalCost, float intersectionCost)
+    {
+        this.nBins = nBins;
+        this.traversalCost = traversalCost;
+        this.intersectionCost = intersectionCost;
+    }
+    
+    //caches the binary tree, collapsing it is cheap
+    @Override
+    public void setCache(BVHLevelCache cache)
+    {
+        this.cache = cache;
+    }
+    
+    @Override
+    public void build(ArrayList<AbstractPrimitive> prims) 
+    {
+        Timer timer = new Timer();
+        timer.start();
+        
+        //Build binary tree to collapse
+        FlatBVH binary = new FlatBVH(maxPrimsInNode);
+        binary.setSAHParameters(nBins, traversalCost, intersectionCost);
+        binary.setCache(cache);
+        binary.build(prims);
+        bound = binary.getWorldBounds();
+        
+        //Store primitives in leaf order
+        primitives = new AbstractPrimitive[binary.primIndex.length];
+        for(int i = 0; i < primitives.length; i++)
+            primitives[i] = binary.primitives[binary.primIndex[i]];
+        
+        //A wide node replaces at least one binary interior node
+        int capacity = Math.max(1, binary.nodeCount / 2);
+        bounds = new float[6 * WIDTH * capacity];
+        children = new int[WIDTH * capacity];
+        counts = new int[WIDTH * capacity];
+        nodeCount = 0;
+        if(binary.nodeCount > 0)
+            collapse(binary, 0);
+        
+        bounds = Arrays.copyOf(bounds, 6 * WIDTH * nodeCount);
+        children = Arrays.copyOf(children, WIDTH * nodeCount);
+        counts = Arrays.copyOf(counts, WIDTH * nodeCount);
+        
+        timer.end();
+        buildTime = timer.nanos();
+    }
+    
+    //creates the wide node for binary node b and its subtree, returns its index
+    private int collapse(FlatBVH binary, int b)
+    {
+        int[] open = new int[WIDTH];
+        int nOpen = 0;
+        if(isLeaf(binary, b))
+            open[nOpen++] = b;
+        else
+        {
+            open[nOpen++] = b + 1;
+            open[nOpen++] = binary.nodeData[2 * b];
+        }
+        
+        //Open the interior child with the largest surface area until all lanes are used
+        while(nOpen < WIDTH)
+        {
+            int largest = -1;
+            float largestArea = -1;
+            for(int i = 0; i < nOpen; i++)
+            {
+                if(isLeaf(binary, open[i]))
+                    continue;
+                float area = area(binary, open[i]);
+                if(area > largestArea)
+                {
+                    largest = i;
+                    largestArea = area;
+                }
+            }
+            if(largest < 0)
+                break;
+            
+            int node = open[largest];
+            open[largest] = node + 1;
+            open[nOpen++] = binary.nodeData[2 * node];
+        }
+        
+        int q = nodeCount++;
+        for(int lane = 0; lane < WIDTH; lane++)
+        {
+            int slot = WIDTH * q + lane;
+            if(lane >= nOpen)
+            {
+                setLane(q, lane, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                                 Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY);
+                continue;
+            }
+            
+            int c = open[lane];
+            float[] nb = binary.nodeBounds;
+            setLane(q, lane, nb[6 * c], nb[6 * c + 1], nb[6 * c + 2], nb[6 * c + 3], nb[6 * c + 4], nb[6 * c + 5]);
+            if(isLeaf(binary, c))
+            {
+                children[slot] = binary.nodeData[2 * c];
+                counts[slot] = binary.nodeData[2 * c + 1] >>> 2;
+            }
+            else
+                children[slot] = collapse(binary, c);
+        }
+        return q;
+    }
+    
+    private void setLane(int q, int lane, float minx, float miny, float minz, float maxx, float maxy, float maxz)
+    {
+        int o = 6 * WIDTH * q + lane;
+        bounds[o     ] = minx;
+        bounds[o +  4] = miny;
+        bounds[o +  8] = minz;
+        bounds[o + 12] = maxx;
+        bounds[o + 16] = maxy;
+        bounds[o + 20] = maxz;
+    }
+    
+    private static boolean isLeaf(FlatBVH binary, int b)
+    {
+        return (binary.nodeData[2 * b + 1] >>> 2) > 0;
+    }
+    
+    private static float area(FlatBVH binary, int b)
+    {
+        float[] nb = binary.nodeBounds;
+        return SAHBinning.area(nb[6 * b], nb[6 * b + 1], nb[6 * b + 2], nb[6 * b + 3], nb[6 * b + 4], nb[6 * b + 5]);
+    }
+    
+    /**
+     * Tests the ray against the four child boxes of node q and pushes every 
+     * child that is hit together with its entry distance.
+     * 
+     * @return number of pushed children
+     */
+    private int pushChildren(int q, Ray r, TraversalStack todo)
+    {
+        int base = 6 * WIDTH * q;
+        int[] sign = r.sign;
+        float ox = r.o.x, oy = r.o.y, oz = r.o.z;
+        float idx = r.inv_d.x, idy = r.inv_d.y, idz = r.inv_d.z;
+        float tMin = r.getMin(), tMax = r.getMax();
+        
+        //near and far plane offsets selected by the ray direction signs
+        int nearX = base + 12 * sign[0],     farX = base + 12 - 12 * sign[0];
+        int nearY = base + 4 + 12 * sign[1], farY = base + 16 - 12 * sign[1];
+        int nearZ = base + 8 + 12 * sign[2], farZ = base + 20 - 12 * sign[2];
+        
+        int hits = 0;
+        for(int lane = 0; lane < WIDTH; lane++)
+        {
+            float t0 = tMin, t1 = tMax;
+            float tNear = (bounds[nearX + lane] - ox) * idx, tFar = (bounds[farX + lane] - ox) * idx;
+            if(tNear > t0) t0 = tNear;
+            if(tFar < t1) t1 = tFar;
+            tNear = (bounds[nearY + lane] - oy) * idy; tFar = (bounds[farY + lane] - oy) * idy;
+            if(tNear > t0) t0 = tNear;
+            if(tFar < t1) t1 = tFar;
+            tNear = (bounds[nearZ + lane] - oz) * idz; tFar = (bounds[farZ + lane] - oz) * idz;
+            if(tNear > t0) t0 = tNear;
+            if(tFar < t1) t1 = tFar;
+            if(t0 <= t1)
+            {
+                int slot = WIDTH * q + lane;
+                todo.push(counts[slot] > 0 ? ~slot : children[slot], t0);
+                hits++;
+            }
+        }
+        return hits;
+    }
+
+    @Override
+    public boolean intersect(Ray r, Intersection isect) 
+    {
+        if(nodeCount == 0) return false;
+        boolean hit = false;
+        
+        //Visit children nearest first, culling entries behind the closest hit
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark();
+        todo.push(0, r.getMin());
+        while(todo.hasNext(todoBase))
+        {
+            int node = todo.pop();
+            if(todo.distance() > r.getMax())
+                continue;
+            
+            if(node < 0)
+            {
+                //Intersect ray with primitives in leaf
+                int slot = ~node;
+                int first = children[slot], n = counts[slot];
+                for(int i = 0; i < n; ++i)
+                    if(primitives[first + i].intersect(r, isect))
+                        hit = true;
+            }
+            else
+                todo.sortTop(pushChildren(node, r, todo));
+        }
+        return hit;
+    }
+
+    @Override
+    public boolean intersectP(Ray r) 
+    {
+        if(nodeCount == 0) return false;
+        
+        TraversalStack todo = TraversalStack.get();
+        int todoBase = todo.mark();
+        todo.push(0, r.getMin());
+        while(todo.hasNext(todoBase))
+        {
+            int node = todo.pop();
+            if(node < 0)
+            {
+                //Any hit within the ray extent occludes
+                int slot = ~node;
+                int first = children[slot], n = counts[slot];
+                for(int i = 0; i < n; ++i)
+                    if(primitives[first + i].intersectP(r))
+                    {
+                        todo.release(todoBase);
+                        return true;
+                    }
+            }
+            else
+                pushChildren(node, r, todo);
+        }
+        return false;
+    }
+
+    @Override
+    public BoundingBox getWorldBounds() {
+        return bound;
+    }
+    
+    public int getNodeCount()
+    {
+        return nodeCount;
+    }
+    
+    public long getBuildTime()
+    {
+        return buildTime;
+    }
+    
+    //bytes held by node arrays
+    public long getMemoryUsage()
+    {
+        long bytes = 0;
+        if(bounds != null) bytes += 4L * bounds.length;
+        if(children != null) bytes += 4L * children.length;
+        if(counts != null) bytes += 4L * counts.length;
+        return bytes;
+    }
+}
@@ -0,0 +1,291 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.util.Arrays;
+import org.rt.core.coordinates.Point3f;
+import org.rt.core.math.BoundingBox;
+
+/**
+ *
+ * @author user
+ * 
+ * Binned surface area heuristic (SAH) split evaluation. Primitive centroids 
+ * are projected into a fixed number of equally sized bins on each of the three 
+ * axes, and the split plane between two bins with the lowest estimated 
+ * traversal cost is chosen.
+ * 
+ * The cost of a split is estimated as
+ * 
+ *      traversalCost + intersectionCost * (nL * areaL + nR * areaR) / area
+ * 
+ * and can be compared directly against leafCost(n) to decide whether a node
+ * should be subdivided at all.
+ * 
+ * An instance is not thread safe, use one per building thread.
+ */
+public class SAHBinning 
+{
+    private final int nBins;
+    private final float traversalCost;
+    private final float intersectionCost;
+    
+    //per axis bin data, bins of axis a start at a * nBins
+    private final int[] count;
+    private final float[] bounds;        // 6 floats per bin: min xyz, max xyz
+    
+    //sweep buffers
+    private final float[] rightArea;
+    private final int[] rightCount;
+    
+    //centroid range mapping per axis
+    private final float[] cmin = new float[3];
+    private final float[] scale = new float[3];
+    
+    //best split found by findSplit
+    private int bestAxis, bestBin;
+    private float bestCost;
+    
+    public SAHBinning()
+    {
+        this(16, 0.125f, 1f);
+    }
+    
+    public SAHBinning(int nBins, float traversalCost, float intersectionCost)
+    {
+        if(nBins < 2)
+            throw new IllegalArgumentException("at least 2 bins required " +nBins);
+        
+        this.nBins = nBins;
+        this.traversalCost = traversalCost;
+        this.intersectionCost = intersectionCost;
+        
+        this.count = new int[3 * nBins];
+        this.bounds = new float[3 * nBins * 6];
+        this.rightArea = new float[nBins];
+        this.rightCount = new int[nBins];
+    }
+    
+    public int getBinCount()
+    {
+        return nBins;
+    }
+    
+    public float getTraversalCost()
+    {
+        return traversalCost;
+    }
+    
+    public float getIntersectionCost()
+    {
+        return intersectionCost;
+    }
+    
+    public void reset(BoundingBox centroidBounds)
+    {
+        reset(centroidBounds.minimum.x, centroidBounds.minimum.y, centroidBounds.minimum.z,
+              centroidBounds.maximum.x, centroidBounds.maximum.y, centroidBounds.maximum.z);
+    }
+    
+    public void reset(float minx, float miny, float minz, float maxx, float maxy, float maxz)
+    {
+        Arrays.fill(count, 0);
+        for(int i = 0; i < bounds.length; i += 6)
+        {
+            bounds[i    ] = bounds[i + 1] = bounds[i + 2] = Float.POSITIVE_INFINITY;
+            bounds[i + 3] = bounds[i + 4] = bounds[i + 5] = Float.NEGATIVE_INFINITY;
+        }
+        
+        setRange(0, minx, maxx);
+        setRange(1, miny, maxy);
+        setRange(2, minz, maxz);
+        
+        bestAxis = -1;
+        bestBin = -1;
+        bestCost = Float.POSITIVE_INFINITY;
+    }
+    
+    private void setRange(int axis, float min, float max)
+    {
+        float extent = max - min;
+        cmin[axis] = min;
+        //slightly shrink the scale so that the maximum centroid falls in the last bin
+        scale[axis] = extent > 0 ? nBins * (1 - 1e-5f) / extent : 0;
+    }
+    
+    public int bin(int axis, float centroid)
+    {
+        int b = (int) ((centroid - cmin[axis]) * scale[axis]);
+        if(b < 0) return 0;
+        if(b >= nBins) return nBins - 1;
+        return b;
+    }
+    
+    public void add(Point3f centroid, BoundingBox b)
+    {
+        add(centroid.x, centroid.y, centroid.z, 
+            b.minimum.x, b.minimum.y, b.minimum.z, 
+            b.maximum.x, b.maximum.y, b.maximum.z);
+    }
+    
+    public void add(float cx, float cy, float cz, 
+                    float minx, float miny, float minz, 
+                    float maxx, float maxy, float maxz)
+    {
+        addToBin(0, bin(0, cx), minx, miny, minz, maxx, maxy, maxz);
+        addToBin(1, bin(1, cy), minx, miny, minz, maxx, maxy, maxz);
+        addToBin(2, bin(2, cz), minx, miny, minz, maxx, maxy, maxz);
+    }
+    
+    private void addToBin(int axis, int b, 
+                          float minx, float miny, float minz, 
+                          float maxx, float maxy, float maxz)
+    {
+        int i = axis * nBins + b;
+        int o = i * 6;
+        count[i]++;
+        if(minx < bounds[o    ]) bounds[o    ] = minx;
+        if(miny < bounds[o + 1]) bounds[o + 1] = miny;
+        if(minz < bounds[o + 2]) bounds[o + 2] = minz;
+        if(maxx > bounds[o + 3]) bounds[o + 3] = maxx;
+        if(maxy > bounds[o + 4]) bounds[o + 4] = maxy;
+        if(maxz > bounds[o + 5]) bounds[o + 5] = maxz;
+    }
+    
+    //adds the bins of another instance that was reset to the same centroid bounds
+    public void merge(SAHBinning other)
+    {
+        for(int i = 0; i < count.length; i++)
+        {
+            if(other.count[i] == 0)
+                continue;
+            int o = i * 6;
+            count[i] += other.count[i];
+            if(other.bounds[o    ] < bounds[o    ]) bounds[o    ] = other.bounds[o    ];
+            if(other.bounds[o + 1] < bounds[o + 1]) bounds[o + 1] = other.bounds[o + 1];
+            if(other.bounds[o + 2] < bounds[o + 2]) bounds[o + 2] = other.bounds[o + 2];
+            if(other.bounds[o + 3] > bounds[o + 3]) bounds[o + 3] = other.bounds[o + 3];
+            if(other.bounds[o + 4] > bounds[o + 4]) bounds[o + 4] = other.bounds[o + 4];
+            if(other.bounds[o + 5] > bounds[o + 5]) bounds[o + 5] = other.bounds[o + 5];
+        }
+    }
+
+    /**
+     * Sweeps the bins of every axis with a non-degenerate centroid range and 
+     * records the cheapest split.
+     * 
+     * @param parentArea surface area of the node being split
+     * @return true if a split with primitives on both sides exists
+     */
+    public boolean findSplit(float parentArea)
+    {
+        float invArea = parentArea > 0 ? 1f / parentArea : 0;
+        
+        for(int axis = 0; axis < 3; axis++)
+        {
+            if(scale[axis] == 0)
+                continue;
+            
+            int first = axis * nBins;
+            
+            //Sweep from the right, accumulating area and count of bins [b, nBins)
+            float minx = Float.POSITIVE_INFINITY, miny = Float.POSITIVE_INFINITY, minz = Float.POSITIVE_INFINITY;
+            float maxx = Float.NEGATIVE_INFINITY, maxy = Float.NEGATIVE_INFINITY, maxz = Float.NEGATIVE_INFINITY;
+            int n = 0;
+            for(int b = nBins - 1; b > 0; b--)
+            {
+                int o = (first + b) * 6;
+                n += count[first + b];
+                minx = Math.min(minx, bounds[o    ]); miny = Math.min(miny, bounds[o + 1]); minz = Math.min(minz, bounds[o + 2]);
+                maxx = Math.max(maxx, bounds[o + 3]); maxy = Math.max(maxy, bounds[o + 4]); maxz = Math.max(maxz, bounds[o + 5]);
+                rightCount[b] = n;
+                rightArea[b] = area(minx, miny, minz, maxx, maxy, maxz);
+            }
+            
+            //Sweep from the left and evaluate split after bin b
+            minx = miny = minz = Float.POSITIVE_INFINITY;
+            maxx = maxy = maxz = Float.NEGATIVE_INFINITY;
+            n = 0;
+            for(int b = 0; b < nBins - 1; b++)
+            {
+                int o = (first + b) * 6;
+                n += count[first + b];
+                minx = Math.min(minx, bounds[o    ]); miny = Math.min(miny, bounds[o + 1]); minz = Math.min(minz, bounds[o + 2]);
+                maxx = Math.max(maxx, bounds[o + 3]); maxy = Math.max(maxy, bounds[o + 4]); maxz = Math.max(maxz, bounds[o + 5]);
+                
+                if(n == 0 || rightCount[b + 1] == 0)
+                    continue;
+                
+                float cost = traversalCost + intersectionCost * 
+                        (n * area(minx, miny, minz, maxx, maxy, maxz) + 
+                         rightCount[b + 1] * rightArea[b + 1]) * invArea;
+                
+                if(cost < bestCost)
+                {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = b;
+                }
+            }
+        }
+        
+        return bestAxis >= 0;
+    }
+    
+    public int getSplitAxis()
+    {
+        return bestAxis;
+    }
+    
+    public int getSplitBin()
+    {
+        return bestBin;
+    }
+    
+    public float getSplitCost()
+    {
+        return bestCost;
+    }
+    
+    //true if a centroid coordinate on the split axis belongs to the left child
+    public boolean isLeft(float centroid)
+    {
+        return bin(bestAxis, centroid) <= bestBin;
+    }
+    
+    public float leafCost(int nPrimitives)
+    {
+        return intersectionCost * nPrimitives;
+    }
+    
+    public static float area(float minx, float miny, float minz, float maxx, float maxy, float maxz)
+    {
+        float dx = maxx - minx;
+        float dy = maxy - miny;
+        float dz = maxz - minz;
+        if(dx < 0 || dy < 0 || dz < 0)
+            return 0;
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+}
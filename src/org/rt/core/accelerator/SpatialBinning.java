@@ -0,0 +1,241 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author user
+ * 
+ * Binned evaluation of spatial splits for SplitBVH. Unlike SAHBinning the bins
+ * partition the node bounds themselves, and every reference is chopped at the
+ * bin planes it straddles so that each bin only grows by the part of the 
+ * reference that lies inside it. References are counted as entering in the bin
+ * of their minimum and exiting in the bin of their maximum, a split after bin
+ * b then places entry[0..b] references left and exit[b+1..] references right,
+ * the straddling ones on both sides.
+ * 
+ * An instance is not thread safe, use one per building thread.
+ */
+final class SpatialBinning 
+{
+    private final int nBins;
+    
+    //per axis bin data, bins of axis a start at a * nBins
+    private final int[] entry;
+    private final int[] exit;
+    private final float[] bounds;        // 6 floats per bin: min xyz, max xyz
+    
+    //sweep buffers
+    private final float[] rightArea;
+    private final int[] rightCount;
+    
+    //bin plane mapping per axis
+    private final float[] origin = new float[3];
+    private final float[] width = new float[3];
+    private final float[] invWidth = new float[3];
+    
+    //reference chopping buffers
+    private final float[] piece = new float[6];
+    private final float[] left = new float[6];
+    private final float[] right = new float[6];
+    
+    //best split found by findSplit
+    private int bestAxis, bestBin, bestLeftCount, bestRightCount;
+    private float bestCost;
+    
+    SpatialBinning(int nBins)
+    {
+        this.nBins = nBins;
+        this.entry = new int[3 * nBins];
+        this.exit = new int[3 * nBins];
+        this.bounds = new float[3 * nBins * 6];
+        this.rightArea = new float[nBins];
+        this.rightCount = new int[nBins];
+    }
+    
+    void reset(float[] nodeBounds)
+    {
+        Arrays.fill(entry, 0);
+        Arrays.fill(exit, 0);
+        for(int i = 0; i < bounds.length; i += 6)
+        {
+            bounds[i    ] = bounds[i + 1] = bounds[i + 2] = Float.POSITIVE_INFINITY;
+            bounds[i + 3] = bounds[i + 4] = bounds[i + 5] = Float.NEGATIVE_INFINITY;
+        }
+        
+        for(int axis = 0; axis < 3; axis++)
+        {
+            float extent = nodeBounds[axis + 3] - nodeBounds[axis];
+            origin[axis] = nodeBounds[axis];
+            width[axis] = extent / nBins;
+            invWidth[axis] = extent > 0 ? nBins / extent : 0;
+        }
+        
+        bestAxis = -1;
+        bestBin = -1;
+        bestCost = Float.POSITIVE_INFINITY;
+    }
+    
+    int bin(int axis, float position)
+    {
+        int b = (int) ((position - origin[axis]) * invWidth[axis]);
+        if(b < 0) return 0;
+        if(b >= nBins) return nBins - 1;
+        return b;
+    }
+    
+    //position of the plane between bin b - 1 and bin b
+    float plane(int axis, int b)
+    {
+        return origin[axis] + b * width[axis];
+    }
+    
+    void add(SplitBVH bvh, int ref)
+    {
+        int prim = bvh.refPrim[ref];
+        for(int axis = 0; axis < 3; axis++)
+        {
+            if(invWidth[axis] == 0)
+                continue;
+            
+            int first = bin(axis, bvh.refBounds[6 * ref + axis]);
+            int last  = bin(axis, bvh.refBounds[6 * ref + 3 + axis]);
+            entry[axis * nBins + first]++;
+            exit[axis * nBins + last]++;
+            
+            //Chop reference at every bin plane it straddles
+            System.arraycopy(bvh.refBounds, 6 * ref, piece, 0, 6);
+            for(int b = first; b < last; b++)
+            {
+                bvh.splitReference(prim, piece, 0, axis, plane(axis, b + 1), left, right);
+                if(!SplitBVH.isEmpty(left))
+                    include(axis * nBins + b, left);
+                if(SplitBVH.isEmpty(right))
+                    break;
+                System.arraycopy(right, 0, piece, 0, 6);
+                if(b + 1 == last)
+                    include(axis * nBins + last, piece);
+            }
+            if(first == last)
+                include(axis * nBins + first, piece);
+        }
+    }
+    
+    private void include(int i, float[] b)
+    {
+        int o = i * 6;
+        if(b[0] < bounds[o    ]) bounds[o    ] = b[0];
+        if(b[1] < bounds[o + 1]) bounds[o + 1] = b[1];
+        if(b[2] < bounds[o + 2]) bounds[o + 2] = b[2];
+        if(b[3] > bounds[o + 3]) bounds[o + 3] = b[3];
+        if(b[4] > bounds[o + 4]) bounds[o + 4] = b[4];
+        if(b[5] > bounds[o + 5]) bounds[o + 5] = b[5];
+    }
+    
+    /**
+     * Sweeps the bins of every axis with a non-degenerate extent and records 
+     * the cheapest split plane.
+     * 
+     * @return true if a split with references on both sides exists
+     */
+    boolean findSplit(float parentArea, float traversalCost, float intersectionCost)
+    {
+        float invArea = parentArea > 0 ? 1f / parentArea : 0;
+        
+        for(int axis = 0; axis < 3; axis++)
+        {
+            if(invWidth[axis] == 0)
+                continue;
+            
+            int first = axis * nBins;
+            
+            //Sweep from the right, accumulating area of bins [b, nBins) and references exiting in them
+            float minx = Float.POSITIVE_INFINITY, miny = Float.POSITIVE_INFINITY, minz = Float.POSITIVE_INFINITY;
+            float maxx = Float.NEGATIVE_INFINITY, maxy = Float.NEGATIVE_INFINITY, maxz = Float.NEGATIVE_INFINITY;
+            int n = 0;
+            for(int b = nBins - 1; b > 0; b--)
+            {
+                int o = (first + b) * 6;
+                n += exit[first + b];
+                minx = Math.min(minx, bounds[o    ]); miny = Math.min(miny, bounds[o + 1]); minz = Math.min(minz, bounds[o + 2]);
+                maxx = Math.max(maxx, bounds[o + 3]); maxy = Math.max(maxy, bounds[o + 4]); maxz = Math.max(maxz, bounds[o + 5]);
+                rightCount[b] = n;
+                rightArea[b] = SAHBinning.area(minx, miny, minz, maxx, maxy, maxz);
+            }
+            
+            //Sweep from the left, accumulating references entering in bins [0, b]
+            minx = miny = minz = Float.POSITIVE_INFINITY;
+            maxx = maxy = maxz = Float.NEGATIVE_INFINITY;
+            n = 0;
+            for(int b = 0; b < nBins - 1; b++)
+            {
+                int o = (first + b) * 6;
+                n += entry[first + b];
+                minx = Math.min(minx, bounds[o    ]); miny = Math.min(miny, bounds[o + 1]); minz = Math.min(minz, bounds[o + 2]);
+                maxx = Math.max(maxx, bounds[o + 3]); maxy = Math.max(maxy, bounds[o + 4]); maxz = Math.max(maxz, bounds[o + 5]);
+                
+                if(n == 0 || rightCount[b + 1] == 0)
+                    continue;
+                
+                float cost = traversalCost + intersectionCost * 
+                        (n * SAHBinning.area(minx, miny, minz, maxx, maxy, maxz) + 
+                         rightCount[b + 1] * rightArea[b + 1]) * invArea;
+                
+                if(cost < bestCost)
+                {
+                    bestCost = cost;
+                    bestAxis = axis;
+                    bestBin = b;
+                    bestLeftCount = n;
+                    bestRightCount = rightCount[b + 1];
+                }
+            }
+        }
+        
+        return bestAxis >= 0;
+    }
+    
+    int getSplitAxis()
+    {
+        return bestAxis;
+    }
+    
+    float getSplitPosition()
+    {
+        return plane(bestAxis, bestBin + 1);
+    }
+    
+    float getSplitCost()
+    {
+        return bestCost;
+    }
+    
+    //number of references placed on both sides of the best split
+    int getDuplicates(int nReferences)
+    {
+        return bestLeftCount + bestRightCount - nReferences;
+    }
+}
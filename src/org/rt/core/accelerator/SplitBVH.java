@@ -0,0 +1,437 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.cache.PrimitiveListCache;
+import org.rt.core.coordinates.Point3f;
+import org.rt.core.math.BoundingBox;
+import org.rt.core.primitive.GeometryPrimitive;
+import org.rt.util.IntArray;
+
+/**
+ *
+ * @author user
+ * 
+ * Spatial split bounding volume hierarchy (SBVH). Builds the same node layout
+ * as FlatBVH, but besides object splits each node also evaluates spatial 
+ * splits that cut primitive references at a plane. A primitive straddling the
+ * plane is referenced from both children, each reference with bounds clipped 
+ * to its side, which keeps long thin triangles from inflating node bounds.
+ * 
+ * Triangle references are clipped against the actual triangle edges read from
+ * Triangle/TriangleM vertices, other primitives are clipped as boxes. Spatial 
+ * splits are only tried where the children of the best object split overlap, 
+ * and stop once the number of references reaches the split budget.
+ */
+public class SplitBVH extends FlatBVH
+{
+    //fraction of additional references spatial splits may create
+    float splitBudget = 0.5f;
+    //minimum overlap of object split children, relative to root area, to try spatial splits
+    float overlapThreshold = 1e-5f;
+    int maxDepth = 64;
+    
+    //build only data, references are a primitive index with clipped bounds
+    int[] refPrim = null;
+    float[] refBounds = null;
+    int refCount, maxRefs;
+    float[] vertices = null;    // 9 floats per triangle primitive, NaN otherwise
+    float minOverlap;
+    IntArray leafPrims = null;
+    
+    int spatialSplits = 0;
+    
+    public SplitBVH()
+    {
+        
+    }
+    
+    public SplitBVH(int maxPrimsInNode)
+    {
+        super(maxPrimsInNode);
+    }
+    
+    public void setSplitBudget(float splitBudget)
+    {
+        this.splitBudget = splitBudget;
+    }
+    
+    public void setOverlapThreshold(float overlapThreshold)
+    {
+        this.overlapThreshold = overlapThreshold;
+    }
+    
+    @Override
+    void buildTree()
+    {
+        int n = primitives.length;
+        spatialSplits = 0;
+        
+        if(n == 0)
+        {
+            primIndex = new int[0];
+            nodeBounds = new float[0];
+            nodeData = new int[0];
+            nodeCount = 0;
+            return;
+        }
+        
+        //Initialize one reference per primitive
+        maxRefs = n + (int) (n * splitBudget);
+        refPrim = new int[n];
+        refBounds = new float[6 * n];
+        vertices = new float[9 * n];
+        refCount = n;
+        int[] refs = new int[n];
+        float[] rootBounds = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                              Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for(int i = 0; i < n; i++)
+        {
+            BoundingBox b = primitives[i].getWorldBounds();
+            refBounds[6 * i    ] = b.minimum.x;
+            refBounds[6 * i + 1] = b.minimum.y;
+            refBounds[6 * i + 2] = b.minimum.z;
+            refBounds[6 * i + 3] = b.maximum.x;
+            refBounds[6 * i + 4] = b.maximum.y;
+            refBounds[6 * i + 5] = b.maximum.z;
+            include(rootBounds, refBounds, 6 * i, 6 * i + 3);
+            refPrim[i] = i;
+            refs[i] = i;
+            initVertices(i);
+        }
+        minOverlap = overlapThreshold * area(rootBounds);
+        leafPrims = new IntArray();
+        
+        //Recursively build BVH tree over references
+        int[] totalNodes = new int[1];
+        BuildNode root = recursiveBuild(refs, n, 0, totalNodes, 
+                new SAHBinning(nBins, traversalCost, intersectionCost), new SpatialBinning(nBins));
+        primIndex = leafPrims.trim();
+        
+        //Compute representation of depth-first traversal of BVH tree
+        nodeCount = totalNodes[0];
+        nodeBounds = new float[6 * nodeCount];
+        nodeData = new int[2 * nodeCount];
+        flattenBVHTree(root, new int[1]);
+        
+        refPrim = null;
+        refBounds = vertices = null;
+        leafPrims = null;
+    }
+    
+    @Override
+    String getCacheKind()
+    {
+        return "splitbvh";
+    }
+    
+    @Override
+    long cacheKey(ArrayList<AbstractPrimitive> prims)
+    {
+        return PrimitiveListCache.hash(super.cacheKey(prims), splitBudget, overlapThreshold, maxDepth);
+    }
+    
+    private void initVertices(int prim)
+    {
+        Point3f[] p = GeometryPrimitive.getTriangleVertices(primitives[prim]);
+        
+        int o = 9 * prim;
+        if(p == null)
+        {
+            vertices[o] = Float.NaN;
+            return;
+        }
+        vertices[o    ] = p[0].x; vertices[o + 1] = p[0].y; vertices[o + 2] = p[0].z;
+        vertices[o + 3] = p[1].x; vertices[o + 4] = p[1].y; vertices[o + 5] = p[1].z;
+        vertices[o + 6] = p[2].x; vertices[o + 7] = p[2].y; vertices[o + 8] = p[2].z;
+    }
+    
+    private BuildNode recursiveBuild(int[] refs, int count, int depth, int[] totalNodes, 
+                                     SAHBinning binning, SpatialBinning spatial)
+    {
+        totalNodes[0]++;
+        BuildNode node = new BuildNode();
+        
+        //Compute bounds of references and of their centroids
+        float[] cb = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                      Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        for(int i = 0; i < count; i++)
+        {
+            int o = 6 * refs[i];
+            include(node.bounds, refBounds, o, o + 3);
+            float cx = 0.5f * (refBounds[o    ] + refBounds[o + 3]);
+            float cy = 0.5f * (refBounds[o + 1] + refBounds[o + 4]);
+            float cz = 0.5f * (refBounds[o + 2] + refBounds[o + 5]);
+            if(cx < cb[0]) cb[0] = cx; if(cx > cb[3]) cb[3] = cx;
+            if(cy < cb[1]) cb[1] = cy; if(cy > cb[4]) cb[4] = cy;
+            if(cz < cb[2]) cb[2] = cz; if(cz > cb[5]) cb[5] = cz;
+        }
+        
+        if(count <= 1 || depth >= maxDepth)
+            return initLeaf(node, refs, count);
+        
+        //Evaluate object split
+        float area = area(node.bounds);
+        binning.reset(cb[0], cb[1], cb[2], cb[3], cb[4], cb[5]);
+        for(int i = 0; i < count; i++)
+        {
+            int o = 6 * refs[i];
+            binning.add(0.5f * (refBounds[o    ] + refBounds[o + 3]), 
+                        0.5f * (refBounds[o + 1] + refBounds[o + 4]), 
+                        0.5f * (refBounds[o + 2] + refBounds[o + 5]),
+                        refBounds[o], refBounds[o + 1], refBounds[o + 2], 
+                        refBounds[o + 3], refBounds[o + 4], refBounds[o + 5]);
+        }
+        boolean objectSplit = binning.findSplit(area);
+        float bestCost = objectSplit ? binning.getSplitCost() : Float.POSITIVE_INFINITY;
+        
+        //Evaluate spatial split if the object split children overlap and the budget allows
+        boolean spatialSplit = false;
+        if(refCount < maxRefs && (!objectSplit || objectOverlap(refs, count, binning) > minOverlap))
+        {
+            spatial.reset(node.bounds);
+            for(int i = 0; i < count; i++)
+                spatial.add(this, refs[i]);
+            if(spatial.findSplit(area, traversalCost, intersectionCost) && 
+               spatial.getSplitCost() < bestCost && 
+               refCount + spatial.getDuplicates(count) <= maxRefs)
+            {
+                spatialSplit = true;
+                bestCost = spatial.getSplitCost();
+            }
+        }
+        
+        if(!objectSplit && !spatialSplit)
+            return initLeaf(node, refs, count);
+        
+        if(count <= maxPrimsInNode && bestCost >= binning.leafCost(count))
+            return initLeaf(node, refs, count);
+        
+        int[] left = new int[count], right = new int[count];
+        int[] nLeft = new int[1], nRight = new int[1];
+        int axis;
+        if(spatialSplit && spatialPartition(refs, count, spatial.getSplitAxis(), spatial.getSplitPosition(), left, right, nLeft, nRight))
+        {
+            axis = spatial.getSplitAxis();
+            spatialSplits++;
+        }
+        else if(objectSplit)
+        {
+            axis = binning.getSplitAxis();
+            objectPartition(refs, count, binning, left, right, nLeft, nRight);
+        }
+        else
+            return initLeaf(node, refs, count);
+        
+        return node.initInterior(axis, 
+                recursiveBuild(left, nLeft[0], depth + 1, totalNodes, binning, spatial),
+                recursiveBuild(right, nRight[0], depth + 1, totalNodes, binning, spatial));
+    }
+    
+    private BuildNode initLeaf(BuildNode node, int[] refs, int count)
+    {
+        node.initLeaf(leafPrims.size(), count);
+        for(int i = 0; i < count; i++)
+            leafPrims.add(refPrim[refs[i]]);
+        return node;
+    }
+    
+    //surface area of the intersection of both children of the best object split
+    private float objectOverlap(int[] refs, int count, SAHBinning binning)
+    {
+        float[] l = {Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY, Float.POSITIVE_INFINITY,
+                     Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY, Float.NEGATIVE_INFINITY};
+        float[] r = l.clone();
+        int axis = binning.getSplitAxis();
+        for(int i = 0; i < count; i++)
+        {
+            int o = 6 * refs[i];
+            if(binning.isLeft(0.5f * (refBounds[o + axis] + refBounds[o + 3 + axis])))
+                include(l, refBounds, o, o + 3);
+            else
+                include(r, refBounds, o, o + 3);
+        }
+        return SAHBinning.area(Math.max(l[0], r[0]), Math.max(l[1], r[1]), Math.max(l[2], r[2]),
+                               Math.min(l[3], r[3]), Math.min(l[4], r[4]), Math.min(l[5], r[5]));
+    }
+    
+    private void objectPartition(int[] refs, int count, SAHBinning binning, 
+                                 int[] left, int[] right, int[] nLeft, int[] nRight)
+    {
+        int axis = binning.getSplitAxis();
+        for(int i = 0; i < count; i++)
+        {
+            int o = 6 * refs[i];
+            if(binning.isLeft(0.5f * (refBounds[o + axis] + refBounds[o + 3 + axis])))
+                left[nLeft[0]++] = refs[i];
+            else
+                right[nRight[0]++] = refs[i];
+        }
+    }
+    
+    //returns false if clipping left one side empty, nothing is modified in that case
+    private boolean spatialPartition(int[] refs, int count, int axis, float position, 
+                                     int[] left, int[] right, int[] nLeft, int[] nRight)
+    {
+        float[] leftBox = new float[6], rightBox = new float[6];
+        
+        //Count sides first, straddling references may turn out to lie on one side only
+        int straddling = 0, l = 0, r = 0;
+        for(int i = 0; i < count; i++)
+        {
+            int o = 6 * refs[i];
+            if(refBounds[o + 3 + axis] <= position) l++;
+            else if(refBounds[o + axis] >= position) r++;
+            else straddling++;
+        }
+        if(l + straddling == 0 || r + straddling == 0)
+            return false;
+        
+        for(int i = 0; i < count; i++)
+        {
+            int ref = refs[i], o = 6 * ref;
+            if(refBounds[o + 3 + axis] <= position)
+                left[nLeft[0]++] = ref;
+            else if(refBounds[o + axis] >= position)
+                right[nRight[0]++] = ref;
+            else
+            {
+                //Clip reference at split plane, duplicating it if both parts are non-empty
+                splitReference(refPrim[ref], refBounds, o, axis, position, leftBox, rightBox);
+                boolean emptyLeft = isEmpty(leftBox), emptyRight = isEmpty(rightBox);
+                if(emptyLeft && emptyRight)
+                    left[nLeft[0]++] = ref;
+                else if(emptyRight)
+                {
+                    System.arraycopy(leftBox, 0, refBounds, o, 6);
+                    left[nLeft[0]++] = ref;
+                }
+                else if(emptyLeft)
+                {
+                    System.arraycopy(rightBox, 0, refBounds, o, 6);
+                    right[nRight[0]++] = ref;
+                }
+                else
+                {
+                    System.arraycopy(leftBox, 0, refBounds, o, 6);
+                    left[nLeft[0]++] = ref;
+                    right[nRight[0]++] = addReference(refPrim[ref], rightBox);
+                }
+            }
+        }
+        return true;
+    }
+    
+    private int addReference(int prim, float[] box)
+    {
+        if(refCount == refPrim.length)
+        {
+            int capacity = Math.max(refCount + 1, Math.min(maxRefs, refCount + (refCount >> 1)));
+            refPrim = Arrays.copyOf(refPrim, capacity);
+            refBounds = Arrays.copyOf(refBounds, 6 * capacity);
+        }
+        refPrim[refCount] = prim;
+        System.arraycopy(box, 0, refBounds, 6 * refCount, 6);
+        return refCount++;
+    }
+    
+    /**
+     * Splits the part of a primitive inside the given reference bounds at an 
+     * axis aligned plane. Triangle edges are clipped at the plane, other 
+     * primitives are split as boxes. Both results are clipped to the reference
+     * bounds and may be empty, see isEmpty.
+     */
+    void splitReference(int prim, float[] box, int offset, int axis, float position, float[] left, float[] right)
+    {
+        int v = 9 * prim;
+        if(Float.isNaN(vertices[v]))
+        {
+            System.arraycopy(box, offset, left, 0, 6);
+            System.arraycopy(box, offset, right, 0, 6);
+        }
+        else
+        {
+            left[0] = left[1] = left[2] = right[0] = right[1] = right[2] = Float.POSITIVE_INFINITY;
+            left[3] = left[4] = left[5] = right[3] = right[4] = right[5] = Float.NEGATIVE_INFINITY;
+            
+            //Walk the edges, vertices go to their side and edge crossings to both
+            for(int e = 0; e < 3; e++)
+            {
+                int v0 = v + 3 * e, v1 = v + 3 * ((e + 1) % 3);
+                float a = vertices[v0 + axis], b = vertices[v1 + axis];
+                if(a <= position) include(left, vertices, v0, v0);
+                if(a >= position) include(right, vertices, v0, v0);
+                if((a < position && b > position) || (a > position && b < position))
+                {
+                    float t = (position - a) / (b - a);
+                    float x = vertices[v0    ] + t * (vertices[v1    ] - vertices[v0    ]);
+                    float y = vertices[v0 + 1] + t * (vertices[v1 + 1] - vertices[v0 + 1]);
+                    float z = vertices[v0 + 2] + t * (vertices[v1 + 2] - vertices[v0 + 2]);
+                    include(left, x, y, z);
+                    include(right, x, y, z);
+                    left[3 + axis] = Math.max(left[3 + axis], position);
+                    right[axis] = Math.min(right[axis], position);
+                }
+            }
+            
+            //Intersect with reference bounds
+            for(int i = 0; i < 3; i++)
+            {
+                left[i] = Math.max(left[i], box[offset + i]);
+                right[i] = Math.max(right[i], box[offset + i]);
+                left[3 + i] = Math.min(left[3 + i], box[offset + 3 + i]);
+                right[3 + i] = Math.min(right[3 + i], box[offset + 3 + i]);
+            }
+        }
+        
+        left[3 + axis] = Math.min(left[3 + axis], position);
+        right[axis] = Math.max(right[axis], position);
+    }
+    
+    private static void include(float[] b, float x, float y, float z)
+    {
+        if(x < b[0]) b[0] = x; if(x > b[3]) b[3] = x;
+        if(y < b[1]) b[1] = y; if(y > b[4]) b[4] = y;
+        if(z < b[2]) b[2] = z; if(z > b[5]) b[5] = z;
+    }
+    
+    static boolean isEmpty(float[] b)
+    {
+        return b[0] > b[3] || b[1] > b[4] || b[2] > b[5];
+    }
+    
+    //number of primitive references in leafs, primitives split by spatial splits count more than once
+    public int getReferenceCount()
+    {
+        return primIndex == null ? 0 : primIndex.length;
+    }
+    
+    public int getSpatialSplitCount()
+    {
+        return spatialSplits;
+    }
+}
@@ -0,0 +1,126 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.util.Arrays;
+
+/**
+ *
+ * @author user
+ * 
+ * Per thread node stack reused by every hierarchy traversal, so tracing a ray 
+ * does not allocate. Traversals nest (a Geometry primitive traverses its own 
+ * hierarchy while the scene hierarchy is still being walked), therefore each 
+ * traversal remembers the stack top on entry with mark(), only pops entries 
+ * above that mark and restores it with release() before returning.
+ * 
+ * Closest hit traversals push the entry distance of a node along with it, 
+ * which is read back with distance() after pop() to cull nodes that start 
+ * behind the closest hit found in the meantime.
+ */
+public final class TraversalStack 
+{
+    private static final ThreadLocal<TraversalStack> STACK = ThreadLocal.withInitial(TraversalStack::new);
+    
+    private int[] nodes = new int[256];
+    private float[] distances = new float[256];
+    private int top = 0;
+    
+    private TraversalStack()
+    {
+        
+    }
+    
+    public static TraversalStack get()
+    {
+        return STACK.get();
+    }
+    
+    public int mark()
+    {
+        return top;
+    }
+    
+    public void release(int mark)
+    {
+        top = mark;
+    }
+    
+    public boolean hasNext(int mark)
+    {
+        return top > mark;
+    }
+    
+    public void push(int node)
+    {
+        if(top == nodes.length)
+            grow();
+        nodes[top++] = node;
+    }
+    
+    public void push(int node, float distance)
+    {
+        if(top == nodes.length)
+            grow();
+        distances[top] = distance;
+        nodes[top++] = node;
+    }
+    
+    public int pop()
+    {
+        return nodes[--top];
+    }
+    
+    //orders the last count entries by decreasing distance, the nearest one is popped first
+    public void sortTop(int count)
+    {
+        int first = top - count;
+        for(int i = first + 1; i < top; i++)
+        {
+            int node = nodes[i];
+            float distance = distances[i];
+            int j = i - 1;
+            while(j >= first && distances[j] < distance)
+            {
+                nodes[j + 1] = nodes[j];
+                distances[j + 1] = distances[j];
+                j--;
+            }
+            nodes[j + 1] = node;
+            distances[j + 1] = distance;
+        }
+    }
+    
+    //entry distance of the node returned by the last pop
+    public float distance()
+    {
+        return distances[top];
+    }
+    
+    private void grow()
+    {
+        nodes = Arrays.copyOf(nodes, 2 * nodes.length);
+        distances = Arrays.copyOf(distances, 2 * distances.length);
+    }
+}
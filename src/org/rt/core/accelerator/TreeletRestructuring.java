@@ -0,0 +1,280 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.accelerator;
+
+import java.util.ArrayList;
+import java.util.concurrent.RecursiveAction;
+import org.rt.core.accelerator.BoundingVolume.BVHBuildNode;
+import org.rt.core.math.BoundingBox;
+import org.rt.util.IntArray;
+
+/**
+ *
+ * @author user
+ * 
+ * Treelet restructuring of a built BVH (Karras and Aila 2013). Every interior 
+ * node, visited bottom up, roots a treelet that is grown by repeatedly opening 
+ * its leaf with the largest surface area until it has treeletSize leaves. The 
+ * binary tree over those leaves with the lowest SAH cost is found by dynamic 
+ * programming over all leaf subsets and replaces the treelet if it is cheaper.
+ * 
+ * Subtrees of at most maxPrimsInNode primitives are costed as the cheaper of 
+ * their interior tree and a single leaf, collapse turns them into leaves once 
+ * all passes are done and orders the primitives depth first, so that every 
+ * collapsed leaf covers a contiguous range. Disjoint subtrees are processed as 
+ * separate fork/join tasks.
+ */
+final class TreeletRestructuring 
+{
+    private final int treeletSize;
+    private final int maxPrimsInNode;
+    private final float traversalCost;
+    private final float intersectionCost;
+    private final int parallelThreshold;
+    
+    TreeletRestructuring(int treeletSize, int maxPrimsInNode, float traversalCost, float intersectionCost, int parallelThreshold)
+    {
+        if(treeletSize < 3 || treeletSize > 12)
+            throw new IllegalArgumentException("treelet size must be in [3, 12] " +treeletSize);
+        
+        this.treeletSize = treeletSize;
+        this.maxPrimsInNode = maxPrimsInNode;
+        this.traversalCost = traversalCost;
+        this.intersectionCost = intersectionCost;
+        this.parallelThreshold = parallelThreshold;
+    }
+    
+    //one bottom up pass, returns the unnormalized SAH cost of the tree
+    float optimize(BVHBuildNode root)
+    {
+        new OptimizeTask(root).invoke();
+        return root.cost;
+    }
+    
+    private void optimize(BVHBuildNode node, Treelet treelet)
+    {
+        if(node.nPrimitives > 0)
+        {
+            node.cost = intersectionCost * node.nPrimitives * node.bounds.surfaceArea();
+            return;
+        }
+        
+        //Optimize both subtrees first, the left one as a separate task if large enough
+        if(node.totalPrimitives > parallelThreshold)
+        {
+            OptimizeTask leftTask = new OptimizeTask(node.children[0]);
+            leftTask.fork();
+            optimize(node.children[1], treelet);
+            leftTask.join();
+        }
+        else
+        {
+            optimize(node.children[0], treelet);
+            optimize(node.children[1], treelet);
+        }
+        node.cost = cost(node.totalPrimitives, node.bounds.surfaceArea(), node.children[0].cost + node.children[1].cost);
+        
+        treelet.restructure(node);
+    }
+    
+    //cost of an interior node over subtrees of the given cost, or of a leaf if that is cheaper
+    private float cost(int nPrimitives, float area, float childCost)
+    {
+        float cost = traversalCost * area + childCost;
+        if(nPrimitives <= maxPrimsInNode)
+            cost = Math.min(cost, intersectionCost * nPrimitives * area);
+        return cost;
+    }
+    
+    /**
+     * Turns subtrees that are cheaper as a leaf into leaves and appends the 
+     * original primitive indices in depth first order of the leaves.
+     * 
+     * @return number of nodes in the collapsed tree
+     */
+    int collapse(BVHBuildNode node, IntArray order)
+    {
+        int first = order.size();
+        if(node.nPrimitives > 0)
+        {
+            for(int i = 0; i < node.nPrimitives; i++)
+                order.add(node.firstPrimOffset + i);
+            node.firstPrimOffset = first;
+            return 1;
+        }
+        
+        int nodes = 1 + collapse(node.children[0], order) + collapse(node.children[1], order);
+        float area = node.bounds.surfaceArea();
+        float leafCost = intersectionCost * node.totalPrimitives * area;
+        if(node.totalPrimitives <= maxPrimsInNode && 
+           leafCost <= traversalCost * area + node.children[0].cost + node.children[1].cost)
+        {
+            node.initLeaf(first, node.totalPrimitives, node.bounds);
+            node.children[0] = node.children[1] = null;
+            node.cost = leafCost;
+            return 1;
+        }
+        return nodes;
+    }
+    
+    //split axis for traversal order, the axis separating the child centroids the most
+    private static int splitAxis(BVHBuildNode c0, BVHBuildNode c1)
+    {
+        BoundingBox b0 = c0.bounds, b1 = c1.bounds;
+        float dx = Math.abs(b0.minimum.x + b0.maximum.x - b1.minimum.x - b1.maximum.x);
+        float dy = Math.abs(b0.minimum.y + b0.maximum.y - b1.minimum.y - b1.maximum.y);
+        float dz = Math.abs(b0.minimum.z + b0.maximum.z - b1.minimum.z - b1.maximum.z);
+        if(dx >= dy && dx >= dz) return 0;
+        return dy >= dz ? 1 : 2;
+    }
+    
+    //per thread buffers for the subset dynamic program
+    private final class Treelet
+    {
+        final ArrayList<BVHBuildNode> leaves = new ArrayList<>();
+        final ArrayList<BVHBuildNode> interior = new ArrayList<>();
+        
+        //indexed by leaf subset bit mask
+        final float[] bounds = new float[6 << treeletSize];
+        final float[] cost = new float[1 << treeletSize];
+        final int[] count = new int[1 << treeletSize];
+        final int[] partition = new int[1 << treeletSize];
+        
+        void restructure(BVHBuildNode root)
+        {
+            //Grow treelet by opening the leaf with the largest surface area
+            leaves.clear();
+            interior.clear();
+            leaves.add(root.children[0]);
+            leaves.add(root.children[1]);
+            while(leaves.size() < treeletSize)
+            {
+                int largest = -1;
+                float largestArea = Float.NEGATIVE_INFINITY;
+                for(int i = 0; i < leaves.size(); i++)
+                {
+                    BVHBuildNode leaf = leaves.get(i);
+                    float area = leaf.bounds.surfaceArea();
+                    if(leaf.nPrimitives == 0 && area > largestArea)
+                    {
+                        largest = i;
+                        largestArea = area;
+                    }
+                }
+                if(largest < 0) break;
+                
+                BVHBuildNode opened = leaves.get(largest);
+                interior.add(opened);
+                leaves.set(largest, opened.children[0]);
+                leaves.add(opened.children[1]);
+            }
+            int n = leaves.size();
+            if(n < 3) return;
+            
+            //Single leaf subsets cost what their subtrees cost
+            for(int i = 0; i < n; i++)
+            {
+                BoundingBox b = leaves.get(i).bounds;
+                int o = 6 << i;
+                bounds[o    ] = b.minimum.x; bounds[o + 1] = b.minimum.y; bounds[o + 2] = b.minimum.z;
+                bounds[o + 3] = b.maximum.x; bounds[o + 4] = b.maximum.y; bounds[o + 5] = b.maximum.z;
+                cost[1 << i] = leaves.get(i).cost;
+                count[1 << i] = leaves.get(i).totalPrimitives;
+            }
+            
+            //Subsets in increasing order, every proper subset of s is smaller than s
+            int full = (1 << n) - 1;
+            for(int s = 3; s <= full; s++)
+            {
+                int low = s & -s;
+                if(s == low) continue;
+                
+                //Bounds and primitives of s from the subset without its lowest leaf
+                count[s] = count[s ^ low] + count[low];
+                int o = 6 * s, a = 6 * (s ^ low), b = 6 * low;
+                for(int k = 0; k < 3; k++)
+                {
+                    bounds[o + k] = Math.min(bounds[a + k], bounds[b + k]);
+                    bounds[o + 3 + k] = Math.max(bounds[a + 3 + k], bounds[b + 3 + k]);
+                }
+                
+                //Best partition, the side holding the lowest leaf is enumerated only
+                float best = Float.POSITIVE_INFINITY;
+                int bestPartition = low;
+                for(int p = (s - 1) & s; p > 0; p = (p - 1) & s)
+                {
+                    if((p & low) == 0) continue;
+                    float c = cost[p] + cost[s ^ p];
+                    if(c < best)
+                    {
+                        best = c;
+                        bestPartition = p;
+                    }
+                }
+                float area = SAHBinning.area(bounds[o], bounds[o + 1], bounds[o + 2], bounds[o + 3], bounds[o + 4], bounds[o + 5]);
+                cost[s] = cost(count[s], area, best);
+                partition[s] = bestPartition;
+            }
+            
+            //Replace treelet if noticeably cheaper, reusing its interior nodes
+            if(cost[full] >= root.cost * (1 - 1e-5f))
+                return;
+            connect(full, root);
+        }
+        
+        private BVHBuildNode build(int s)
+        {
+            if((s & (s - 1)) == 0)
+                return leaves.get(Integer.numberOfTrailingZeros(s));
+            return connect(s, interior.remove(interior.size() - 1));
+        }
+        
+        private BVHBuildNode connect(int s, BVHBuildNode node)
+        {
+            int p = partition[s];
+            BVHBuildNode c0 = build(p);
+            BVHBuildNode c1 = build(s ^ p);
+            node.initInterior(splitAxis(c0, c1), c0, c1);
+            node.cost = cost[s];
+            return node;
+        }
+    }
+    
+    @SuppressWarnings("serial")
+    private final class OptimizeTask extends RecursiveAction
+    {
+        final BVHBuildNode node;
+        
+        OptimizeTask(BVHBuildNode node)
+        {
+            this.node = node;
+        }
+        
+        @Override
+        protected void compute() 
+        {
+            optimize(node, new Treelet());
+        }
+    }
+}
@@ -33,10 +33,16 @@ import org.rt.core.math.Ray;
 import static org.rt.core.math.Utility.clamp;
 import static java.lang.Math.pow;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import org.rt.util.IntArray;
 
 /**
  *
  * @author user
+ * 
+ * Voxels reference primitives by their index in the primitive list. A 
+ * primitive overlapping several voxels along a ray is tested only once, the 
+ * per thread mailbox remembers which primitives the current ray has tested.
  */
 public class UniformGrid extends AbstractAccelerator
 {
@@ -47,6 +53,10 @@ public class UniformGrid extends AbstractAccelerator
     Vector3f width = new Vector3f(), invWidth = new Vector3f();
     private final static int[] cmpToAxis = {2, 1, 2, 1, 2, 2, 0, 0};
     
+    //primitive tests performed and skipped by the mailboxes of all threads
+    private final LongAdder primitiveTests = new LongAdder(), skippedTests = new LongAdder();
+    private final ThreadLocal<Mailbox> mailboxes = ThreadLocal.withInitial(() -> new Mailbox(primitiveTests, skippedTests));
+    
     public UniformGrid()
     {
         this.bounds = new BoundingBox();
@@ -64,6 +74,7 @@ public class UniformGrid extends AbstractAccelerator
     @Override
     public final void build(ArrayList<AbstractPrimitive> primitives) {
         this.primitives = primitives;
+        this.bounds = new BoundingBox();
                 
         // Compute bounds and choose grid resolution
         for(AbstractPrimitive primitive : primitives)
@@ -112,12 +123,12 @@ public class UniformGrid extends AbstractAccelerator
                         if (voxels[o] == null) 
                         {
                             // Allocate new voxel and store primitive in it
-                            voxels[o] = new Voxel(primitives.get(i));
+                            voxels[o] = new Voxel(i);
                         } 
                         else 
                         {
                             // Add primitive to already-allocated voxel
-                            voxels[o].addPrimitive(primitives.get(i));
+                            voxels[o].addPrimitive(i);
                         }
                     }
                 }
@@ -163,13 +174,15 @@ public class UniformGrid extends AbstractAccelerator
         
         // Walk ray through voxel grid
         //RWMutexLock lock=(*rwMutex, READ);
+        Mailbox mailbox = mailboxes.get();
+        mailbox.nextRay(primitives.size());
         boolean hitSomething = false;
         for (;;) {
             // Check for intersection in current voxel and advance to next
             Voxel voxel = voxels[offset(Pos[0], Pos[1], Pos[2])];
             //PBRT_GRID_RAY_TRAVERSED_VOXEL(Pos, voxel ? voxel->size() : 0);
             if (voxel != null) {
-                hitSomething |= voxel.intersect(ray, isect/*, lock*/);
+                hitSomething |= voxel.intersect(ray, isect, mailbox/*, lock*/);
             }
 
             // Advance to next voxel
@@ -188,6 +201,7 @@ public class UniformGrid extends AbstractAccelerator
             }
             NextCrossingT[stepAxis] += DeltaT[stepAxis];
         }
+        mailbox.endRay();
         return hitSomething;
     }
 
@@ -229,11 +243,14 @@ public class UniformGrid extends AbstractAccelerator
         }
 
         // Walk grid for shadow ray
+        Mailbox mailbox = mailboxes.get();
+        mailbox.nextRay(primitives.size());
         for (;;) {
             int o = offset(Pos[0], Pos[1], Pos[2]);
             Voxel voxel = voxels[o];
             //PBRT_GRID_RAY_TRAVERSED_VOXEL(Pos, voxel ? voxel->size() : 0);
-            if (voxel != null && voxel.intersectP(ray/*, lock*/)) {
+            if (voxel != null && voxel.intersectP(ray, mailbox/*, lock*/)) {
+                mailbox.endRay();
                 return true;
             }
             // Advance to next voxel
@@ -252,6 +269,7 @@ public class UniformGrid extends AbstractAccelerator
             }
             NextCrossingT[stepAxis] += DeltaT[stepAxis];
         }
+        mailbox.endRay();
         return false;
     }
 
@@ -260,6 +278,23 @@ public class UniformGrid extends AbstractAccelerator
         return bounds;
     }
     
+    public long getPrimitiveTests()
+    {
+        return primitiveTests.sum();
+    }
+    
+    //repeated tests of primitives overlapping several voxels the mailboxes avoided
+    public long getSkippedTests()
+    {
+        return skippedTests.sum();
+    }
+    
+    public void resetTestCounters()
+    {
+        primitiveTests.reset();
+        skippedTests.reset();
+    }
+    
     private int posToVoxel(Point3f P, int axis) {
         int v = (int) ((P.get(axis) - bounds.minimum.get(axis))
                 * invWidth.get(axis));
@@ -276,30 +311,36 @@ public class UniformGrid extends AbstractAccelerator
     
     public class Voxel
     {
-        private final ArrayList<AbstractPrimitive> primitives = new ArrayList<>();
+        private final IntArray primitiveIds = new IntArray();
         
         public Voxel(){}
-        public Voxel(AbstractPrimitive primitive) {primitives.add(primitive);}
-        public void addPrimitive(AbstractPrimitive prim) {
-            primitives.add(prim);
+        public Voxel(int primitiveId) {primitiveIds.add(primitiveId);}
+        public void addPrimitive(int primitiveId) {
+            primitiveIds.add(primitiveId);
         }
         
-        public boolean intersect(Ray r, Intersection isect) 
+        boolean intersect(Ray r, Intersection isect, Mailbox mailbox) 
         {        
             boolean hasIntersected = false;
-            for(AbstractPrimitive prim: primitives)
+            for(int i = 0; i < primitiveIds.size(); i++)
             {
-                boolean intersected = prim.intersect(r, isect);                
+                int id = primitiveIds.get(i);
+                if(!mailbox.visit(id))
+                    continue;
+                boolean intersected = primitives.get(id).intersect(r, isect);                
                 hasIntersected |= intersected;
             }        
             return hasIntersected;
         }
         
-        public boolean intersectP(Ray r) 
+        boolean intersectP(Ray r, Mailbox mailbox) 
         {        
-            for(AbstractPrimitive prim: primitives)
-                if(prim.intersectP(r))
+            for(int i = 0; i < primitiveIds.size(); i++)
+            {
+                int id = primitiveIds.get(i);
+                if(mailbox.visit(id) && primitives.get(id).intersectP(r))
                     return true;
+            }
             return false;
         }
     }
@@ -23,10 +23,154 @@
  */
 package org.rt.core.cache;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 /**
  *
  * @author user
+ * 
+ * Persistent store of built acceleration structures. Every tree is kept in a 
+ * file named after the accelerator kind and the content key of its input 
+ * geometry (see PrimitiveListCache.hash), and is read back with 
+ * FileChannel.map so an unchanged scene skips the build on the next launch.
+ * 
+ * File layout, native byte order
+ * 
+ *      int   magic
+ *      int   version
+ *      long  key
+ *      long  payload size in bytes
+ *      ...   payload written by the accelerator
+ * 
+ * Files are written to a temporary name and moved into place, a reader never
+ * sees a partially written tree. Failing I/O is logged and treated as a cache
+ * miss, the accelerator then simply builds.
  */
-public class BVHLevelCache {
+public class BVHLevelCache 
+{
+    private static final int MAGIC = 0x52544256;    // "RTBV"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    
+    private final Path directory;
+    
+    public BVHLevelCache(String directory)
+    {
+        this(Paths.get(directory));
+    }
+    
+    public BVHLevelCache(Path directory)
+    {
+        this.directory = directory;
+    }
+    
+    public Path getDirectory()
+    {
+        return directory;
+    }
+    
+    public Path getPath(String kind, long key)
+    {
+        return directory.resolve(String.format("%s-%016x.bvh", kind, key));
+    }
+    
+    /**
+     * Maps the payload stored for kind and key.
+     * 
+     * @return read only payload in native byte order positioned at 0, or null 
+     *         if nothing valid is stored
+     */
+    public ByteBuffer load(String kind, long key)
+    {
+        Path path = getPath(kind, key);
+        if(!Files.isRegularFile(path))
+            return null;
+        
+        try(FileChannel channel = FileChannel.open(path, StandardOpenOption.READ))
+        {
+            long size = channel.size();
+            if(size < HEADER_SIZE)
+                return null;
+            
+            //The mapping stays valid after the channel is closed
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            buffer.order(ByteOrder.nativeOrder());
+            if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION || 
+               buffer.getLong(8) != key || buffer.getLong(16) != size - HEADER_SIZE)
+                return null;
+            
+            buffer.position(HEADER_SIZE);
+            return buffer.slice().order(ByteOrder.nativeOrder());
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(BVHLevelCache.class.getName()).log(Level.WARNING, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Maps a new file of the given payload size, lets the writer fill it and 
+     * moves it into place.
+     * 
+     * @return false if the tree could not be stored
+     */
+    public boolean store(String kind, long key, long payloadSize, Writer writer)
+    {
+        Path path = getPath(kind, key);
+        Path temp = null;
+        try
+        {
+            Files.createDirectories(directory);
+            temp = Files.createTempFile(directory, kind, ".tmp");
+            try(FileChannel channel = FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE))
+            {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + payloadSize);
+                buffer.order(ByteOrder.nativeOrder());
+                buffer.putInt(MAGIC).putInt(VERSION).putLong(key).putLong(payloadSize);
+                writer.write(buffer.slice().order(ByteOrder.nativeOrder()));
+                buffer.force();
+            }
+            
+            try
+            {
+                Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            }
+            catch (AtomicMoveNotSupportedException ex)
+            {
+                Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        }
+        catch (IOException ex)
+        {
+            Logger.getLogger(BVHLevelCache.class.getName()).log(Level.WARNING, null, ex);
+            try
+            {
+                if(temp != null)
+                    Files.deleteIfExists(temp);
+            }
+            catch (IOException ignore)
+            {
+            }
+            return false;
+        }
+    }
     
+    public interface Writer
+    {
+        void write(ByteBuffer payload);
+    }
 }
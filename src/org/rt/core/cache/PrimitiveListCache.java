@@ -23,10 +23,132 @@
  */
 package org.rt.core.cache;
 
+import java.nio.ByteBuffer;
+import java.util.IdentityHashMap;
+import java.util.List;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.coordinates.Point3f;
+import org.rt.core.math.BoundingBox;
+import org.rt.core.primitive.GeometryPrimitive;
+
 /**
  *
  * @author user
+ * 
+ * Content key and primitive order of a cached tree. The key is a 64 bit 
+ * FNV-1a hash over the primitive list in order, covering triangle vertices and
+ * the world bounds of every other primitive, which is all a BVH build reads.
+ * 
+ * Accelerators that reorder the primitive list store the resulting order as 
+ * indices into the original list, and apply it again when a cached tree is 
+ * mapped.
  */
-public class PrimitiveListCache {
+public class PrimitiveListCache 
+{
+    private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+    
+    public static long hash(List<AbstractPrimitive> prims)
+    {
+        long hash = mix(FNV_OFFSET, prims.size());
+        for(AbstractPrimitive prim : prims)
+        {
+            Point3f[] p = GeometryPrimitive.getTriangleVertices(prim);
+            if(p != null)
+            {
+                hash = mix(hash, p[0]);
+                hash = mix(hash, p[1]);
+                hash = mix(hash, p[2]);
+            }
+            else
+            {
+                BoundingBox b = prim.getWorldBounds();
+                hash = mix(hash, prim.getClass().getName().hashCode());
+                hash = mix(hash, b.minimum);
+                hash = mix(hash, b.maximum);
+            }
+        }
+        return hash;
+    }
+    
+    //combines a hash with build parameters that change the resulting tree
+    public static long hash(long hash, float... parameters)
+    {
+        for(float parameter : parameters)
+            hash = mix(hash, Float.floatToIntBits(parameter));
+        return hash;
+    }
+    
+    private static long mix(long hash, Point3f p)
+    {
+        hash = mix(hash, Float.floatToIntBits(p.x));
+        hash = mix(hash, Float.floatToIntBits(p.y));
+        return mix(hash, Float.floatToIntBits(p.z));
+    }
+    
+    private static long mix(long hash, int value)
+    {
+        for(int i = 0; i < 32; i += 8)
+        {
+            hash ^= (value >>> i) & 0xff;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+    
+    //indices of the reordered primitives in the original list
+    public static int[] order(AbstractPrimitive[] original, List<AbstractPrimitive> reordered)
+    {
+        IdentityHashMap<AbstractPrimitive, Integer> index = new IdentityHashMap<>(original.length);
+        for(int i = 0; i < original.length; i++)
+            index.put(original[i], i);
+        
+        int[] order = new int[reordered.size()];
+        for(int i = 0; i < order.length; i++)
+            order[i] = index.get(reordered.get(i));
+        return order;
+    }
+    
+    //reorders prims to the stored order, false if the order does not fit the list
+    public static boolean apply(int[] order, List<AbstractPrimitive> prims)
+    {
+        if(order.length != prims.size())
+            return false;
+        
+        AbstractPrimitive[] original = prims.toArray(new AbstractPrimitive[prims.size()]);
+        boolean[] used = new boolean[original.length];
+        for(int i : order)
+        {
+            if(i < 0 || i >= original.length || used[i])
+                return false;
+            used[i] = true;
+        }
+        
+        for(int i = 0; i < order.length; i++)
+            prims.set(i, original[order[i]]);
+        return true;
+    }
+    
+    public static void putOrder(ByteBuffer buffer, int[] order)
+    {
+        buffer.putInt(order.length);
+        buffer.asIntBuffer().put(order);
+        buffer.position(buffer.position() + 4 * order.length);
+    }
+    
+    public static int[] getOrder(ByteBuffer buffer)
+    {
+        int n = buffer.getInt();
+        if(n < 0 || 4L * n > buffer.remaining())
+            return null;
+        int[] order = new int[n];
+        buffer.asIntBuffer().get(order);
+        buffer.position(buffer.position() + 4 * n);
+        return order;
+    }
     
+    public static long orderSize(int n)
+    {
+        return 4 + 4L * n;
+    }
 }
@@ -77,26 +77,28 @@ public class BoundingBox implements Cloneable
     public boolean intersectP(Ray ray, float[] hitt) 
     {
         float t0 = ray.getMin(), t1 = ray.getMax();
-        for (int i = 0; i < 3; ++i) 
-        {
-            // Update interval for _i_th bounding box slab, page 180           
-            float tNear = (minimum.get(i) - ray.o.get(i)) * ray.getInvDir().get(i);
-            float tFar = (maximum.get(i) - ray.o.get(i)) * ray.getInvDir().get(i);
-
-            // Update parametric interval from slab intersection $t$s
-            if (tNear > tFar) 
-            {
-                float swap = tNear;
-                tNear = tFar;
-                tFar = swap;
-            }
-            if (tNear > t0) t0=tNear;
-            if (tFar < t1) t1=tFar;
-            if (t0 > t1) 
-            {
-                return false;
-            }
-        }
+        int[] sign = ray.sign;
+        Vector3f invDir = ray.inv_d;
+        
+        // Update interval for each slab, near and far planes picked by direction sign
+        float tNear = ((sign[0] == 1 ? maximum.x : minimum.x) - ray.o.x) * invDir.x;
+        float tFar  = ((sign[0] == 1 ? minimum.x : maximum.x) - ray.o.x) * invDir.x;
+        if (tNear > t0) t0 = tNear;
+        if (tFar < t1) t1 = tFar;
+        if (t0 > t1) return false;
+        
+        tNear = ((sign[1] == 1 ? maximum.y : minimum.y) - ray.o.y) * invDir.y;
+        tFar  = ((sign[1] == 1 ? minimum.y : maximum.y) - ray.o.y) * invDir.y;
+        if (tNear > t0) t0 = tNear;
+        if (tFar < t1) t1 = tFar;
+        if (t0 > t1) return false;
+        
+        tNear = ((sign[2] == 1 ? maximum.z : minimum.z) - ray.o.z) * invDir.z;
+        tFar  = ((sign[2] == 1 ? minimum.z : maximum.z) - ray.o.z) * invDir.z;
+        if (tNear > t0) t0 = tNear;
+        if (tFar < t1) t1 = tFar;
+        if (t0 > t1) return false;
+        
         if (hitt != null) 
         {
             hitt[0] = t0;
@@ -105,6 +107,34 @@ public class BoundingBox implements Cloneable
         return true;
     }
         
+    //parametric distance where the ray enters the box, infinity if it misses within [tMin, tMax]
+    public float entryDistance(Ray ray)
+    {
+        float t0 = ray.getMin(), t1 = ray.getMax();
+        int[] sign = ray.sign;
+        Vector3f invDir = ray.inv_d;
+        
+        float tNear = ((sign[0] == 1 ? maximum.x : minimum.x) - ray.o.x) * invDir.x;
+        float tFar  = ((sign[0] == 1 ? minimum.x : maximum.x) - ray.o.x) * invDir.x;
+        if (tNear > t0) t0 = tNear;
+        if (tFar < t1) t1 = tFar;
+        if (t0 > t1) return Float.POSITIVE_INFINITY;
+        
+        tNear = ((sign[1] == 1 ? maximum.y : minimum.y) - ray.o.y) * invDir.y;
+        tFar  = ((sign[1] == 1 ? minimum.y : maximum.y) - ray.o.y) * invDir.y;
+        if (tNear > t0) t0 = tNear;
+        if (tFar < t1) t1 = tFar;
+        if (t0 > t1) return Float.POSITIVE_INFINITY;
+        
+        tNear = ((sign[2] == 1 ? maximum.z : minimum.z) - ray.o.z) * invDir.z;
+        tFar  = ((sign[2] == 1 ? minimum.z : maximum.z) - ray.o.z) * invDir.z;
+        if (tNear > t0) t0 = tNear;
+        if (tFar < t1) t1 = tFar;
+        if (t0 > t1) return Float.POSITIVE_INFINITY;
+        
+        return t0;
+    }
+    
     public int maximumExtent() {
         Vector3f diag = Point3f.sub(maximum, minimum);
         if (diag.x > diag.y && diag.x > diag.z) {
@@ -116,6 +146,16 @@ public class BoundingBox implements Cloneable
         }
     }
     
+    public float surfaceArea()
+    {
+        float dx = maximum.x - minimum.x;
+        float dy = maximum.y - minimum.y;
+        float dz = maximum.z - minimum.z;
+        if(dx < 0 || dy < 0 || dz < 0)
+            return 0;
+        return 2 * (dx * dy + dy * dz + dz * dx);
+    }
+
     public boolean inside(Point3f pt) 
     {
         return pt.x >= minimum.x && pt.x <= maximum.x && //
@@ -24,7 +24,7 @@
 package org.rt.core.math;
 
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
 
 /**
  *
@@ -33,7 +33,6 @@ import java.util.Random;
  */
 public class ExtendedList <V>
 {
-    Random rand = new Random();
     ArrayList<V> list = null;
     
     public ExtendedList()
@@ -84,7 +83,7 @@ public class ExtendedList <V>
     public V getRandom()
     {
         if(!list.isEmpty())
-            return list.get(rand.nextInt(list.size()));
+            return list.get(ThreadLocalRandom.current().nextInt(list.size()));
         else
             return null;
     }
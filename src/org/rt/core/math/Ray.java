@@ -40,6 +40,10 @@ public class Ray {
     
     public int[] sign;
     
+    //watertight triangle test, dominant axis kz of the direction and its shear to +z
+    public int kx, ky, kz;
+    public float sx, sy, sz;
+    
     public static final float EPSILON = 0.01f;// 0.01f;
 
     public Ray() 
@@ -74,6 +78,20 @@ public class Ray {
         sign[0] = inv_d.x < 0 ? 1 : 0;
         sign[1] = inv_d.y < 0 ? 1 : 0;
         sign[2] = inv_d.z < 0 ? 1 : 0;
+        
+        float ax = Math.abs(d.x), ay = Math.abs(d.y), az = Math.abs(d.z);
+        kz = ax > ay ? (ax > az ? 0 : 2) : (ay > az ? 1 : 2);
+        kx = kz == 2 ? 0 : kz + 1;
+        ky = kx == 2 ? 0 : kx + 1;
+        
+        //Swap to keep the winding of triangles when looking down -z
+        if(d.get(kz) < 0)
+        {
+            int swap = kx; kx = ky; ky = swap;
+        }
+        sz = 1f / d.get(kz);
+        sx = d.get(kx) * sz;
+        sy = d.get(ky) * sz;
     }
     
     public int[] dirIsNeg()
@@ -115,6 +133,11 @@ public class Ray {
         tMax = t;
     }
     
+    public final void setMin(float t) 
+    {
+        tMin = t;
+    }
+    
     public final float getMin() 
     {
         return tMin;
@@ -23,6 +23,7 @@
  */
 package org.rt.core.math;
 
+import java.util.concurrent.ThreadLocalRandom;
 import org.rt.core.coordinates.Point2f;
 import org.rt.core.coordinates.Point3f;
 
@@ -34,7 +35,8 @@ public class Rng
 {    
     public static float getFloat()
     {
-        return (float)Math.random();
+        //one generator per thread, Math.random() serializes all render workers
+        return ThreadLocalRandom.current().nextFloat();
     }
     
     public static boolean isRndBelow(double value)
@@ -65,10 +65,10 @@ public class Transform {
         sM.setRow(3, 0, 0, 0, 1);
         
         Matrix sInvM = new Matrix();
-        sM.setRow(0, 1.f/x,     0,     0, 0);
-        sM.setRow(1,     0, 1.f/y,     0, 0);
-        sM.setRow(2,     0,     0, 1.f/z, 0);
-        sM.setRow(3,     0,     0,     0, 1);
+        sInvM.setRow(0, 1.f/x,     0,     0, 0);
+        sInvM.setRow(1,     0, 1.f/y,     0, 0);
+        sInvM.setRow(2,     0,     0, 1.f/z, 0);
+        sInvM.setRow(3,     0,     0,     0, 1);
         
         return new Transform(sM, sInvM);
     }
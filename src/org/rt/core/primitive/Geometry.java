@@ -30,6 +30,7 @@ import org.rt.core.AbstractShape;
 import org.rt.core.Intersection;
 import org.rt.core.Material;
 import org.rt.core.accelerator.BoundingVolume;
+import org.rt.core.cache.BVHLevelCache;
 import org.rt.core.coordinates.Normal3f;
 import org.rt.core.coordinates.Vector3f;
 import org.rt.core.light.AreaLight;
@@ -46,6 +47,7 @@ public class Geometry extends AbstractPrimitive
     private final AbstractAccelerator accelerator;
     private final ArrayList<AbstractPrimitive> gPrimitives;
     private final Material material;
+    private boolean built = false;
     
     public Geometry(Material material)
     {
@@ -57,26 +59,53 @@ public class Geometry extends AbstractPrimitive
     public void addGeometryPrimitive(GeometryPrimitive prim)
     {
         gPrimitives.add(prim);
+        built = false;
     }
     
     public void addGeometryPrimitive(AbstractShape shape)
     {
         ArrayList<AbstractShape> shapes = shape.refine();
         
+        //Refined shapes of a mesh are shaded once for the closest hit, see intersect
         if(shapes != null)
             for(AbstractShape refinedShape : shapes)
-                gPrimitives.add(new GeometryPrimitive(refinedShape, material));
+            {
+                GeometryPrimitive prim = new GeometryPrimitive(refinedShape, material);
+                prim.setDeferShading(true);
+                gPrimitives.add(prim);
+            }
         else
             gPrimitives.add(new GeometryPrimitive(shape, material));        
+        built = false;
+    }
+        
+    //bottom level trees of unchanged geometry are mapped from the cache instead of built
+    public void setCache(BVHLevelCache cache)
+    {
+        accelerator.setCache(cache);
     }
         
     @Override
     public void build()
     {
+        //shared by instances, build only once
+        if(built)
+            return;
         accelerator.build(gPrimitives);     
+        built = true;
         //BVH2 bvh = new BVH2();
         //bvh.build(gPrimitives);
     }
+    
+    //update after the geometry primitives moved or deformed
+    public void refit()
+    {
+        if(!built || !accelerator.refit())
+        {
+            built = false;
+            build();
+        }
+    }
 
     @Override
     public BoundingBox getWorldBounds() {
@@ -88,6 +117,9 @@ public class Geometry extends AbstractPrimitive
     {
         if(accelerator.intersect(ray, isect))
         {            
+            GeometryPrimitive hit = (GeometryPrimitive) isect.primitive;
+            if(hit.isShadingDeferred())
+                hit.shade(ray, isect);
             isect.topPrimitive = this;
             return true;
         }
@@ -30,11 +30,14 @@ import org.rt.core.Intersection;
 import org.rt.core.Material;
 import org.rt.core.image.Texture;
 import org.rt.core.coordinates.Normal3f;
+import org.rt.core.coordinates.Point3f;
 import org.rt.core.coordinates.Vector3f;
 import org.rt.core.light.AreaLight;
 import org.rt.core.math.BoundingBox;
 import org.rt.core.math.Ray;
 import org.rt.core.math.Transform;
+import org.rt.core.shape.Triangle;
+import org.rt.core.shape.TriangleM;
 import java.util.ArrayList;
 
 /**
@@ -48,12 +51,50 @@ public class GeometryPrimitive extends AbstractPrimitive
     private final AbstractShape shape;
     private final Material material;
     
+    //the owner calls shade for the closest hit, set by Geometry for refined shapes
+    private boolean deferShading = false;
+    
     public GeometryPrimitive(AbstractShape shape, Material material)
     {
         this.shape = shape;
         this.material = material;
     }
 
+    public AbstractShape getShape()
+    {
+        return shape;
+    }
+    
+    //vertices of prim if it is a triangle, else null, triangles are created with identity transforms so these are in world space
+    public static Point3f[] getTriangleVertices(AbstractPrimitive prim)
+    {
+        if(!(prim instanceof GeometryPrimitive))
+            return null;
+        
+        AbstractShape shape = ((GeometryPrimitive) prim).shape;
+        if(shape instanceof Triangle)
+        {
+            Triangle t = (Triangle) shape;
+            return new Point3f[]{t.getP1(), t.getP2(), t.getP3()};
+        }
+        else if(shape instanceof TriangleM)
+        {
+            TriangleM t = (TriangleM) shape;
+            return new Point3f[]{t.getP1(), t.getP2(), t.getP3()};
+        }
+        return null;
+    }
+    
+    public void setDeferShading(boolean deferShading)
+    {
+        this.deferShading = deferShading;
+    }
+    
+    public boolean isShadingDeferred()
+    {
+        return deferShading;
+    }
+    
     @Override
     public BoundingBox getWorldBounds() {
         return shape.getWorldBounds();
@@ -63,13 +104,28 @@ public class GeometryPrimitive extends AbstractPrimitive
     public boolean intersect(Ray ray, Intersection isect) 
     {   
         //No intersection
-        if(!shape.intersect(ray, isect.dg))
+        if(deferShading ? !shape.intersectHit(ray, isect.dg) : !shape.intersect(ray, isect.dg))
             return false;        
         
         //skyportal material false intersection
         if(material.skyportal)
             return false;
-                    
+        
+        isect.primitive = this;
+        if(!deferShading)
+            setBSDF(ray, isect);
+        return true;
+    }
+    
+    //completes the closest hit found with deferred shading
+    public void shade(Ray ray, Intersection isect)
+    {
+        shape.shade(ray, isect.dg);
+        setBSDF(ray, isect);
+    }
+    
+    private void setBSDF(Ray ray, Intersection isect)
+    {
         isect.bsdf = material.getBSDF(isect.dg.n, ray.d);
                 
         //has texture, set texture color to bsdf
@@ -78,9 +134,6 @@ public class GeometryPrimitive extends AbstractPrimitive
             Texture texture = material.getTexture();            
             isect.bsdf.setColor(texture.getTexelUV(isect.dg.u, isect.dg.v));            
         }
-        
-        isect.primitive = this;        
-        return true;
     }
 
     @Override
@@ -0,0 +1,174 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.primitive;
+
+import java.util.ArrayList;
+import org.rt.core.AbstractBSDF;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.Intersection;
+import org.rt.core.Material;
+import org.rt.core.coordinates.Normal3f;
+import org.rt.core.coordinates.Vector3f;
+import org.rt.core.image.Texture;
+import org.rt.core.light.AreaLight;
+import org.rt.core.math.BoundingBox;
+import org.rt.core.math.Ray;
+import org.rt.core.math.Transform;
+
+/**
+ *
+ * @author user
+ * 
+ * Places a shared Geometry in the scene with an object to world transform. 
+ * The geometry and its bottom level accelerator are built once regardless of 
+ * how many instances reference it, the scene accelerator over the instances 
+ * acts as the top level. Rays are transformed into object space, hits are 
+ * transformed back to world space.
+ * 
+ * Emitting geometry is not sampled as an area light when instanced.
+ */
+public class Instance extends AbstractPrimitive
+{
+    private final Geometry geometry;
+    private Transform o2w;
+    private Transform w2o;
+    private BoundingBox worldBounds = null;
+    private BoundingBox objectBounds = null;
+    
+    public Instance(Geometry geometry, Transform o2w)
+    {
+        this.geometry = geometry;
+        setTransform(o2w);
+    }
+    
+    //moving an instance only requires the scene accelerator to be rebuilt
+    public final void setTransform(Transform o2w)
+    {
+        this.o2w = o2w;
+        this.w2o = o2w.inverse();
+        this.worldBounds = null;
+    }
+    
+    public Transform getTransform()
+    {
+        return o2w;
+    }
+    
+    public Geometry getGeometry()
+    {
+        return geometry;
+    }
+    
+    @Override
+    public void build()
+    {
+        geometry.build();
+    }
+
+    @Override
+    public BoundingBox getWorldBounds() 
+    {
+        //recompute when moved or when the geometry has been refitted or rebuilt
+        if(worldBounds == null || objectBounds != geometry.getWorldBounds())
+        {
+            objectBounds = geometry.getWorldBounds();
+            worldBounds = o2w.transform(objectBounds);
+        }
+        return worldBounds;
+    }
+
+    @Override
+    public boolean intersect(Ray ray, Intersection isect) 
+    {
+        //Object space ray is normalized, t values scale with the transformed direction length
+        Vector3f d = w2o.transform(ray.d);
+        float scale = d.length();
+        Ray objRay = new Ray(w2o.transform(ray.o), d);
+        objRay.setMin(ray.getMin() * scale);
+        objRay.setMax(ray.getMax() * scale);
+        
+        if(!geometry.intersect(objRay, isect))
+            return false;
+        ray.setMax(objRay.getMax() / scale);
+        
+        //Transform hit to world space
+        isect.dg.p = o2w.transform(isect.dg.p);
+        isect.dg.n = o2w.transform(isect.dg.n).normalize();
+        if(isect.dg.nn != null)
+            isect.dg.nn = o2w.transform(isect.dg.nn).normalize();
+        isect.topPrimitive = this;
+        
+        //Shading frame of the hit primitive was set up in object space
+        Material material = isect.primitive.getMaterial();
+        isect.bsdf = material.getBSDF(isect.dg.n, ray.d);
+        if(material.hasTexture())
+        {
+            Texture texture = material.getTexture();
+            isect.bsdf.setColor(texture.getTexelUV(isect.dg.u, isect.dg.v));
+        }
+        return true;
+    }
+
+    @Override
+    public boolean intersectP(Ray ray) 
+    {
+        Vector3f d = w2o.transform(ray.d);
+        float scale = d.length();
+        Ray objRay = new Ray(w2o.transform(ray.o), d);
+        objRay.setMin(ray.getMin() * scale);
+        objRay.setMax(ray.getMax() * scale);
+        return geometry.intersectP(objRay);
+    }
+
+    @Override
+    public AreaLight getAreaLight() 
+    {
+        return null;
+    }
+
+    @Override
+    public Material getMaterial() 
+    {
+        return geometry.getMaterial();
+    }
+
+    @Override
+    public AbstractBSDF getBSDF(Normal3f worldNormal, Vector3f worldWi) 
+    {
+        return geometry.getMaterial().getBSDF(worldNormal, worldWi);
+    }
+
+    @Override
+    public void refine(ArrayList<AbstractPrimitive> refined) 
+    {
+        if(refined != null)
+            refined.add(this);
+    }
+    
+    @Override
+    public String toString()
+    {
+        return "instance " +geometry.toString();
+    }
+}
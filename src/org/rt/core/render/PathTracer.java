@@ -0,0 +1,260 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.render;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.rt.core.AbstractBSDF;
+import org.rt.core.AbstractBackground;
+import org.rt.core.AbstractLight;
+import org.rt.core.Intersection;
+import org.rt.core.color.Color;
+import org.rt.core.coordinates.Point2f;
+import org.rt.core.coordinates.Point3f;
+import org.rt.core.coordinates.Vector3f;
+import org.rt.core.math.FloatValue;
+import static org.rt.core.math.Geometry.mis2;
+import org.rt.core.math.Ray;
+import org.rt.core.math.Rng;
+import org.rt.util.FrameBuffer;
+
+/**
+ *
+ * @author user
+ * 
+ * Unidirectional path tracer, one path per pixel and pass. 
+ * 
+ * At every non delta vertex a light is sampled with Scene.directLightSampling,
+ * and the path continues by sampling the bsdf. Emitters and the background 
+ * hit by a continued path are weighted against light sampling with the balance
+ * of Scene.directLightSampling and Scene.brdfLightSampling, so both estimators
+ * are combined by multiple importance sampling. Camera rays and rays after a 
+ * delta bsdf count emission fully.
+ * 
+ * From rouletteDepth on, paths survive a vertex with the bsdf 
+ * continuationProbability and are reweighted, and no path is longer than 
+ * maxPathLength vertices.
+ * 
+ * Every pass reports a RenderStatistics with samples and rays per second and 
+ * the remaining change of the image.
+ */
+public class PathTracer extends TiledImageSampler
+{
+    int maxPathLength = 8;
+    int rouletteDepth = 3;
+    
+    //counted by the workers, summed per pass
+    final LongAdder samples = new LongAdder();
+    final LongAdder rays = new LongAdder();
+    
+    long renderStart, passStart, totalSamples;
+    float[] previousLuminance = null;
+    volatile RenderStatistics statistics = null;
+    
+    public PathTracer()
+    {
+        
+    }
+    
+    protected PathTracer(int tileSize)
+    {
+        super(tileSize);
+    }
+    
+    public void setMaxPathLength(int maxPathLength)
+    {
+        if(maxPathLength < 1)
+            throw new IllegalArgumentException("path length should be at least 1 " +maxPathLength);
+        this.maxPathLength = maxPathLength;
+    }
+    
+    public int getMaxPathLength()
+    {
+        return maxPathLength;
+    }
+    
+    //vertex from which russian roulette may end a path, 1 is the camera hit
+    public void setRouletteDepth(int rouletteDepth)
+    {
+        this.rouletteDepth = Math.max(1, rouletteDepth);
+    }
+    
+    public int getRouletteDepth()
+    {
+        return rouletteDepth;
+    }
+    
+    //statistics of the last complete pass, null before the first
+    public RenderStatistics getStatistics()
+    {
+        return statistics;
+    }
+    
+    @Override
+    protected void passBegin(int pass)
+    {
+        passStart = System.nanoTime();
+        if(pass == 1)
+        {
+            renderStart = passStart;
+            totalSamples = 0;
+            previousLuminance = new float[width * height];
+        }
+        samples.reset();
+        rays.reset();
+    }
+    
+    @Override
+    protected void passEnd(int pass)
+    {
+        long end = System.nanoTime();
+        long passSamples = samples.sum();
+        totalSamples += passSamples;
+        
+        statistics = new RenderStatistics(pass, passSamples, rays.sum(), totalSamples, 
+                end - passStart, end - renderStart, convergence());
+        System.out.println(statistics);
+    }
+    
+    //relative rms change of the pixel averages since the previous pass
+    private double convergence()
+    {
+        float[] rgb = buffer.getAccumulation();
+        float[] weights = buffer.getWeights();
+        double change = 0, total = 0;
+        for(int i = 0; i < weights.length; i++)
+        {
+            float luminance = weights[i] > 0 ? 
+                    (0.212671f * rgb[3 * i] + 0.715160f * rgb[3 * i + 1] + 0.072169f * rgb[3 * i + 2]) / weights[i] : 0;
+            double delta = luminance - previousLuminance[i];
+            change += delta * delta;
+            total += luminance * luminance;
+            previousLuminance[i] = luminance;
+        }
+        return total > 0 ? Math.sqrt(change / total) : 0;
+    }
+    
+    @Override
+    protected void renderTile(int x, int y, int w, int h, FrameBuffer.Tile tile)
+    {
+        for(int j = y; j < y + h; j++)
+            for(int i = x; i < x + w; i++)
+            {
+                Point2f sample = Rng.getPoint2f();
+                Ray ray = scene.camera.generateRay(i + sample.x, j + sample.y, width, height);
+                tile.add(i, j, radiance(ray));
+            }
+        samples.add(w * h);
+    }
+    
+    private Color radiance(Ray ray)
+    {
+        Color color = new Color();
+        Color throughput = new Color(1, 1, 1);
+        
+        int   lightCount    = scene.lights.getSize();
+        float lightPickProb = lightCount > 0 ? 1.f / lightCount : 0;
+        
+        //Bsdf sampling pdf of the last bounce and its origin, for MIS at emitters
+        float lastPdfW = 1;
+        boolean lastDelta = true;
+        Point3f lastPoint = null;
+        
+        for(int depth = 1; ; depth++)
+        {
+            Intersection isect = new Intersection();
+            rays.increment();
+            if(!scene.intersect(ray, isect))
+            {
+                if(scene.lights.hasBackgroundLight())
+                {
+                    AbstractBackground background = scene.lights.getBackgroundLight();
+                    Color radiance = background.radiance(scene, null, ray.d, null);
+                    color.addAssign(throughput.mul(radiance).mul(
+                            emissionWeight(background, lastPoint, ray.d, lastPdfW, lastDelta, lightPickProb)));
+                }
+                break;
+            }
+            
+            //Emitters end the path, instanced emitters have no area light and stay black
+            if(isect.isEmitter())
+            {
+                AbstractLight light = isect.primitive.getAreaLight();
+                if(light != null)
+                {
+                    Color radiance = light.radiance(scene, isect.dg.p, ray.d, null);
+                    color.addAssign(throughput.mul(radiance).mul(
+                            emissionWeight(light, lastPoint, ray.d, lastPdfW, lastDelta, lightPickProb)));
+                }
+                break;
+            }
+            
+            if(depth >= maxPathLength)
+                break;
+            
+            //Light sampling
+            AbstractBSDF bsdf = isect.bsdf;
+            if(!bsdf.isDelta() && lightCount > 0)
+            {
+                FloatValue weight = new FloatValue();
+                rays.increment();
+                Color direct = scene.directLightSampling(isect, weight);
+                if(!direct.isBlack())
+                    color.addAssign(throughput.mul(direct).mul(weight.value));
+            }
+            
+            //Bsdf sampling
+            Vector3f wo = new Vector3f();
+            FloatValue pdfW = new FloatValue();
+            FloatValue cosWo = new FloatValue();
+            Color factor = bsdf.sample(Rng.getPoint2f(), wo, pdfW, cosWo);
+            if(factor.isBlack() || !(pdfW.value > 0) || !(cosWo.value > 0))
+                break;
+            throughput = throughput.mul(factor.mul(cosWo.value / pdfW.value));
+            
+            //Russian roulette, the weight of surviving paths never rises above the bsdf albedo
+            if(depth >= rouletteDepth)
+            {
+                float continuation = bsdf.continuationProbability;
+                if(Rng.getFloat() >= continuation)
+                    break;
+                throughput = throughput.mul(1f / continuation);
+            }
+            
+            lastPdfW = pdfW.value;
+            lastDelta = bsdf.isDelta();
+            lastPoint = isect.dg.p;
+            ray = new Ray(isect.dg.p, wo);
+        }
+        return color;
+    }
+    
+    //MIS weight of emission found by bsdf sampling, against sampling the light from lastPoint
+    float emissionWeight(AbstractLight light, Point3f lastPoint, Vector3f direction, float lastPdfW, boolean lastDelta, float lightPickProb)
+    {
+        if(lastDelta)
+            return 1;
+        float directPdfW = light.directPdfW(scene, lastPoint, direction);
+        return mis2(lastPdfW, directPdfW * lightPickProb);
+    }
+}
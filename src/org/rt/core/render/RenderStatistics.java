@@ -0,0 +1,109 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.render;
+
+import org.rt.core.system.Timer;
+
+/**
+ *
+ * @author user
+ * 
+ * Throughput and convergence of one rendering pass. Convergence is the root 
+ * mean square change of the pixel averages caused by the pass, relative to 
+ * their root mean square, so it falls roughly with the inverse square root of
+ * the samples per pixel and tells how many more passes an image needs.
+ */
+public class RenderStatistics 
+{
+    private final int pass;
+    private final long samples, rays, totalSamples;
+    private final long passTime, totalTime;
+    private final double convergence;
+    
+    public RenderStatistics(int pass, long samples, long rays, long totalSamples, long passTime, long totalTime, double convergence)
+    {
+        this.pass = pass;
+        this.samples = samples;
+        this.rays = rays;
+        this.totalSamples = totalSamples;
+        this.passTime = passTime;
+        this.totalTime = totalTime;
+        this.convergence = convergence;
+    }
+    
+    public int getPass()
+    {
+        return pass;
+    }
+    
+    //camera samples (paths) of the pass
+    public long getSamples()
+    {
+        return samples;
+    }
+    
+    //camera, extension and shadow rays of the pass
+    public long getRays()
+    {
+        return rays;
+    }
+    
+    public long getTotalSamples()
+    {
+        return totalSamples;
+    }
+    
+    public long getPassTime()
+    {
+        return passTime;
+    }
+    
+    public long getTotalTime()
+    {
+        return totalTime;
+    }
+    
+    public double getSamplesPerSecond()
+    {
+        return passTime == 0 ? 0 : samples * 1e9 / passTime;
+    }
+    
+    public double getRaysPerSecond()
+    {
+        return passTime == 0 ? 0 : rays * 1e9 / passTime;
+    }
+    
+    public double getConvergence()
+    {
+        return convergence;
+    }
+    
+    @Override
+    public String toString()
+    {
+        return String.format("pass %d: %s, %.3f Msamples/s, %.3f Mrays/s, %.2f rays/sample, change %.5f, total %s", 
+                pass, Timer.toString(passTime), getSamplesPerSecond() * 1e-6, getRaysPerSecond() * 1e-6, 
+                samples == 0 ? 0 : (double) rays / samples, convergence, Timer.toString(totalTime));
+    }
+}
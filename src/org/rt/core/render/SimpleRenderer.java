@@ -23,132 +23,36 @@
  */
 package org.rt.core.render;
 
-import org.rt.core.AbstractDisplay;
-import org.rt.core.ImageSampler;
-import org.rt.core.Intersection;
-import org.rt.core.Scene;
+import org.rt.core.RayPacket;
 import org.rt.core.color.Color;
-import org.rt.core.coordinates.Point2f;
 import org.rt.util.FrameBuffer;
-import org.rt.core.math.Ray;
-import org.rt.core.math.Rng;
-import org.rt.thread.BatchThread;
-import org.rt.thread.KernelThread;
 
 /**
  *
  * @author user
+ * 
+ * Renders passes of direct lighting, one camera ray packet per tile.
  */
-public class SimpleRenderer implements ImageSampler
+public class SimpleRenderer extends TiledImageSampler
 {
-    int width, height;
-    Scene scene;
-    AbstractDisplay display;
-    
-    BatchThread<RendererThread> renderThreads;
-    
-    public SimpleRenderer()
-    {
-        this.renderThreads = new BatchThread();        
-    }
+    //camera rays of a tile are traced together as one packet per worker
+    final ThreadLocal<RayPacket> packets = ThreadLocal.withInitial(() -> new RayPacket(TILE_SIZE * TILE_SIZE));
     
     @Override
-    public boolean prepare(Scene scene, int w, int h) 
+    protected void renderTile(int x, int y, int w, int h, FrameBuffer.Tile tile)
     {
-        this.width = w; this.height = h;
-        this.scene = scene;
-                
-        return true;
-    }
-
-    @Override
-    public void render(AbstractDisplay display) 
-    {
-        for(int i = 0; i<scene.getThreads(); i++)
-            renderThreads.add(new RendererThread(width, height));
-        
-        this.display = display;
-        this.display.imageBegin(width, height);
+        RayPacket packet = packets.get();
+        scene.camera.generatePacket(packet, x, y, w, h, width, height);
+        scene.intersect(packet);
         
-        renderThreads.start();        
-    }
-    
-    @Override
-    public void updateDisplay()
-    {
-        renderThreads.get(0).getBuffer().scaleBuffer();            
-        Color[] colors = renderThreads.get(0).getBuffer().getScaledColorArray();
-                        
-        display.imageFill(colors);
-        display.imagePaint();         
-    }
-
-    @Override
-    public void stop() {
-        renderThreads.stop();       
-    }
-
-    @Override
-    public void pause() {
-        renderThreads.pause();       
-    }
-
-    @Override
-    public void resume() {
-        renderThreads.resume();        
-    }
-
-    @Override
-    public boolean isRunning() {
-        return !renderThreads.isThreadListEmpty();
-    }
-    
-    private class RendererThread extends KernelThread
-    {
-        FrameBuffer buffer;
-        
-        public RendererThread(int w, int h)
-        {
-            buffer = new FrameBuffer(w, h);            
-        }
-        
-        public FrameBuffer getBuffer()
-        {
-            return buffer;
-        }
-        
-        @Override
-        public void execute() {
-            // We sample lights uniformly
-            int   lightCount    = scene.lights.getSize();
-            float lightPickProb = 1.f / lightCount;
-                    
-            for(int pixID = 0; pixID < width * height; pixID++)
+        //Misses count as black samples
+        for(int i = 0; i < packet.size; i++)
+            if(packet.hits[i])
             {
-                chill(); if(kernelTerminated()) return;
-                
-                int x = pixID % width;
-                int y = pixID / height;
-                
-                Point2f sample = new Point2f((float)x, (float)y).add(Rng.getPoint2f());    
-                Ray ray = scene.camera.generateRay(sample.x, sample.y, width, height);
-                
-                Intersection isect = new Intersection();
-                if(scene.intersect(ray, isect))
-                {
-                    
-                    Color color = scene.directLightSampling(isect, null);
-                    buffer.add(x, y, color);
-                    //System.out.println(color);
-                }
-                
+                Color color = scene.directLightSampling(packet.isects[i], null);
+                tile.add(packet.x[i], packet.y[i], color);
             }
-            System.out.println("iteration " +buffer.getAccum());
-            
-            buffer.incrementAccum();
-            
-        }
-        
+            else
+                tile.add(packet.x[i], packet.y[i], 0, 0, 0);
     }
-    
 }
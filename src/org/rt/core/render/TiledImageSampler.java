@@ -0,0 +1,179 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.render;
+
+import org.rt.core.AbstractDisplay;
+import org.rt.core.ImageSampler;
+import org.rt.core.Scene;
+import org.rt.core.color.Color;
+import org.rt.thread.BatchThread;
+import org.rt.thread.KernelThread;
+import org.rt.thread.TileScheduler;
+import org.rt.util.FrameBuffer;
+
+/**
+ *
+ * @author user
+ * 
+ * Image sampler rendering passes over the image tile by tile into a single 
+ * film. A controller kernel runs one pass per execute on a TileScheduler, 
+ * which hands tiles out to scene.getThreads() workers by work stealing. Pause
+ * and stop are checked by the workers before every tile, a volatile read 
+ * unless paused.
+ * 
+ * Subclasses render a tile into the per worker tile buffer, which is merged 
+ * into the film when the tile is complete.
+ */
+public abstract class TiledImageSampler implements ImageSampler
+{
+    //default tile edge length in pixels
+    protected static final int TILE_SIZE = 8;
+    
+    protected final int tileSize;
+    
+    protected int width, height;
+    protected Scene scene;
+    protected AbstractDisplay display;
+    
+    protected FrameBuffer buffer;
+    TileScheduler scheduler;
+    BatchThread<RendererThread> renderThreads;
+    
+    final ThreadLocal<FrameBuffer.Tile> tiles;
+    
+    public TiledImageSampler()
+    {
+        this(TILE_SIZE);
+    }
+    
+    public TiledImageSampler(int tileSize)
+    {
+        this.tileSize = tileSize;
+        this.tiles = ThreadLocal.withInitial(() -> new FrameBuffer.Tile(tileSize));
+        this.renderThreads = new BatchThread<>();
+    }
+    
+    @Override
+    public boolean prepare(Scene scene, int w, int h) 
+    {
+        this.width = w; this.height = h;
+        this.scene = scene;
+                
+        return true;
+    }
+    
+    @Override
+    public void render(AbstractDisplay display) 
+    {
+        buffer = new FrameBuffer(width, height);
+        scheduler = new TileScheduler(width, height, tileSize, scene.getThreads());
+        renderThreads.add(new RendererThread(scheduler));
+        
+        this.display = display;
+        this.display.imageBegin(width, height);
+        
+        renderThreads.start();        
+    }
+    
+    //render the tile x, y, w, h into the tile buffer, called by the workers
+    protected abstract void renderTile(int x, int y, int w, int h, FrameBuffer.Tile tile);
+    
+    //called by the controller before and after every complete pass
+    protected void passBegin(int pass)
+    {
+        
+    }
+    
+    protected void passEnd(int pass)
+    {
+        System.out.println("iteration " +pass);
+    }
+    
+    @Override
+    public void updateDisplay()
+    {
+        buffer.scaleBuffer();            
+        Color[] colors = buffer.getScaledColorArray();
+                        
+        display.imageFill(colors);
+        display.imagePaint();         
+    }
+    
+    @Override
+    public void stop() {
+        renderThreads.stop();       
+    }
+    
+    @Override
+    public void pause() {
+        renderThreads.pause();       
+    }
+    
+    @Override
+    public void resume() {
+        renderThreads.resume();        
+    }
+    
+    @Override
+    public boolean isRunning() {
+        return !renderThreads.isThreadListEmpty();
+    }
+    
+    private class RendererThread extends KernelThread
+    {
+        final TileScheduler scheduler;
+        
+        public RendererThread(TileScheduler scheduler)
+        {
+            this.scheduler = scheduler;
+        }
+        
+        @Override
+        public void execute() {
+            passBegin(buffer.getAccum());
+            scheduler.render(this::renderTile);
+            buffer.publish();
+            
+            //Stopped passes end early, the pool is released once no more pass follows
+            if(kernelTerminated())
+            {
+                scheduler.shutdown();
+                return;
+            }
+            passEnd(buffer.getAccum());
+            
+            buffer.incrementAccum();
+        }
+        
+        private void renderTile(int x, int y, int w, int h)
+        {
+            if(!checkpoint()) return;
+            
+            FrameBuffer.Tile tile = tiles.get();
+            tile.reset(x, y, w, h);
+            TiledImageSampler.this.renderTile(x, y, w, h, tile);
+            buffer.merge(tile);
+        }
+    }
+}
@@ -0,0 +1,451 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.render;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.rt.core.AbstractBSDF;
+import org.rt.core.AbstractBackground;
+import org.rt.core.AbstractLight;
+import org.rt.core.Intersection;
+import org.rt.core.RayPacket;
+import org.rt.core.color.Color;
+import org.rt.core.coordinates.Point2f;
+import org.rt.core.coordinates.Point3f;
+import org.rt.core.coordinates.Vector3f;
+import org.rt.core.math.BoundingBox;
+import org.rt.core.math.FloatValue;
+import org.rt.core.math.Ray;
+import org.rt.core.math.Rng;
+import org.rt.core.system.Timer;
+import org.rt.util.FrameBuffer;
+import org.rt.util.Morton;
+import org.rt.util.Sorting;
+
+/**
+ *
+ * @author user
+ * 
+ * Wavefront version of the PathTracer. Instead of following one path to its 
+ * end, a worker keeps the paths of a whole tile in flight and advances them 
+ * together, one stage at a time:
+ * 
+ *      generate    camera rays for every pixel of the tile
+ *      extend      intersect the rays of all live paths
+ *      shade       add emission, queue a shadow ray, sample the bsdf
+ *      shadow      test the queued shadow rays and add the unoccluded ones
+ * 
+ * extend, shade and shadow repeat until no path is left. The path state is 
+ * kept in flat per path arrays, so a stage runs a short loop over the same
+ * data and code for all paths. Before extend and shadow the rays are sorted by
+ * direction octant and the Morton code of their origin and are intersected in 
+ * RayPackets, so neighbouring rays in a packet share accelerator nodes. Camera
+ * rays keep the scanline order of the tile, which is already coherent.
+ * 
+ * The estimator is the one of PathTracer, only the order of work differs. The
+ * radiance of each path is summed in its state and added to the film as one 
+ * sample when the tile is done, so bad paths are dropped as in PathTracer. The
+ * time spent in each stage, summed over the workers, is reported after every 
+ * pass and available from getStageTimes.
+ */
+public class WavefrontPathTracer extends PathTracer
+{
+    public static final int GENERATE = 0;
+    public static final int EXTEND   = 1;
+    public static final int SHADE    = 2;
+    public static final int SHADOW   = 3;
+    
+    static final String[] STAGE_NAMES = {"generate", "extend", "shade", "shadow"};
+    
+    //default tile edge, a wavefront of 4096 paths
+    static final int WAVEFRONT_TILE_SIZE = 64;
+    //rays intersected together after sorting
+    static final int PACKET_SIZE = 64;
+    
+    //octant in the 3 bits above a 27 bit Morton code
+    static final int MORTON_BITS = 9;
+    static final int KEY_BITS = 3 * MORTON_BITS + 3;
+    
+    boolean sortRays = true;
+    
+    final LongAdder[] stageTimes = {new LongAdder(), new LongAdder(), new LongAdder(), new LongAdder()};
+    volatile long[] lastStageTimes = new long[4];
+    
+    //origin quantization of the sort keys
+    float boundsX, boundsY, boundsZ, scaleX, scaleY, scaleZ;
+    
+    final ThreadLocal<PathState> states;
+    
+    public WavefrontPathTracer()
+    {
+        this(WAVEFRONT_TILE_SIZE);
+    }
+    
+    public WavefrontPathTracer(int tileSize)
+    {
+        super(tileSize);
+        this.states = ThreadLocal.withInitial(() -> new PathState(tileSize * tileSize));
+    }
+    
+    //rays are intersected in the order of their paths if false, to measure what sorting gains
+    public void setSortRays(boolean sortRays)
+    {
+        this.sortRays = sortRays;
+    }
+    
+    public boolean isSortRays()
+    {
+        return sortRays;
+    }
+    
+    //nanoseconds per stage of the last complete pass, summed over all workers
+    public long[] getStageTimes()
+    {
+        return lastStageTimes.clone();
+    }
+    
+    @Override
+    protected void passBegin(int pass)
+    {
+        super.passBegin(pass);
+        for(LongAdder time : stageTimes)
+            time.reset();
+        
+        BoundingBox bounds = scene.getWorldBounds();
+        float range = (1 << MORTON_BITS) - 1;
+        boundsX = bounds.minimum.x; boundsY = bounds.minimum.y; boundsZ = bounds.minimum.z;
+        scaleX = scale(bounds.maximum.x - boundsX, range);
+        scaleY = scale(bounds.maximum.y - boundsY, range);
+        scaleZ = scale(bounds.maximum.z - boundsZ, range);
+    }
+    
+    @Override
+    protected void passEnd(int pass)
+    {
+        super.passEnd(pass);
+        
+        long[] times = new long[stageTimes.length];
+        long total = 0;
+        for(int stage = 0; stage < times.length; stage++)
+            total += times[stage] = stageTimes[stage].sum();
+        lastStageTimes = times;
+        
+        StringBuilder builder = new StringBuilder("   stages:");
+        for(int stage = 0; stage < times.length; stage++)
+            builder.append(String.format(" %s %s (%.1f%%)", STAGE_NAMES[stage], 
+                    Timer.toString(times[stage]), total > 0 ? 100.0 * times[stage] / total : 0));
+        System.out.println(builder);
+    }
+    
+    @Override
+    protected void renderTile(int x, int y, int w, int h, FrameBuffer.Tile tile)
+    {
+        PathState state = states.get();
+        
+        long time = System.nanoTime();
+        generate(state, x, y, w, h);
+        time = stageEnd(GENERATE, time);
+        
+        for(int depth = 1; state.active > 0; depth++)
+        {
+            extend(state, depth > 1);
+            time = stageEnd(EXTEND, time);
+            shade(state, depth);
+            time = stageEnd(SHADE, time);
+            shadow(state);
+            time = stageEnd(SHADOW, time);
+        }
+        
+        //One sample per pixel, bad paths are dropped by the tile as in PathTracer
+        float[] radiance = state.radiance;
+        for(int path = 0; path < state.count; path++)
+            tile.add(state.pixelX[path], state.pixelY[path], 
+                    new Color(radiance[3 * path], radiance[3 * path + 1], radiance[3 * path + 2]));
+        samples.add(w * h);
+    }
+    
+    private long stageEnd(int stage, long start)
+    {
+        long end = System.nanoTime();
+        stageTimes[stage].add(end - start);
+        return end;
+    }
+    
+    private void generate(PathState state, int x, int y, int w, int h)
+    {
+        int path = 0;
+        for(int j = y; j < y + h; j++)
+            for(int i = x; i < x + w; i++)
+            {
+                Point2f sample = Rng.getPoint2f();
+                state.rays[path]      = scene.camera.generateRay(i + sample.x, j + sample.y, width, height);
+                state.pixelX[path]    = i;
+                state.pixelY[path]    = j;
+                state.throughput[3 * path] = state.throughput[3 * path + 1] = state.throughput[3 * path + 2] = 1;
+                state.radiance[3 * path] = state.radiance[3 * path + 1] = state.radiance[3 * path + 2] = 0;
+                state.lastPdfW[path]  = 1;
+                state.lastDelta[path] = true;
+                state.lastPoint[path] = null;
+                state.paths[path]     = path;
+                path++;
+            }
+        state.count = state.active = path;
+    }
+    
+    private void extend(PathState state, boolean sort)
+    {
+        int n = state.active;
+        if(sort && sortRays)
+            sort(state, state.rays, state.paths, n);
+        
+        RayPacket packet = state.packet;
+        for(int first = 0; first < n; first += PACKET_SIZE)
+        {
+            packet.clear();
+            int last = Math.min(n, first + PACKET_SIZE);
+            for(int k = first; k < last; k++)
+            {
+                int path = state.paths[k];
+                packet.add(state.rays[path], path, 0);
+            }
+            
+            scene.intersect(packet);
+            for(int k = 0; k < packet.size; k++)
+            {
+                int path = packet.x[k];
+                state.hits[path]   = packet.hits[k];
+                state.isects[path] = packet.isects[k];
+            }
+        }
+        rays.add(n);
+    }
+    
+    private void shade(PathState state, int depth)
+    {
+        int   lightCount    = scene.lights.getSize();
+        float lightPickProb = lightCount > 0 ? 1.f / lightCount : 0;
+        
+        float[] throughput = state.throughput;
+        int live = 0;
+        state.shadows = 0;
+        
+        for(int k = 0; k < state.active; k++)
+        {
+            int path = state.paths[k];
+            Ray ray = state.rays[path];
+            Intersection isect = state.isects[path];
+            state.rays[path] = null;
+            state.isects[path] = null;
+            
+            if(!state.hits[path])
+            {
+                if(scene.lights.hasBackgroundLight())
+                {
+                    AbstractBackground background = scene.lights.getBackgroundLight();
+                    Color radiance = background.radiance(scene, null, ray.d, null);
+                    addEmission(state, path, radiance, emissionWeight(background, 
+                            state.lastPoint[path], ray.d, state.lastPdfW[path], state.lastDelta[path], lightPickProb));
+                }
+                continue;
+            }
+            
+            //Emitters end the path, instanced emitters have no area light and stay black
+            if(isect.isEmitter())
+            {
+                AbstractLight light = isect.primitive.getAreaLight();
+                if(light != null)
+                {
+                    Color radiance = light.radiance(scene, isect.dg.p, ray.d, null);
+                    addEmission(state, path, radiance, emissionWeight(light, 
+                            state.lastPoint[path], ray.d, state.lastPdfW[path], state.lastDelta[path], lightPickProb));
+                }
+                continue;
+            }
+            
+            if(depth >= maxPathLength)
+                continue;
+            
+            //Light sampling, the shadow ray is queued with the contribution it unblocks
+            AbstractBSDF bsdf = isect.bsdf;
+            if(!bsdf.isDelta() && lightCount > 0)
+            {
+                FloatValue weight = new FloatValue();
+                Ray rayToLight = new Ray();
+                Color direct = scene.sampleDirectLight(isect, weight, rayToLight);
+                if(!direct.isBlack())
+                {
+                    int shadow = state.shadows++;
+                    state.shadowPaths[shadow] = path;
+                    state.shadowRays[shadow] = rayToLight;
+                    state.shadowColor[3 * shadow    ] = throughput[3 * path    ] * direct.r * weight.value;
+                    state.shadowColor[3 * shadow + 1] = throughput[3 * path + 1] * direct.g * weight.value;
+                    state.shadowColor[3 * shadow + 2] = throughput[3 * path + 2] * direct.b * weight.value;
+                }
+            }
+            
+            //Bsdf sampling
+            Vector3f wo = new Vector3f();
+            FloatValue pdfW = new FloatValue();
+            FloatValue cosWo = new FloatValue();
+            Color factor = bsdf.sample(Rng.getPoint2f(), wo, pdfW, cosWo);
+            if(factor.isBlack() || !(pdfW.value > 0) || !(cosWo.value > 0))
+                continue;
+            float scale = cosWo.value / pdfW.value;
+            
+            //Russian roulette, the weight of surviving paths never rises above the bsdf albedo
+            if(depth >= rouletteDepth)
+            {
+                float continuation = bsdf.continuationProbability;
+                if(Rng.getFloat() >= continuation)
+                    continue;
+                scale /= continuation;
+            }
+            
+            throughput[3 * path    ] *= factor.r * scale;
+            throughput[3 * path + 1] *= factor.g * scale;
+            throughput[3 * path + 2] *= factor.b * scale;
+            state.lastPdfW[path]  = pdfW.value;
+            state.lastDelta[path] = bsdf.isDelta();
+            state.lastPoint[path] = isect.dg.p;
+            state.rays[path] = new Ray(isect.dg.p, wo);
+            
+            //Live paths are compacted to the front, in the sorted order of this bounce
+            state.paths[live++] = path;
+        }
+        state.active = live;
+    }
+    
+    private void shadow(PathState state)
+    {
+        int n = state.shadows;
+        if(n == 0)
+            return;
+        
+        int[] order = state.order;
+        for(int k = 0; k < n; k++)
+            order[k] = k;
+        if(sortRays)
+            sort(state, state.shadowRays, order, n);
+        
+        for(int k = 0; k < n; k++)
+        {
+            int shadow = order[k];
+            if(!scene.occluded(state.shadowRays[shadow]))
+            {
+                int path = state.shadowPaths[shadow];
+                state.radiance[3 * path    ] += state.shadowColor[3 * shadow    ];
+                state.radiance[3 * path + 1] += state.shadowColor[3 * shadow + 1];
+                state.radiance[3 * path + 2] += state.shadowColor[3 * shadow + 2];
+            }
+            state.shadowRays[shadow] = null;
+        }
+        rays.add(n);
+    }
+    
+    private void addEmission(PathState state, int path, Color emission, float weight)
+    {
+        float[] throughput = state.throughput;
+        state.radiance[3 * path    ] += throughput[3 * path    ] * emission.r * weight;
+        state.radiance[3 * path + 1] += throughput[3 * path + 1] * emission.g * weight;
+        state.radiance[3 * path + 2] += throughput[3 * path + 2] * emission.b * weight;
+    }
+    
+    //sorts the first n indices into rays by the sort key of their ray
+    private void sort(PathState state, Ray[] rays, int[] indices, int n)
+    {
+        int[] keys = state.keys;
+        for(int k = 0; k < n; k++)
+            keys[k] = key(rays[indices[k]]);
+        Sorting.radixSort(keys, indices, n, KEY_BITS);
+    }
+    
+    private int key(Ray ray)
+    {
+        int octant = (ray.d.x < 0 ? 1 : 0) | (ray.d.y < 0 ? 2 : 0) | (ray.d.z < 0 ? 4 : 0);
+        int x = quantize((ray.o.x - boundsX) * scaleX);
+        int y = quantize((ray.o.y - boundsY) * scaleY);
+        int z = quantize((ray.o.z - boundsZ) * scaleZ);
+        return octant << (3 * MORTON_BITS) | Morton.encode30(x, y, z);
+    }
+    
+    private static float scale(float extent, float range)
+    {
+        return extent > 0 ? range / extent : 0;
+    }
+    
+    private static int quantize(float v)
+    {
+        if(!(v > 0)) return 0;
+        return Math.min((int) v, (1 << MORTON_BITS) - 1);
+    }
+    
+    //path state of one tile, one entry per path
+    static class PathState
+    {
+        //live paths in the order of the current stage, out of count paths of the tile
+        final int[] paths;
+        int active = 0, count = 0;
+        
+        final int[] pixelX, pixelY;
+        final float[] throughput;       // 3 floats per path
+        final float[] radiance;         // 3 floats per path
+        final float[] lastPdfW;
+        final boolean[] lastDelta;
+        final Point3f[] lastPoint;
+        
+        //rays to extend and their hits
+        final Ray[] rays;
+        final Intersection[] isects;
+        final boolean[] hits;
+        
+        //queued shadow rays with the path and the contribution they add
+        final int[] shadowPaths;
+        final Ray[] shadowRays;
+        final float[] shadowColor;      // 3 floats per shadow ray
+        int shadows = 0;
+        
+        //sort buffers
+        final int[] keys, order;
+        final RayPacket packet = new RayPacket(PACKET_SIZE);
+        
+        PathState(int capacity)
+        {
+            paths       = new int[capacity];
+            pixelX      = new int[capacity];
+            pixelY      = new int[capacity];
+            throughput  = new float[3 * capacity];
+            radiance    = new float[3 * capacity];
+            lastPdfW    = new float[capacity];
+            lastDelta   = new boolean[capacity];
+            lastPoint   = new Point3f[capacity];
+            rays        = new Ray[capacity];
+            isects      = new Intersection[capacity];
+            hits        = new boolean[capacity];
+            shadowPaths = new int[capacity];
+            shadowRays  = new Ray[capacity];
+            shadowColor = new float[3 * capacity];
+            keys        = new int[capacity];
+            order       = new int[capacity];
+        }
+    }
+}
@@ -29,7 +29,9 @@ import org.rt.core.AbstractSceneDescription;
 import org.rt.core.Material;
 import org.rt.core.coordinates.Point3f;
 import org.rt.core.light.BackgroundLight;
+import org.rt.core.math.Transform;
 import org.rt.core.primitive.Geometry;
+import org.rt.core.primitive.Instance;
 import org.rt.core.shape.Sphere;
 
 /**
@@ -44,18 +46,16 @@ public class SphereArrayScene extends AbstractSceneDescription
     public ArrayList<AbstractPrimitive> getPrimitives() {
         ArrayList<AbstractPrimitive> primitives = new ArrayList<>();
         
-        for(int i = 0; i<size; i++)
+        //One sphere shared by all instances
+        Geometry sphere = new Geometry(Material.createDefaultLambert());
+        sphere.addGeometryPrimitive(new Sphere(new Point3f(), 0.2f));
         
+        for(int i = 0; i<size; i++)
             for(int j = 0; j<size; j++)
                 for(int k = 0; k<size; k++)
                 {
-                    Geometry geom1 = new Geometry(Material.createDefaultLambert());
-                    geom1.addGeometryPrimitive(new Sphere(new Point3f(i+1f, j+1, k+1f), 0.2f));            
-                    primitives.add(geom1);
-                    
-                    Geometry geom2 = new Geometry(Material.createDefaultLambert());
-                    geom2.addGeometryPrimitive(new Sphere(new Point3f(i+1f, j+1, k+1f).mul(-1), 0.2f));            
-                    primitives.add(geom2);
+                    primitives.add(new Instance(sphere, Transform.translate(i+1f, j+1, k+1f)));
+                    primitives.add(new Instance(sphere, Transform.translate(-(i+1f), -(j+1), -(k+1f))));
                 }
         
         return primitives;
@@ -142,6 +142,21 @@ public class Triangle extends AbstractShape
         bound.include(p3);
         return bound;
     }
+    
+    public Point3f getP1()
+    {
+        return p1;
+    }
+    
+    public Point3f getP2()
+    {
+        return p2;
+    }
+    
+    public Point3f getP3()
+    {
+        return p3;
+    }
 
     @Override
     public boolean intersectP(Ray r) {
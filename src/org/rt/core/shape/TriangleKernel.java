@@ -0,0 +1,197 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.core.shape;
+
+import java.util.Arrays;
+import org.rt.core.math.DifferentialGeometry;
+import org.rt.core.math.Ray;
+
+/**
+ *
+ * @author user
+ * 
+ * Watertight ray triangle intersection (Woop, Benthin and Wald 2013) on 
+ * vertices stored in a float[] as p1 p2 p3, 9 floats per triangle. Vertices 
+ * are translated to the ray origin and sheared so that the ray points down +z, 
+ * where the edge functions U, V, W are evaluated in 2D. Edges shared by two 
+ * triangles are evaluated with identical inputs for both, so rays through an 
+ * edge or vertex never slip between them.
+ * 
+ * Everything is computed in floats without allocation, the permutation and 
+ * shear of the ray are precomputed in Ray.init().
+ * 
+ * The projection test (Wald 2004, in the plane form of Shevtsov et al. 2007) 
+ * trades memory for a test without branches on the ray axes. Per triangle the 
+ * plane and the two barycentric edge equations, projected to the coordinate 
+ * plane the triangle is most parallel to, are precomputed as 12 floats, so a 
+ * test is three dot products and a division only for hits. It is not 
+ * watertight, rays through an edge may miss both triangles sharing it.
+ * 
+ * Projection data layout (PROJECTION_SIZE floats per triangle), coefficients 
+ * are divided so that the plane normal is 1 on its dominant axis
+ * 
+ *      0..3    plane normal xyz and distance
+ *      4..7    p2 barycentric as a function of the hit point xyz and constant
+ *      8..11   p3 barycentric as a function of the hit point xyz and constant
+ */
+public final class TriangleKernel 
+{
+    public static final int PROJECTION_SIZE = 12;
+    
+    private TriangleKernel()
+    {
+        
+    }
+    
+    /**
+     * Intersects the ray with the triangle at offset in vertices. Only the 
+     * ray extent and the barycentric coordinates are touched, any shading 
+     * data is left to the caller.
+     * 
+     * @return parametric distance of the hit inside the ray extent, NaN on a miss
+     */
+    public static float intersect(Ray r, float[] vertices, int offset, DifferentialGeometry dg)
+    {
+        int kx = r.kx, ky = r.ky, kz = r.kz;
+        float ox = r.o.get(kx), oy = r.o.get(ky), oz = r.o.get(kz);
+        float sx = r.sx, sy = r.sy, sz = r.sz;
+        
+        //Vertices relative to the ray origin
+        float az = vertices[offset + kz] - oz;
+        float bz = vertices[offset + 3 + kz] - oz;
+        float cz = vertices[offset + 6 + kz] - oz;
+        
+        //Shear and scale of the vertices
+        float ax = vertices[offset + kx] - ox - sx * az;
+        float ay = vertices[offset + ky] - oy - sy * az;
+        float bx = vertices[offset + 3 + kx] - ox - sx * bz;
+        float by = vertices[offset + 3 + ky] - oy - sy * bz;
+        float cx = vertices[offset + 6 + kx] - ox - sx * cz;
+        float cy = vertices[offset + 6 + ky] - oy - sy * cz;
+        
+        //Scaled barycentric coordinates, a mixed sign means the ray passes outside
+        float u = cx * by - cy * bx;
+        float v = ax * cy - ay * cx;
+        float w = bx * ay - by * ax;
+        if((u < 0 || v < 0 || w < 0) && (u > 0 || v > 0 || w > 0))
+            return Float.NaN;
+        
+        float det = u + v + w;
+        if(det == 0)
+            return Float.NaN;
+        
+        //Hit distance from the interpolated depth of the sheared vertices
+        float invDet = 1f / det;
+        float t = sz * (u * az + v * bz + w * cz) * invDet;
+        if(!r.isInside(t))
+            return Float.NaN;
+        
+        if(dg != null)
+        {
+            dg.u = v * invDet;
+            dg.v = w * invDet;
+        }
+        return t;
+    }
+    
+    //projection data for every triangle of vertices, degenerate triangles get NaN and are never hit
+    public static float[] precompute(float[] vertices)
+    {
+        int size = vertices.length / 9;
+        float[] data = new float[PROJECTION_SIZE * size];
+        for(int i = 0; i < size; i++)
+        {
+            int v = 9 * i, o = PROJECTION_SIZE * i;
+            float ax = vertices[v], ay = vertices[v + 1], az = vertices[v + 2];
+            
+            //Edges to p2 and p3 and the plane normal
+            float[] c = {vertices[v + 3] - ax, vertices[v + 4] - ay, vertices[v + 5] - az};
+            float[] b = {vertices[v + 6] - ax, vertices[v + 7] - ay, vertices[v + 8] - az};
+            float[] n = {c[1] * b[2] - c[2] * b[1], c[2] * b[0] - c[0] * b[2], c[0] * b[1] - c[1] * b[0]};
+            float[] a = {ax, ay, az};
+            
+            //Project along the dominant axis of the normal
+            int k = Math.abs(n[0]) > Math.abs(n[1]) ? (Math.abs(n[0]) > Math.abs(n[2]) ? 0 : 2) : (Math.abs(n[1]) > Math.abs(n[2]) ? 1 : 2);
+            int ku = k == 2 ? 0 : k + 1, kv = ku == 2 ? 0 : ku + 1;
+            float invDet = 1f / (c[ku] * b[kv] - c[kv] * b[ku]);
+            if(n[k] == 0 || Float.isInfinite(invDet))
+            {
+                Arrays.fill(data, o, o + PROJECTION_SIZE, Float.NaN);
+                continue;
+            }
+            
+            //Plane, p2 and p3 barycentric planes with the axis k coefficient of the 2D form
+            data[o + k     ] = 1;
+            data[o + ku    ] = n[ku] / n[k];
+            data[o + kv    ] = n[kv] / n[k];
+            data[o + 3     ] = (n[0] * ax + n[1] * ay + n[2] * az) / n[k];
+            data[o + 4 + ku] = b[kv] * invDet;
+            data[o + 4 + kv] = -b[ku] * invDet;
+            data[o + 7     ] = (a[kv] * b[ku] - a[ku] * b[kv]) * invDet;
+            data[o + 8 + ku] = -c[kv] * invDet;
+            data[o + 8 + kv] = c[ku] * invDet;
+            data[o + 11    ] = (a[ku] * c[kv] - a[kv] * c[ku]) * invDet;
+        }
+        return data;
+    }
+    
+    /**
+     * Intersects the ray with the triangle at offset in precomputed projection
+     * data, with the same contract as intersect.
+     * 
+     * @return parametric distance of the hit inside the ray extent, NaN on a miss
+     */
+    public static float intersectProjected(Ray r, float[] data, int offset, DifferentialGeometry dg)
+    {
+        float ox = r.o.x, oy = r.o.y, oz = r.o.z;
+        float dx = r.d.x, dy = r.d.y, dz = r.d.z;
+        float nx = data[offset], ny = data[offset + 1], nz = data[offset + 2];
+        
+        //Plane distance as tNum / det and barycentrics scaled by det, the division waits for a hit
+        float det = dx * nx + dy * ny + dz * nz;
+        float tNum = data[offset + 3] - ox * nx - oy * ny - oz * nz;
+        float hx = ox * det + tNum * dx, hy = oy * det + tNum * dy, hz = oz * det + tNum * dz;
+        float b1 = hx * data[offset + 4] + hy * data[offset +  5] + hz * data[offset +  6] + det * data[offset +  7];
+        float b2 = hx * data[offset + 8] + hy * data[offset +  9] + hz * data[offset + 10] + det * data[offset + 11];
+        
+        //Flip signs for a negative det, all three barycentrics must be positive
+        float sign = Math.copySign(1f, det);
+        if(b1 * sign < 0 || b2 * sign < 0 || (det - b1 - b2) * sign < 0)
+            return Float.NaN;
+        
+        float invDet = 1f / det;
+        float t = tNum * invDet;
+        if(!r.isInside(t))
+            return Float.NaN;
+        b1 *= invDet;
+        b2 *= invDet;
+        
+        if(dg != null)
+        {
+            dg.u = b1;
+            dg.v = b2;
+        }
+        return t;
+    }
+}
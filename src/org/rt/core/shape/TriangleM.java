@@ -61,17 +61,17 @@ public class TriangleM extends AbstractShape
         return bound;
     }
     
-    private Point3f getP1()
+    public Point3f getP1()
     {
         return TriangleMesh.p.get(mesh.vertexIndex.get(offset));
     }
     
-    private Point3f getP2()
+    public Point3f getP2()
     {
         return TriangleMesh.p.get(mesh.vertexIndex.get(offset + 1));
     }
     
-    private Point3f getP3()
+    public Point3f getP3()
     {
         return TriangleMesh.p.get(mesh.vertexIndex.get(offset + 2));
     }
@@ -81,161 +81,90 @@ public class TriangleM extends AbstractShape
         return TriangleMesh.n.get(mesh.normalIndex.get(offset));
     }
     
-    private Normal3f getN2()
-    {
-        return TriangleMesh.n.get(mesh.normalIndex.get(offset + 1));
-    }
-    
-    private Normal3f getN3()
-    {
-        return TriangleMesh.n.get(mesh.normalIndex.get(offset + 2));
+    @Override
+    public boolean intersectP(Ray r) {
+        return !Float.isNaN(kernel(r, null));
     }
-    
-    private Point2f getUV1()
-    {        
-        return TriangleMesh.uv.get(mesh.uvIndex.get(offset));
+
+    @Override
+    public boolean intersect(Ray r, DifferentialGeometry dg) {
+        if(!intersectHit(r, dg))
+            return false;
+        shade(r, dg);
+        return true;
     }
     
-    private Point2f getUV2()
+    //only the distance and the barycentric coordinates of p2 and p3 in dg.u and dg.v
+    @Override
+    public boolean intersectHit(Ray r, DifferentialGeometry dg)
     {
-        return TriangleMesh.uv.get(mesh.uvIndex.get(offset + 1));
+        float t = kernel(r, dg);
+        if(Float.isNaN(t))
+            return false;
+        r.setMax(t);
+        dg.shape = this;
+        return true;
     }
     
-    private Point2f getUV3()
+    //hit distance or NaN by the kernel selected for the mesh
+    private float kernel(Ray r, DifferentialGeometry dg)
     {
-        return TriangleMesh.uv.get(mesh.uvIndex.get(offset + 2));
+        if(mesh.projection != null)
+            return TriangleKernel.intersectProjected(r, mesh.projection, (offset / 3) * TriangleKernel.PROJECTION_SIZE, dg);
+        return TriangleKernel.intersect(r, mesh.vertices, 3 * offset, dg);
     }
-
+    
     @Override
-    public boolean intersectP(Ray r) {
-        Vector3f e1, e2, h, s, q;
-        double a, f, b1, b2;
-        
-        e1 = Point3f.sub(getP2(), getP1());
-        e2 = Point3f.sub(getP3(), getP1());
-        h = Vector3f.cross(r.d, e2);
-        a = Vector3f.dot(e1, h);
-
-        if (a > -0.0000001 && a < 0.0000001)
-            return false;
-
-        f = 1/a;
-        s = Point3f.sub(r.o, getP1());
-	b1 = f * (Vector3f.dot(s, h));
-
-        if (b1 < 0.0 || b1 > 1.0)
-            return false;
-
-        q = Vector3f.cross(s, e1);
-	b2 = f * Vector3f.dot(r.d, q);
-
-	if (b2 < 0.0 || b1 + b2 > 1.0)
-            return false;
-
-	float t = (float) (f * Vector3f.dot(e2, q));
+    public void shade(Ray r, DifferentialGeometry dg)
+    {
+        float b1 = dg.u, b2 = dg.v, b0 = 1 - b1 - b2;
+        dg.p = r.getPoint();
+        dg.nn = arbitraryNormal();
         
-        return r.isInside(t);
-    }
-
-    @Override
-    public boolean intersect(Ray r, DifferentialGeometry dg) {
-        Vector3f e1, e2, h, s, q;
-        double a, f, b1, b2;
-
-        e1 = Point3f.sub(getP2(), getP1());
-        e2 = Point3f.sub(getP3(), getP1());
-        h = Vector3f.cross(r.d, e2);
-        a = Vector3f.dot(e1, h);
-
-        if (a > -0.0000001 && a < 0.0000001)
-            return false;
-
-        f = 1/a;
+        //Use normal mesh if there is, facing the ray either way
+        Normal3f nhit = mesh.hasNormal() ? getNormal(b0, b1, b2) : dg.nn.clone();
+        if(Vector3f.dot(nhit, r.d) > 0)
+            nhit = nhit.neg();
+        dg.n = nhit;
         
-        s = Point3f.sub(r.o, getP1());
-	b1 = f * (Vector3f.dot(s, h));
-
-        if (b1 < 0.0 || b1 > 1.0)
-            return false;
-
-        q = Vector3f.cross(s, e1);
-	b2 = f * Vector3f.dot(r.d, q);
-
-	if (b2 < 0.0 || b1 + b2 > 1.0)
-            return false;
-
-	float t = (float) (f * Vector3f.dot(e2, q));
-
-        if (r.isInside(t))
-        {   
-            Normal3f nhit;
-            if(Vector3f.dot(arbitraryNormal(), r.d) < 0) 
-                nhit = arbitraryNormal();   
-            else
-                nhit = arbitraryNormal().neg();
-                
-            r.setMax(t);
-            dg.p = r.getPoint();
-                       
-            //Use normal mesh if there is
-            if(mesh.hasNormal())
-            {
-                nhit = getNormal((float)(1d - b1 - b2), (float)b1, (float)b2);
-                if(Vector3f.dot(nhit, r.d) > 0)                    
-                    nhit = nhit.neg();
-                dg.n = nhit;
-            }
-            else
-            {
-                dg.n = nhit;
-            }
-            
-            //Use uv mesh if there is
-            if(mesh.hasUV())
-            {
-                Point2f uv = getUV((float)(1d - b1 - b2), (float)b1, (float)b2);         
-                dg.u = uv.x;
-                dg.v = uv.y;
-            }
-            else
-            {
-                dg.u = (float) b1;
-                dg.v = (float) b2;
-            }
-            
-            dg.shape = this;            
-            dg.nn = arbitraryNormal();
-            
-            //System.out.println(dg.p);
-                        
-            return true;
-        }        
-        return false;
+        //Use uv mesh if there is, barycentric coordinates otherwise
+        if(mesh.hasUV())
+        {
+            Point2f uv = getUV(b0, b1, b2);
+            dg.u = uv.x;
+            dg.v = uv.y;
+        }
+        dg.shape = this;
     }
     
     private Normal3f arbitraryNormal()
     {
-        Vector3f e1 = Point3f.sub(getP2(), getP1());
-        Vector3f e2 = Point3f.sub(getP3(), getP1());
-        
-        return new Normal3f(Vector3f.cross(e1, e2).normalize());
+        float[] v = mesh.vertices;
+        int o = 3 * offset;
+        float e1x = v[o + 3] - v[o], e1y = v[o + 4] - v[o + 1], e1z = v[o + 5] - v[o + 2];
+        float e2x = v[o + 6] - v[o], e2y = v[o + 7] - v[o + 1], e2z = v[o + 8] - v[o + 2];
+        return new Normal3f(e1y * e2z - e1z * e2y, e1z * e2x - e1x * e2z, e1x * e2y - e1y * e2x).normalize();
     }
     
     
     public Normal3f getNormal(float b0, float b1, float b2)
     {
+        float[] n = mesh.normals;
+        int o = 3 * offset;
         Normal3f norm = new Normal3f();
-        norm.x = getN1().x*b0 + getN2().x*b1 + getN3().x*b2;
-        norm.y = getN1().y*b0 + getN2().y*b1 + getN3().y*b2;
-        norm.z = getN1().z*b0 + getN2().z*b1 + getN3().z*b2;        
+        norm.x = n[o    ]*b0 + n[o + 3]*b1 + n[o + 6]*b2;
+        norm.y = n[o + 1]*b0 + n[o + 4]*b1 + n[o + 7]*b2;
+        norm.z = n[o + 2]*b0 + n[o + 5]*b1 + n[o + 8]*b2;        
         return norm;
     }
     
     public Point2f getUV(float b0, float b1, float b2)
     {
+        float[] uv = mesh.uvs;
+        int o = 2 * offset;
         Point2f puv = new Point2f();
-        puv.x = getUV1().x*b0 + getUV2().x*b1 + getUV3().x*b2;
-        puv.y = getUV1().y*b0 + getUV2().y*b1 + getUV3().y*b2;
+        puv.x = uv[o    ]*b0 + uv[o + 2]*b1 + uv[o + 4]*b2;
+        puv.y = uv[o + 1]*b0 + uv[o + 3]*b1 + uv[o + 5]*b2;
         return puv;
     }
    
@@ -50,6 +50,14 @@ public class TriangleMesh extends AbstractShape
     protected IntArray   uvIndex;
     protected IntArray   normalIndex;
     
+    //per triangle copies read by the intersection kernel, filled by refine
+    float[] vertices = null;       // 9 floats per triangle, p1 p2 p3
+    float[] normals = null;        // 9 floats per triangle if the mesh has normals
+    float[] uvs = null;            // 6 floats per triangle if the mesh has uvs
+    float[] projection = null;     // TriangleKernel.PROJECTION_SIZE floats per triangle if enabled
+    
+    //test triangles against precomputed projection data instead of the watertight kernel
+    boolean projectionTest = false;
        
     BoundingBox bounds = new BoundingBox();
     String name = null;
@@ -124,6 +132,12 @@ public class TriangleMesh extends AbstractShape
         normalIndex.add(a, b, c);
     }
     
+    //precomputed hit tests for 48 more bytes per triangle, rays may slip through shared edges, takes effect on refine
+    public void setProjectionTest(boolean projectionTest)
+    {
+        this.projectionTest = projectionTest;
+    }
+    
     public boolean hasNormal()
     {
         return normalIndex.size() > 0;
@@ -177,7 +191,33 @@ public class TriangleMesh extends AbstractShape
     @Override
     public  ArrayList<AbstractShape> refine()
     {
-        //TODO
+        //Flat arrays in triangle order, so a test reads contiguous floats instead of chasing list entries
+        int size = getTriangleSize();
+        vertices = new float[9 * size];
+        for(int i = 0; i < 3 * size; i++)
+        {
+            Point3f v = p.get(vertexIndex.get(i));
+            vertices[3 * i    ] = v.x;
+            vertices[3 * i + 1] = v.y;
+            vertices[3 * i + 2] = v.z;
+        }
+        normals = hasNormal() ? new float[9 * size] : null;
+        for(int i = 0; normals != null && i < 3 * size; i++)
+        {
+            Normal3f v = n.get(normalIndex.get(i));
+            normals[3 * i    ] = v.x;
+            normals[3 * i + 1] = v.y;
+            normals[3 * i + 2] = v.z;
+        }
+        uvs = hasUV() ? new float[6 * size] : null;
+        for(int i = 0; uvs != null && i < 3 * size; i++)
+        {
+            Point2f v = uv.get(uvIndex.get(i));
+            uvs[2 * i    ] = v.x;
+            uvs[2 * i + 1] = v.y;
+        }
+        projection = projectionTest ? TriangleKernel.precompute(vertices) : null;
+        
         ArrayList<AbstractShape> refined = new ArrayList<>();
         for(int i = 0; i<getTriangleSize(); i++)
         {
@@ -30,14 +30,25 @@ import java.util.Arrays;
  *
  * @author user
  * @param <K>
+ * 
+ * Group of kernels controlled together, started on a KernelExecutor, the 
+ * shared default one unless set.
  */
 public class BatchThread <K extends KernelThread>
 {
     ArrayList<K> threadList;
+    KernelExecutor executor;
     
     public BatchThread()
     {
         threadList = new ArrayList<>();
+        executor = KernelExecutor.getDefault();
+    }
+    
+    public BatchThread(KernelExecutor executor)
+    {
+        threadList = new ArrayList<>();
+        this.executor = executor;
     }
     
     public BatchThread(K... threads)            
@@ -59,10 +70,20 @@ public class BatchThread <K extends KernelThread>
         threadList.addAll(Arrays.asList(threads));
     }
     
+    public void setExecutor(KernelExecutor executor)
+    {
+        this.executor = executor;
+    }
+    
+    public KernelExecutor getExecutor()
+    {
+        return executor;
+    }
+    
     public void start()
     {
         for(KernelThread thread : threadList)
-            thread.startKernel();
+            thread.startKernel(executor);
     }
     
     public void pause()
@@ -29,49 +29,32 @@ package org.rt.thread;
  */
 public class KernelExecution implements Runnable
 {
-    boolean suspend = false;    
-    boolean finish  = false;
+    final KernelState state = new KernelState();
     
     public void pause()
     {
-        suspend = true;
+        state.pause();
     }
 
-    public synchronized void resume()
+    public void resume()
     {
-        suspend = false;
-        notify();
+        state.resume();
     }
   
     public void finish()
     {
-        finish = true;        
+        state.stop();
     }
     
     private boolean terminated()
     {
-        return finish;
+        return state.isStopped();
     }
     
     //use this in a method in order to execute the thread state such pause & resume
-    public synchronized void chill()
+    public void chill()
     {
-        try
-        {
-            waitForNotificationToResume();
-        }
-        catch (InterruptedException ex)
-        {
-            System.err.println(ex);
-        }
-    }
-    
-    private synchronized void waitForNotificationToResume() throws InterruptedException
-    {
-        while(suspend)
-        {           
-            wait();
-        }         
+        state.checkpoint();
     }
     
     @Override
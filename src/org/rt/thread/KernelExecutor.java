@@ -0,0 +1,111 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.thread;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * @author user
+ * 
+ * Executor service that kernels are submitted to instead of each wrapping its
+ * own platform thread. Either a fixed pool of platform threads, or one virtual 
+ * thread per kernel on a runtime that has them (Java 21 and later), looked up 
+ * reflectively so the code still targets Java 8. All threads are daemons.
+ */
+public class KernelExecutor 
+{
+    private static KernelExecutor defaultExecutor = null;
+    
+    private final ExecutorService service;
+    private final boolean virtual;
+    
+    public KernelExecutor(ExecutorService service)
+    {
+        this(service, false);
+    }
+    
+    private KernelExecutor(ExecutorService service, boolean virtual)
+    {
+        this.service = service;
+        this.virtual = virtual;
+    }
+    
+    public static KernelExecutor platform(int threads)
+    {
+        return new KernelExecutor(Executors.newFixedThreadPool(threads, daemonFactory()));
+    }
+    
+    //virtual threads if available, else platform threads created on demand
+    public static KernelExecutor virtual()
+    {
+        try
+        {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return new KernelExecutor((ExecutorService) method.invoke(null), true);
+        }
+        catch (ReflectiveOperationException ex)
+        {
+            return new KernelExecutor(Executors.newCachedThreadPool(daemonFactory()));
+        }
+    }
+    
+    //shared executor of kernels that are not given one
+    public static synchronized KernelExecutor getDefault()
+    {
+        if(defaultExecutor == null)
+            defaultExecutor = virtual();
+        return defaultExecutor;
+    }
+    
+    public boolean isVirtual()
+    {
+        return virtual;
+    }
+    
+    public Future<?> submit(Runnable kernel)
+    {
+        return service.submit(kernel);
+    }
+    
+    public void shutdown()
+    {
+        service.shutdown();
+    }
+    
+    private static ThreadFactory daemonFactory()
+    {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "kernel-" +count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,124 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.thread;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ *
+ * @author user
+ * 
+ * Cooperative run state of a kernel, shared by the thread controlling it and 
+ * all threads executing it. Kernels call checkpoint() at safe points, e.g. 
+ * once per tile, which is a single volatile read while running. Only a paused 
+ * kernel takes the lock and waits on it, a java.util.concurrent lock instead 
+ * of a monitor so that waiting virtual threads do not pin their carrier.
+ * 
+ * A stopped state is final, stop also wakes paused threads so they can exit.
+ */
+public class KernelState 
+{
+    static final int RUNNING = 0, PAUSED = 1, STOPPED = 2;
+    
+    private volatile int state = RUNNING;
+    
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition resumed = lock.newCondition();
+    
+    public void pause()
+    {
+        lock.lock();
+        try
+        {
+            if(state == RUNNING)
+                state = PAUSED;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    public void resume()
+    {
+        signal(RUNNING);
+    }
+    
+    public void stop()
+    {
+        signal(STOPPED);
+    }
+    
+    private void signal(int newState)
+    {
+        lock.lock();
+        try
+        {
+            if(state != STOPPED)
+                state = newState;
+            resumed.signalAll();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+    
+    public boolean isPaused()
+    {
+        return state == PAUSED;
+    }
+    
+    public boolean isStopped()
+    {
+        return state == STOPPED;
+    }
+    
+    /**
+     * Blocks while paused.
+     * 
+     * @return false if the kernel was stopped and should return
+     */
+    public boolean checkpoint()
+    {
+        int s = state;
+        if(s == RUNNING)
+            return true;
+        if(s == STOPPED)
+            return false;
+        
+        lock.lock();
+        try
+        {
+            while(state == PAUSED)
+                resumed.awaitUninterruptibly();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+        return state == RUNNING;
+    }
+}
@@ -24,25 +24,33 @@
 package org.rt.thread;
 
 import java.util.ArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  *
  * @author user
+ * 
+ * A kernel whose execute() is called in a loop until stopped. It runs on its 
+ * own platform thread with startKernel(), or on a KernelExecutor. Pause, 
+ * resume and stop go through a KernelState, so chill() costs a volatile read 
+ * unless the kernel is paused and may be called from any thread working for 
+ * the kernel.
  */
 public abstract class KernelThread implements Runnable
 {
-    boolean suspend = false;    
-    boolean finish  = false;
+    final KernelState state = new KernelState();
     
     Thread thread = null;
+    Future<?> future = null;
     
     ArrayList<KernelThread> arrayList = null;
     
     public KernelThread()
     {
-        thread = new Thread(this);
+        
     }
     
     public KernelThread(ArrayList<KernelThread> arrayList)
@@ -53,67 +61,64 @@ public abstract class KernelThread implements Runnable
     
     public void startKernel()
     {
+        thread = new Thread(this);
         thread.start();
     }
     
+    public void startKernel(KernelExecutor executor)
+    {
+        future = executor.submit(this);
+    }
+    
     public void joinKernel()
     {
         try {
-            thread.join();
-        } catch (InterruptedException ex) {
+            if(future != null)
+                future.get();
+            else if(thread != null)
+                thread.join();
+        } catch (InterruptedException | ExecutionException ex) {
             Logger.getLogger(KernelThread.class.getName()).log(Level.SEVERE, null, ex);
         }
     }
     
     public void pauseKernel()
     {
-        suspend = true;
+        state.pause();
     }
 
-    public synchronized void resumeKernel()
+    public void resumeKernel()
     {
-        suspend = false;
-        notify();
+        state.resume();
     }
   
     public void stopKernel()
     {
-        finish = true; 
-        resumeKernel();        
+        state.stop();
     }
     
     public boolean kernelTerminated()
     {
-        return finish;
+        return state.isStopped();
     }
     
     //call this in an executing method in order to invoke thread state such pause & resume
-    public synchronized void chill()
+    public void chill()
     {
-        try
-        {
-            waitForNotificationToResume();
-        }
-        catch (InterruptedException ex)
-        {
-            System.err.println(ex);
-        }
+        state.checkpoint();
     }
     
-    private synchronized void waitForNotificationToResume() throws InterruptedException
+    //chill, false if the kernel was stopped and the caller should return
+    public boolean checkpoint()
     {
-        while(suspend)
-        {           
-            wait();
-        }         
+        return state.checkpoint();
     }
     
     @Override
     public void run()
     {
-        while(true)
+        while(state.checkpoint()) //useful in start_&_pause state of thread;
         {
-            chill(); //useful in start_&_pause state of thread;
             execute();
             if(kernelTerminated()) break;
         }
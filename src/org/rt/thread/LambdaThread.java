@@ -41,34 +41,18 @@ public class LambdaThread implements Runnable
     Runnable runnable = null;
     Thread thread = null;
     
-    //Variables to control state of thread
-    boolean suspend = false;    
-    boolean finish  = false;
+    //Controls state of thread
+    final KernelState state = new KernelState();
             
     protected boolean terminated()
     {
-        return finish;
+        return state.isStopped();
     }
         
     //Call this inside method execution to make use of thread states
-    public synchronized void chill()
+    public void chill()
     {
-        try
-        {
-            waitForNotificationToResume();
-        }
-        catch (InterruptedException ex)
-        {
-            System.err.println(ex);
-        }
-    }
-    
-    private synchronized void waitForNotificationToResume() throws InterruptedException
-    {
-        while(suspend)
-        {           
-            wait();
-        }         
+        state.checkpoint();
     }
     
     @Override
@@ -102,18 +86,17 @@ public class LambdaThread implements Runnable
     
     public void stopExecution()
     {
-        finish = true;
+        state.stop();
     }
     
     public void pauseExecution()
     {
-        suspend = true;
+        state.pause();
     }
 
-    public synchronized void resumeExecution()
+    public void resumeExecution()
     {        
-        suspend = false;
-        notify();
+        state.resume();
     }  
     
     public static void executeThread(Runnable runnable)
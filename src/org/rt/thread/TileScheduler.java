@@ -0,0 +1,121 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.thread;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ *
+ * @author user
+ *
+ * Splits an image into square tiles and renders one pass over all of them on
+ * a work stealing fork/join pool. The tile range of a pass is halved
+ * recursively down to single tiles, a worker runs through the tiles of its
+ * half in scanline order and idle workers steal the larger halves still
+ * queued, so tiles that are expensive to render do not leave cores idle at the
+ * end of a pass.
+ *
+ * Tiles are rendered by a TileKernel that writes into a film shared by all
+ * workers. Pause and stop are left to the kernel, checked once per tile.
+ */
+public class TileScheduler
+{
+    public interface TileKernel
+    {
+        //render the tile with upper left corner x, y, clipped to the image
+        public void render(int x, int y, int w, int h);
+    }
+    
+    private final ForkJoinPool pool;
+    private final int width, height, tileSize;
+    private final int tilesX, tilesY;
+    
+    public TileScheduler(int width, int height, int tileSize)
+    {
+        this(width, height, tileSize, BatchThread.getCoreThreadNumber());
+    }
+    
+    public TileScheduler(int width, int height, int tileSize, int parallelism)
+    {
+        if(tileSize < 1)
+            throw new IllegalArgumentException("tile size should be at least 1 " +tileSize);
+        
+        this.width = width; this.height = height;
+        this.tileSize = tileSize;
+        this.tilesX = (width + tileSize - 1) / tileSize;
+        this.tilesY = (height + tileSize - 1) / tileSize;
+        this.pool = new ForkJoinPool(Math.max(1, parallelism));
+    }
+    
+    public int getTileCount()
+    {
+        return tilesX * tilesY;
+    }
+    
+    public int getParallelism()
+    {
+        return pool.getParallelism();
+    }
+    
+    //renders every tile once and returns when all are done
+    public void render(TileKernel kernel)
+    {
+        pool.invoke(new TileTask(kernel, 0, getTileCount()));
+    }
+    
+    //idle workers exit, render must not be called afterwards
+    public void shutdown()
+    {
+        pool.shutdown();
+    }
+    
+    @SuppressWarnings("serial")
+    private class TileTask extends RecursiveAction
+    {
+        final TileKernel kernel;
+        final int first, last;
+        
+        TileTask(TileKernel kernel, int first, int last)
+        {
+            this.kernel = kernel;
+            this.first = first; this.last = last;
+        }
+        
+        @Override
+        protected void compute()
+        {
+            if(last - first > 1)
+            {
+                int mid = (first + last) >>> 1;
+                invokeAll(new TileTask(kernel, first, mid), new TileTask(kernel, mid, last));
+                return;
+            }
+            
+            int x = (first % tilesX) * tileSize;
+            int y = (first / tilesX) * tileSize;
+            kernel.render(x, y, Math.min(tileSize, width - x), Math.min(tileSize, height - y));
+        }
+    }
+}
@@ -25,15 +25,33 @@ package org.rt.util;
 
 import org.rt.core.color.Color;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
 
 /**
  *
  * @author user
+ * 
+ * Film accumulating radiance sums and sample weights in flat float arrays, 
+ * 3 floats rgb and 1 weight per pixel, without allocation per sample.
+ * 
+ * Render workers write into their own Tile and merge it once the tile is 
+ * complete. Merges are plain additions, so tiles merged concurrently must not 
+ * overlap, which holds for the tiles of a TileScheduler pass.
+ * 
+ * The display never reads the arrays being merged into. Once a pass is 
+ * complete the controller calls publish, which copies the sums into a second
+ * pair of arrays under the lock of the buffer. get, getScaled and scaleBuffer
+ * read that copy under the same lock, so every pixel pairs rgb and weight of
+ * the same pass and the display lags the film by at most one pass.
  */
 public class FrameBuffer
 {
-    private final AtomicReference<Color> [] buffer;
+    private final float[] rgb;
+    private final float[] weights;
+    
+    //copy of the last published pass, read by the display
+    private final float[] publishedRgb;
+    private final float[] publishedWeights;
+    
     private final AtomicInteger accum;    
     private final int w, h, size;
     
@@ -43,17 +61,18 @@ public class FrameBuffer
     {
         this.w = w; this.h = h;
         this.size = w * h;
-        this.buffer = new AtomicReference[size];  
+        this.rgb = new float[3 * size];
+        this.weights = new float[size];
+        this.publishedRgb = new float[3 * size];
+        this.publishedWeights = new float[size];
         this.accum = new AtomicInteger(1);
         this.scaledColorArray = new Color[size];
         
         for(int i = 0; i < size; i++)
-        {
-            buffer[i] = new AtomicReference<>(new Color());
             scaledColorArray[i] = new Color();
-        }
     }    
     
+    //number of the pass being rendered, starts at 1
     public void incrementAccum()
     {
         accum.incrementAndGet();
@@ -64,52 +83,67 @@ public class FrameBuffer
         return accum.get();
     }
     
-    public synchronized void add(int x, int y, Color color)
+    //adds the samples of a complete tile, must not overlap a tile merged concurrently
+    public void merge(Tile tile)
     {
-        if(color.isBad())
+        for(int ty = 0; ty < tile.h; ty++)
         {
-            System.out.println("Bad color entry in frame buffer");
-            return;
+            int t = ty * tile.size;
+            int i = index(tile.x, tile.y + ty);
+            for(int tx = 0; tx < tile.w; tx++, t++, i++)
+            {
+                rgb[3 * i    ] += tile.rgb[3 * t    ];
+                rgb[3 * i + 1] += tile.rgb[3 * t + 1];
+                rgb[3 * i + 2] += tile.rgb[3 * t + 2];
+                weights[i] += tile.weights[t];
+            }
         }
-        
-        int index = index(x, y);
-        
-        while(true)
-        {
-            Color oldColor = buffer[index].get();
-            Color newColor = oldColor.add(color);
-            
-            if(buffer[index].compareAndSet(oldColor, newColor))
-                return;
-        }
-    }    
+    }
+    
+    //makes the merged sums visible to the display, called between passes while no tile is merged
+    public synchronized void publish()
+    {
+        System.arraycopy(rgb, 0, publishedRgb, 0, rgb.length);
+        System.arraycopy(weights, 0, publishedWeights, 0, weights.length);
+    }
     
     public Color get(int x, int y)
     {
-        return buffer[index(x, y)].get();
+        return get(index(x, y));
     }
     
-    public Color get(int index)
+    //published sum of the samples of a pixel
+    public synchronized Color get(int index)
     {
-        return buffer[index].get();
+        return new Color(publishedRgb[3 * index], publishedRgb[3 * index + 1], publishedRgb[3 * index + 2]);
     }
     
     public Color getScaled(int x, int y)
     {
-        return get(x, y).mul(1f/getAccum());
+        return getScaled(index(x, y));
+    }
+    
+    //published average of the samples of a pixel, black if it has none yet
+    public synchronized Color getScaled(int index)
+    {
+        Color color = new Color();
+        scale(index, color);
+        return color;
     }
     
-    public Color getScaled(int index)
+    private void scale(int index, Color color)
     {
-        return get(index).mul(1f/getAccum());
+        float weight = publishedWeights[index];
+        float invWeight = weight > 0 ? 1f / weight : 0;
+        color.r = publishedRgb[3 * index    ] * invWeight;
+        color.g = publishedRgb[3 * index + 1] * invWeight;
+        color.b = publishedRgb[3 * index + 2] * invWeight;
     }
         
-    public void scaleBuffer()
+    public synchronized void scaleBuffer()
     {
         for(int i = 0; i<size; i++)
-        {
-            scaledColorArray[i].setColor(getScaled(i));
-        }
+            scale(i, scaledColorArray[i]);
     }
     
     public Color[] getScaledColorArray()
@@ -117,8 +151,84 @@ public class FrameBuffer
         return scaledColorArray;
     }
     
+    //live accumulated rgb, 3 floats per pixel in scanline order, not a copy, read only between passes
+    public float[] getAccumulation()
+    {
+        return rgb;
+    }
+    
+    //live accumulated sample weights, 1 float per pixel, not a copy, read only between passes
+    public float[] getWeights()
+    {
+        return weights;
+    }
+    
+    public int getWidth()
+    {
+        return w;
+    }
+    
+    public int getHeight()
+    {
+        return h;
+    }
+    
     private int index(int x, int y)
     {
         return (y * w + x);
     }
+    
+    /**
+     * Samples of one tile accumulated by a single thread, reused for every tile
+     * the thread renders.
+     */
+    public static class Tile
+    {
+        private final int size;
+        private final float[] rgb;
+        private final float[] weights;
+        private int x, y, w, h;
+        
+        public Tile(int size)
+        {
+            this.size = size;
+            this.rgb = new float[3 * size * size];
+            this.weights = new float[size * size];
+        }
+        
+        //clears the tile for the image region x, y, w, h, at most size in each direction
+        public void reset(int x, int y, int w, int h)
+        {
+            if(w > size || h > size)
+                throw new IllegalArgumentException("tile region " +w+ "x" +h+ " larger than tile size " +size);
+            
+            this.x = x; this.y = y;
+            this.w = w; this.h = h;
+            for(int i = 0; i < weights.length; i++)
+            {
+                rgb[3 * i] = rgb[3 * i + 1] = rgb[3 * i + 2] = 0;
+                weights[i] = 0;
+            }
+        }
+        
+        //adds a sample of unit weight at image pixel x, y
+        public void add(int x, int y, Color color)
+        {
+            if(color.isBad())
+            {
+                System.out.println("Bad color entry in frame buffer");
+                return;
+            }
+            add(x, y, color.r, color.g, color.b);
+        }
+        
+        public void add(int x, int y, float r, float g, float b)
+        {
+            int t = (y - this.y) * size + (x - this.x);
+            rgb[3 * t    ] += r;
+            rgb[3 * t + 1] += g;
+            rgb[3 * t + 2] += b;
+            weights[t] += 1;
+        }
+    }
 }
@@ -0,0 +1,75 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.rt.util;
+
+/**
+ *
+ * @author user
+ * 
+ * Morton codes, the bits of three quantized coordinates interleaved so that 
+ * points close in space tend to be close in code order. x takes the highest 
+ * bit of every group of three.
+ */
+public final class Morton 
+{
+    private Morton()
+    {
+        
+    }
+    
+    //30 bit code of three 10 bit coordinates
+    public static int encode30(int x, int y, int z)
+    {
+        return (expandBits10(x) << 2) | (expandBits10(y) << 1) | expandBits10(z);
+    }
+    
+    //63 bit code of three 21 bit coordinates
+    public static long encode63(long x, long y, long z)
+    {
+        return (expandBits21(x) << 2) | (expandBits21(y) << 1) | expandBits21(z);
+    }
+    
+    //spreads the lowest 10 bits of v to every third bit
+    public static int expandBits10(int v)
+    {
+        v &= 0x3ff;
+        v = (v * 0x00010001) & 0xff0000ff;
+        v = (v * 0x00000101) & 0x0f00f00f;
+        v = (v * 0x00000011) & 0xc30c30c3;
+        v = (v * 0x00000005) & 0x49249249;
+        return v;
+    }
+    
+    //spreads the lowest 21 bits of v to every third bit
+    public static long expandBits21(long v)
+    {
+        v &= 0x1fffffL;
+        v = (v | v << 32) & 0x001f00000000ffffL;
+        v = (v | v << 16) & 0x001f0000ff0000ffL;
+        v = (v | v <<  8) & 0x100f00f00f00f00fL;
+        v = (v | v <<  4) & 0x10c30c30c30c30c3L;
+        v = (v | v <<  2) & 0x1249249249249249L;
+        return v;
+    }
+}
@@ -24,8 +24,10 @@
 package org.rt.util;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.function.Predicate;
 import org.rt.core.AbstractPrimitive;
 
 /**
@@ -60,6 +62,21 @@ public class Sorting {
         return mid;
     }
     
+    //moves elements satisfying the predicate to the front of [start, end), returns the first index of the rest
+    public static <T> int partition(ArrayList<T> list, int start, int end, Predicate<? super T> predicate)
+    {
+        int mid = start;
+        for(int i = start; i < end; i++)
+        {
+            if(predicate.test(list.get(i)))
+            {
+                Collections.swap(list, i, mid);
+                mid++;
+            }
+        }
+        return mid;
+    }
+    
     public static void swap(ArrayList list1, ArrayList list2)
     {
         ArrayList<?> tmpList = new ArrayList<>(list1);
@@ -68,4 +85,91 @@ public class Sorting {
         list2.clear();
         list2.addAll(tmpList);
     }
+    
+    //number of key bits sorted per radix pass
+    private static final int RADIX_BITS = 8;
+    private static final int RADIX_MASK = (1 << RADIX_BITS) - 1;
+    
+    /**
+     * Sorts the first n keys in ascending unsigned order and permutes values 
+     * the same way. Least significant digit radix sort over the lowest bits 
+     * of the keys, passes where all keys share the digit are skipped. Stable.
+     */
+    public static void radixSort(int[] keys, int[] values, int n, int bits)
+    {
+        int[] keysIn = keys, valuesIn = values;
+        int[] keysOut = new int[n], valuesOut = new int[n];
+        int[] count = new int[1 << RADIX_BITS];
+        
+        for(int shift = 0; shift < bits; shift += RADIX_BITS)
+        {
+            Arrays.fill(count, 0);
+            for(int i = 0; i < n; i++)
+                count[(keysIn[i] >>> shift) & RADIX_MASK]++;
+            if(n == 0 || count[(keysIn[0] >>> shift) & RADIX_MASK] == n)
+                continue;
+            
+            //Convert digit counts to first output index
+            for(int d = 0, sum = 0; d < count.length; d++)
+            {
+                int c = count[d];
+                count[d] = sum;
+                sum += c;
+            }
+            for(int i = 0; i < n; i++)
+            {
+                int o = count[(keysIn[i] >>> shift) & RADIX_MASK]++;
+                keysOut[o] = keysIn[i];
+                valuesOut[o] = valuesIn[i];
+            }
+            
+            int[] swap = keysIn; keysIn = keysOut; keysOut = swap;
+            swap = valuesIn; valuesIn = valuesOut; valuesOut = swap;
+        }
+        
+        if(keysIn != keys)
+        {
+            System.arraycopy(keysIn, 0, keys, 0, n);
+            System.arraycopy(valuesIn, 0, values, 0, n);
+        }
+    }
+    
+    //see radixSort(int[], int[], int, int)
+    public static void radixSort(long[] keys, int[] values, int n, int bits)
+    {
+        long[] keysIn = keys, keysOut = new long[n];
+        int[] valuesIn = values, valuesOut = new int[n];
+        int[] count = new int[1 << RADIX_BITS];
+        
+        for(int shift = 0; shift < bits; shift += RADIX_BITS)
+        {
+            Arrays.fill(count, 0);
+            for(int i = 0; i < n; i++)
+                count[(int) (keysIn[i] >>> shift) & RADIX_MASK]++;
+            if(n == 0 || count[(int) (keysIn[0] >>> shift) & RADIX_MASK] == n)
+                continue;
+            
+            for(int d = 0, sum = 0; d < count.length; d++)
+            {
+                int c = count[d];
+                count[d] = sum;
+                sum += c;
+            }
+            for(int i = 0; i < n; i++)
+            {
+                int o = count[(int) (keysIn[i] >>> shift) & RADIX_MASK]++;
+                keysOut[o] = keysIn[i];
+                valuesOut[o] = valuesIn[i];
+            }
+            
+            long[] swapKeys = keysIn; keysIn = keysOut; keysOut = swapKeys;
+            int[] swap = valuesIn; valuesIn = valuesOut; valuesOut = swap;
+        }
+        
+        if(keysIn != keys)
+        {
+            System.arraycopy(keysIn, 0, keys, 0, n);
+            System.arraycopy(valuesIn, 0, values, 0, n);
+        }
+    }
 }
@@ -0,0 +1,125 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import org.rt.core.AbstractAccelerator;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.Intersection;
+import org.rt.core.Material;
+import org.rt.core.coordinates.Point3f;
+import org.rt.core.math.Ray;
+import org.rt.core.primitive.GeometryPrimitive;
+import org.rt.core.shape.Triangle;
+
+/**
+ *
+ * @author user
+ * 
+ * Scene and ray fixtures and timing shared by the accelerator benchmarks.
+ */
+final class Benchmarks {
+    private Benchmarks()
+    {
+        
+    }
+    
+    /**
+     * Small triangles in spherical clusters, a new cluster every clusterSize 
+     * triangles. Cluster centers lie in the cube [-extent, extent] and radii 
+     * in [minRadius, maxRadius]. Triangles are scattered normally distributed
+     * around the center, or on the sphere of the radius if onSurface, with an 
+     * edge length of up to triangleSize times the radius.
+     */
+    static ArrayList<AbstractPrimitive> clusters(int n, long seed, int clusterSize, float extent, 
+                                                 float minRadius, float maxRadius, float triangleSize, boolean onSurface)
+    {
+        Random r = new Random(seed);
+        Material m = Material.createDefaultLambert();
+        ArrayList<AbstractPrimitive> prims = new ArrayList<>();
+        Point3f center = new Point3f();
+        float radius = 1;
+        for(int i = 0; i < n; i++)
+        {
+            if(i % clusterSize == 0)
+            {
+                center = new Point3f((r.nextFloat() * 2 - 1) * extent, (r.nextFloat() * 2 - 1) * extent, (r.nextFloat() * 2 - 1) * extent);
+                radius = minRadius + r.nextFloat() * (maxRadius - minRadius);
+            }
+            float dx = (float) r.nextGaussian(), dy = (float) r.nextGaussian(), dz = (float) r.nextGaussian();
+            float scale = onSurface ? radius / (float) Math.sqrt(dx * dx + dy * dy + dz * dz) : radius;
+            float x = center.x + dx * scale, y = center.y + dy * scale, z = center.z + dz * scale;
+            float s = radius * triangleSize;
+            prims.add(new GeometryPrimitive(new Triangle(
+                    new Point3f(x, y, z), 
+                    new Point3f(x + r.nextFloat() * s, y + r.nextFloat() * s, z), 
+                    new Point3f(x, y + r.nextFloat() * s, z + r.nextFloat() * s)), m));
+        }
+        return prims;
+    }
+    
+    //rays starting anywhere in the cube [-extent, extent] and pointing in any direction
+    static Ray[] rays(int n, long seed, float extent)
+    {
+        Random r = new Random(seed);
+        Ray[] rays = new Ray[n];
+        for(int i = 0; i < n; i++)
+            rays[i] = new Ray((r.nextFloat() * 2 - 1) * extent, (r.nextFloat() * 2 - 1) * extent, (r.nextFloat() * 2 - 1) * extent, 
+                              (float) r.nextGaussian(), (float) r.nextGaussian(), (float) r.nextGaussian());
+        return rays;
+    }
+    
+    //nanoseconds for a closest hit and an occlusion query per ray
+    static long trace(AbstractAccelerator accelerator, Ray[] rays)
+    {
+        long time = System.nanoTime();
+        for(Ray ray : rays)
+        {
+            accelerator.intersect(new Ray(ray.o, ray.d), new Intersection());
+            accelerator.intersectP(new Ray(ray.o, ray.d));
+        }
+        return System.nanoTime() - time;
+    }
+    
+    //queries per second of trace, best of three runs
+    static double raysPerSecond(AbstractAccelerator accelerator, Ray[] rays)
+    {
+        long best = Long.MAX_VALUE;
+        for(int run = 0; run < 3; run++)
+            best = Math.min(best, trace(accelerator, rays));
+        return 2.0 * rays.length / (best * 1e-9);
+    }
+    
+    //queries per second of trace for each of the runs, sorted ascending
+    static double[] raysPerSecond(AbstractAccelerator accelerator, Ray[] rays, int runs)
+    {
+        double[] rates = new double[runs];
+        for(int run = 0; run < runs; run++)
+            rates[run] = 2.0 * rays.length / (trace(accelerator, rays) * 1e-9);
+        Arrays.sort(rates);
+        return rates;
+    }
+}
@@ -0,0 +1,122 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.Intersection;
+import org.rt.core.Material;
+import org.rt.core.accelerator.NullAccelerator;
+import org.rt.core.coordinates.Point3f;
+import org.rt.core.math.Matrix;
+import org.rt.core.math.Ray;
+import org.rt.core.math.Transform;
+import org.rt.core.primitive.Geometry;
+import org.rt.core.primitive.GeometryPrimitive;
+import org.rt.core.primitive.Instance;
+import org.rt.core.shape.Triangle;
+
+/**
+ *
+ * @author user
+ * 
+ * Regression check for instanced geometry. Randomly translated and scaled 
+ * instances of one mesh are traced against the same triangles transformed to
+ * world space, both in a NullAccelerator, with rays whose minimum distance 
+ * varies. Hits, their distances and occlusion must agree. Exits with status 1
+ * on any mismatch.
+ */
+public class InstanceCheck {
+    public static void main(String... args)
+    {
+        int nInstances = args.length > 0 ? Integer.parseInt(args[0]) : 30;
+        int nRays = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+        
+        Random r = new Random(1);
+        Material m = Material.createDefaultLambert();
+        Point3f[] vertices = new Point3f[3 * 20];
+        for(int i = 0; i < vertices.length; i++)
+            vertices[i] = new Point3f(r.nextFloat() * 2 - 1, r.nextFloat() * 2 - 1, r.nextFloat() * 2 - 1);
+        
+        Geometry geometry = new Geometry(m);
+        for(int i = 0; i < vertices.length; i += 3)
+            geometry.addGeometryPrimitive(new GeometryPrimitive(new Triangle(vertices[i], vertices[i + 1], vertices[i + 2]), m));
+        geometry.build();
+        
+        ArrayList<AbstractPrimitive> instances = new ArrayList<>();
+        ArrayList<AbstractPrimitive> flattened = new ArrayList<>();
+        for(int n = 0; n < nInstances; n++)
+        {
+            //Scale both up and down, by 0.1 to 10
+            float s = (float) Math.pow(10, r.nextFloat() * 2 - 1);
+            Transform translate = Transform.translate(r.nextFloat() * 20 - 10, r.nextFloat() * 20 - 10, r.nextFloat() * 20 - 10);
+            Transform scale = Transform.scale(s, s, s);
+            Transform o2w = new Transform(Matrix.mul(translate.m, scale.m), Matrix.mul(scale.mInv, translate.mInv));
+            
+            instances.add(new Instance(geometry, o2w));
+            for(int i = 0; i < vertices.length; i += 3)
+                flattened.add(new GeometryPrimitive(new Triangle(
+                        o2w.transform(vertices[i]), o2w.transform(vertices[i + 1]), o2w.transform(vertices[i + 2])), m));
+        }
+        
+        NullAccelerator instanced = new NullAccelerator();
+        instanced.build(instances);
+        NullAccelerator world = new NullAccelerator();
+        world.build(flattened);
+        
+        int mismatches = 0;
+        for(int i = 0; i < nRays; i++)
+        {
+            Point3f o = new Point3f(r.nextFloat() * 30 - 15, r.nextFloat() * 30 - 15, r.nextFloat() * 30 - 15);
+            float dx = (float) r.nextGaussian(), dy = (float) r.nextGaussian(), dz = (float) r.nextGaussian();
+            float tMin = r.nextFloat() * 4;
+            
+            Ray a = new Ray(o.x, o.y, o.z, dx, dy, dz);
+            Ray b = new Ray(o.x, o.y, o.z, dx, dy, dz);
+            a.setMin(tMin);
+            b.setMin(tMin);
+            boolean hitA = instanced.intersect(a, new Intersection());
+            boolean hitB = world.intersect(b, new Intersection());
+            
+            Ray pa = new Ray(o.x, o.y, o.z, dx, dy, dz);
+            Ray pb = new Ray(o.x, o.y, o.z, dx, dy, dz);
+            pa.setMin(tMin);
+            pb.setMin(tMin);
+            
+            if(hitA != hitB || (hitA && Math.abs(a.getMax() - b.getMax()) > 1e-3f * b.getMax()) || 
+                    instanced.intersectP(pa) != world.intersectP(pb))
+            {
+                if(mismatches < 10)
+                    System.out.println("mismatch at ray " + i + ": instanced " + (hitA ? a.getMax() : "miss") + 
+                                       ", world " + (hitB ? b.getMax() : "miss"));
+                mismatches++;
+            }
+        }
+        
+        System.out.println(mismatches + " mismatches in " + nRays + " rays");
+        if(mismatches > 0)
+            System.exit(1);
+    }
+}
@@ -0,0 +1,81 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package test;
+
+import java.util.ArrayList;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.accelerator.BoundingVolume;
+import org.rt.core.accelerator.NodeLayout;
+import org.rt.core.accelerator.SplitMethod;
+import org.rt.core.math.Ray;
+
+/**
+ *
+ * @author user
+ * 
+ * Compares rays per second of BoundingVolume node layouts on a scene large 
+ * enough for the tree to exceed the processor caches. Rays start anywhere and
+ * point anywhere, so consecutive rays share few nodes and traversal time is 
+ * dominated by cache misses.
+ */
+public class NodeLayoutBenchmark {
+    public static void main(String... args)
+    {
+        int nTriangles = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+        int nRays = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int runs = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        
+        ArrayList<AbstractPrimitive> prims = scene(nTriangles, 1);
+        Ray[] rays = Benchmarks.rays(nRays, 2, 30);
+        
+        report("depth first", NodeLayout.DEPTH_FIRST, 0, prims, rays, runs);
+        for(int clusterSize : new int[]{4, 8, 16, 32})
+            report("subtree clusters of " + clusterSize, NodeLayout.SUBTREE_CLUSTERS, clusterSize, prims, rays, runs);
+        report("van emde boas", NodeLayout.VAN_EMDE_BOAS, 0, prims, rays, runs);
+    }
+    
+    static void report(String name, NodeLayout layout, int clusterSize, ArrayList<AbstractPrimitive> prims, Ray[] rays, int runs)
+    {
+        BoundingVolume bvh = new BoundingVolume(SplitMethod.SAH, 4);
+        bvh.setNodeLayout(layout);
+        if(clusterSize > 0)
+            bvh.setClusterSize(clusterSize);
+        bvh.build(new ArrayList<>(prims));
+        
+        //Warm up, then report the spread of the runs rather than the best one
+        Benchmarks.trace(bvh, rays);
+        double[] rates = Benchmarks.raysPerSecond(bvh, rays, runs);
+        
+        System.out.println(name);
+        System.out.println(String.format("   rays/sec      : min %.0f, median %.0f, max %.0f over %d runs", 
+                rates[0], rates[runs / 2], rates[runs - 1], runs));
+        System.out.println(String.format("   build time    : %.1f ms", bvh.getStatistics().getBuildTime() * 1e-6));
+    }
+    
+    //small triangles on a set of spheres, so that rays travel through empty space between surfaces
+    static ArrayList<AbstractPrimitive> scene(int n, long seed)
+    {
+        return Benchmarks.clusters(n, seed, 10000, 20, 0.5f, 3.5f, 0.03f, true);
+    }
+}
@@ -0,0 +1,119 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package test;
+
+import java.util.ArrayList;
+import java.util.Random;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.Intersection;
+import org.rt.core.Material;
+import org.rt.core.accelerator.FlatBVH;
+import org.rt.core.accelerator.SplitBVH;
+import org.rt.core.coordinates.Point3f;
+import org.rt.core.math.Ray;
+import org.rt.core.primitive.GeometryPrimitive;
+import org.rt.core.shape.Triangle;
+
+/**
+ *
+ * @author user
+ * 
+ * Compares node visits and primitive tests per ray of an object split FlatBVH 
+ * against SplitBVH on a scene with many long diagonal triangles, similar to 
+ * what CAD exported meshes produce.
+ */
+public class SBVHBenchmark {
+    public static void main(String... args)
+    {
+        int nTriangles = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int nRays = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+        
+        ArrayList<AbstractPrimitive> prims = scene(nTriangles, 1);
+        Ray[] rays = Benchmarks.rays(nRays, 2, 15);
+        
+        FlatBVH object = new FlatBVH();
+        object.build(new ArrayList<>(prims));
+        report("object split", object, rays);
+        
+        for(float budget : new float[]{0.25f, 0.5f, 1f})
+        {
+            SplitBVH spatial = new SplitBVH();
+            spatial.setSplitBudget(budget);
+            spatial.build(new ArrayList<>(prims));
+            report(String.format("spatial split, budget %.2f", budget), spatial, rays);
+            System.out.println("   references    : " + spatial.getReferenceCount());
+            System.out.println("   spatial splits: " + spatial.getSpatialSplitCount());
+        }
+    }
+    
+    //small triangles scattered in a box, with every tenth one stretched across it diagonally
+    static ArrayList<AbstractPrimitive> scene(int n, long seed)
+    {
+        Random r = new Random(seed);
+        Material m = Material.createDefaultLambert();
+        ArrayList<AbstractPrimitive> prims = new ArrayList<>();
+        for(int i = 0; i < n; i++)
+        {
+            Point3f a, b, c;
+            if(i % 10 == 0)
+            {
+                a = new Point3f(r.nextFloat() * 4 - 12, r.nextFloat() * 4 - 12, r.nextFloat() * 20 - 10);
+                b = new Point3f(r.nextFloat() * 4 + 8, r.nextFloat() * 4 + 8, r.nextFloat() * 20 - 10);
+                c = new Point3f(b.x + r.nextFloat() * 0.2f, b.y - r.nextFloat() * 0.2f, b.z + r.nextFloat() * 0.2f);
+            }
+            else
+            {
+                float x = r.nextFloat() * 20 - 10, y = r.nextFloat() * 20 - 10, z = r.nextFloat() * 20 - 10;
+                a = new Point3f(x, y, z);
+                b = new Point3f(x + r.nextFloat() * 0.5f, y + r.nextFloat() * 0.5f, z);
+                c = new Point3f(x, y + r.nextFloat() * 0.5f, z + r.nextFloat() * 0.5f);
+            }
+            prims.add(new GeometryPrimitive(new Triangle(a, b, c), m));
+        }
+        return prims;
+    }
+    
+    static void report(String name, FlatBVH bvh, Ray[] rays)
+    {
+        long[] counts = new long[2];
+        int hits = 0;
+        for(Ray ray : rays)
+            if(bvh.intersect(new Ray(ray.o, ray.d), new Intersection(), counts))
+                hits++;
+        
+        long time = System.nanoTime();
+        for(Ray ray : rays)
+            bvh.intersect(new Ray(ray.o, ray.d), new Intersection());
+        time = System.nanoTime() - time;
+        
+        System.out.println(name);
+        System.out.println(String.format("   nodes/ray     : %.2f", (double) counts[0] / rays.length));
+        System.out.println(String.format("   prims/ray     : %.2f", (double) counts[1] / rays.length));
+        System.out.println(String.format("   hits          : %d", hits));
+        System.out.println(String.format("   trace time    : %.1f ms", time * 1e-6));
+        System.out.println(String.format("   sah cost      : %.3f", bvh.getStatistics().getSAHCost()));
+        System.out.println(String.format("   build time    : %.1f ms", bvh.getStatistics().getBuildTime() * 1e-6));
+        System.out.println(String.format("   memory        : %d KB", bvh.getMemoryUsage() / 1024));
+    }
+}
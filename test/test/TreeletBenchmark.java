@@ -0,0 +1,80 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package test;
+
+import java.util.ArrayList;
+import org.rt.core.AbstractPrimitive;
+import org.rt.core.accelerator.BoundingVolume;
+import org.rt.core.accelerator.SplitMethod;
+import org.rt.core.math.Ray;
+
+/**
+ *
+ * @author user
+ * 
+ * Reports SAH cost and rays per second of BoundingVolume trees before and 
+ * after treelet restructuring, for the fast MIDDLE split build and the SAH 
+ * build, on clusters of small triangles scattered in a box. Trees are built 
+ * with single primitive leaves, restructuring collapses them into leaves of 
+ * up to four primitives.
+ */
+public class TreeletBenchmark {
+    public static void main(String... args)
+    {
+        int nTriangles = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int nRays = args.length > 1 ? Integer.parseInt(args[1]) : 200000;
+        int passes = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+        
+        ArrayList<AbstractPrimitive> prims = scene(nTriangles, 1);
+        Ray[] rays = Benchmarks.rays(nRays, 2, 15);
+        
+        for(SplitMethod method : new SplitMethod[]{SplitMethod.MIDDLE, SplitMethod.SAH})
+        {
+            BoundingVolume bvh = new BoundingVolume(method, 1);
+            bvh.build(new ArrayList<>(prims));
+            bvh.setMaxPrimsInNode(4);
+            double sah = bvh.getStatistics().getSAHCost();
+            long build = bvh.getStatistics().getBuildTime();
+            //Warm up
+            Benchmarks.raysPerSecond(bvh, rays);
+            double before = Benchmarks.raysPerSecond(bvh, rays);
+            
+            bvh.restructure(passes);
+            double restructure = (bvh.getStatistics().getBuildTime() - build) * 1e-6;
+            double after = Benchmarks.raysPerSecond(bvh, rays);
+            
+            System.out.println(method + " build, " + passes + " restructure passes");
+            System.out.println(String.format("   sah cost      : %.3f -> %.3f", sah, bvh.getStatistics().getSAHCost()));
+            System.out.println(String.format("   rays/sec      : %.0f -> %.0f", before, after));
+            System.out.println(String.format("   build time    : %.1f ms", build * 1e-6));
+            System.out.println(String.format("   restructure   : %.1f ms", restructure));
+        }
+    }
+    
+    //clusters of small triangles with sizes varying over two orders of magnitude
+    static ArrayList<AbstractPrimitive> scene(int n, long seed)
+    {
+        return Benchmarks.clusters(n, seed, 1000, 10, 0.1f, 2.1f, 0.05f, false);
+    }
+}
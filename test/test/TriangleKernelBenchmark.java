@@ -0,0 +1,158 @@
+/* 
+ * The MIT License
+ *
+ * Copyright 2016 user.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package test;
+
+import java.util.Random;
+import org.rt.core.Intersection;
+import org.rt.core.Material;
+import org.rt.core.math.DifferentialGeometry;
+import org.rt.core.math.Ray;
+import org.rt.core.primitive.Geometry;
+import org.rt.core.shape.TriangleKernel;
+import org.rt.core.shape.TriangleMesh;
+
+/**
+ *
+ * @author user
+ * 
+ * Measures the cost of a single ray triangle test of the watertight kernel 
+ * and of the precomputed projection test. Every ray is tested against a block
+ * of triangles, like a leaf of an acceleration structure, most tests miss. 
+ * Kernels are run alternately and the best round is reported, which keeps 
+ * noise from other processes and JIT compilation out of the result.
+ * 
+ * A cheaper single test does not have to make a mesh faster to trace, the 
+ * projection data adds 48 bytes per triangle to the memory read in a leaf. 
+ * The second part traces a height field mesh in its bottom level BVH with 
+ * either kernel and reports the best trace time.
+ */
+public class TriangleKernelBenchmark {
+    public static void main(String... args)
+    {
+        int nTriangles = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+        int nRays = args.length > 1 ? Integer.parseInt(args[1]) : 2048;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        
+        Random r = new Random(1);
+        float[] vertices = new float[9 * nTriangles];
+        for(int i = 0; i < nTriangles; i++)
+        {
+            float x = r.nextFloat() * 2 - 1, y = r.nextFloat() * 2 - 1, z = r.nextFloat() * 2 - 1;
+            for(int v = 0; v < 3; v++)
+            {
+                vertices[9 * i + 3 * v    ] = x + r.nextFloat() - 0.5f;
+                vertices[9 * i + 3 * v + 1] = y + r.nextFloat() - 0.5f;
+                vertices[9 * i + 3 * v + 2] = z + r.nextFloat() - 0.5f;
+            }
+        }
+        float[] projection = TriangleKernel.precompute(vertices);
+        
+        Ray[] rays = new Ray[nRays];
+        for(int i = 0; i < nRays; i++)
+            rays[i] = new Ray(r.nextFloat() * 4 - 2, r.nextFloat() * 4 - 2, -3, 
+                              r.nextFloat() * 0.4f - 0.2f, r.nextFloat() * 0.4f - 0.2f, 1);
+        
+        long watertight = Long.MAX_VALUE, projected = Long.MAX_VALUE;
+        int hitsWatertight = 0, hitsProjected = 0;
+        DifferentialGeometry dg = new DifferentialGeometry();
+        for(int round = 0; round < rounds; round++)
+        {
+            long time = System.nanoTime();
+            hitsWatertight = 0;
+            for(Ray ray : rays)
+                for(int i = 0; i < nTriangles; i++)
+                    if(!Float.isNaN(TriangleKernel.intersect(ray, vertices, 9 * i, dg)))
+                        hitsWatertight++;
+            watertight = Math.min(watertight, System.nanoTime() - time);
+            
+            time = System.nanoTime();
+            hitsProjected = 0;
+            for(Ray ray : rays)
+                for(int i = 0; i < nTriangles; i++)
+                    if(!Float.isNaN(TriangleKernel.intersectProjected(ray, projection, TriangleKernel.PROJECTION_SIZE * i, dg)))
+                        hitsProjected++;
+            projected = Math.min(projected, System.nanoTime() - time);
+        }
+        
+        double tests = (double) nTriangles * nRays;
+        System.out.println("single triangle test");
+        System.out.println(String.format("   watertight kernel : %.2f ns/test, %d hits, %d bytes/triangle", 
+                watertight / tests, hitsWatertight, 36));
+        System.out.println(String.format("   projection kernel : %.2f ns/test, %d hits, %d bytes/triangle", 
+                projected / tests, hitsProjected, 36 + 4 * TriangleKernel.PROJECTION_SIZE));
+        
+        Geometry watertightMesh = heightField(256, false);
+        Geometry projectionMesh = heightField(256, true);
+        Ray[] meshRays = new Ray[100000];
+        for(int i = 0; i < meshRays.length; i++)
+            meshRays[i] = new Ray(r.nextFloat() * 2 - 1, 2, r.nextFloat() * 2 - 1, 
+                                  r.nextFloat() - 0.5f, -1, r.nextFloat() - 0.5f);
+        
+        long watertightTrace = Long.MAX_VALUE, projectedTrace = Long.MAX_VALUE;
+        for(int round = 0; round < rounds; round++)
+        {
+            watertightTrace = Math.min(watertightTrace, trace(watertightMesh, meshRays));
+            projectedTrace = Math.min(projectedTrace, trace(projectionMesh, meshRays));
+        }
+        System.out.println(String.format("mesh trace, %d rays", meshRays.length));
+        System.out.println(String.format("   watertight kernel : %.1f ms", watertightTrace * 1e-6));
+        System.out.println(String.format("   projection kernel : %.1f ms", projectedTrace * 1e-6));
+    }
+    
+    //n * n quads of a bumpy surface over [-1, 1] in x and z
+    static Geometry heightField(int n, boolean projectionTest)
+    {
+        TriangleMesh.clear();
+        for(int j = 0; j <= n; j++)
+            for(int i = 0; i <= n; i++)
+            {
+                float x = 2f * i / n - 1, z = 2f * j / n - 1;
+                TriangleMesh.addVertex(x, 0.1f * (float) (Math.sin(8 * x) * Math.cos(8 * z)), z);
+            }
+        
+        TriangleMesh mesh = new TriangleMesh();
+        for(int j = 0; j < n; j++)
+            for(int i = 0; i < n; i++)
+            {
+                //obj style indices start at 1
+                int v = j * (n + 1) + i + 1;
+                mesh.addVertexIndex(v, v + 1, v + n + 1);
+                mesh.addVertexIndex(v + 1, v + n + 2, v + n + 1);
+            }
+        mesh.setProjectionTest(projectionTest);
+        
+        Geometry geometry = new Geometry(Material.createDefaultLambert());
+        geometry.addGeometryPrimitive(mesh);
+        geometry.build();
+        return geometry;
+    }
+    
+    static long trace(Geometry geometry, Ray[] rays)
+    {
+        long time = System.nanoTime();
+        for(Ray ray : rays)
+            geometry.intersect(new Ray(ray.o, ray.d), new Intersection());
+        return System.nanoTime() - time;
+    }
+}